@@ -0,0 +1,130 @@
+package loadgen;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs a cluster on this machine and measures how its throughput grows as
+ * nodes are added. Starts a ClusterRouter and then the nodes one at a time,
+ * each a server.Headless process on its own loopback port, and after each
+ * node has joined and the tables have been rebalanced runs the
+ * LoadGenerator against the router.
+ *
+ * <pre>
+ * java loadgen.ClusterHarness --nodes=3 --sessions=300 --duration=20 \
+ *     --tables=60 --mix=STATE:5,HINT:2,PWD:1
+ * </pre>
+ *
+ * Options:
+ * --nodes      largest number of nodes, default 3
+ * --base-port  port of the router, the nodes take the ports after it,
+ *              default 50100
+ * --settle     seconds to wait after starting a node, default 8
+ * Every other option is passed to the LoadGenerator, whose --port is the
+ * router's and whose --tables defaults to one per 4 sessions.
+ *
+ * The node logs are written to a temporary directory, printed at the start.
+ */
+public class ClusterHarness {
+
+    private static final long START_TIMEOUT_MILLIS = 30_000;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unrecognised argument " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        int nodeCount = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int basePort = Integer.parseInt(options.getOrDefault("base-port", "50100"));
+        long settleMillis = Long.parseLong(options.getOrDefault("settle", "8")) * 1000;
+        options.remove("nodes");
+        options.remove("base-port");
+        options.remove("settle");
+        options.put("port", String.valueOf(basePort));
+        options.putIfAbsent("tables", String.valueOf(
+                Math.max(1, Integer.parseInt(options.getOrDefault("sessions", "100")) / 4)));
+
+        StringBuilder members = new StringBuilder();
+        for (int i = 1; i <= nodeCount; i++) {
+            members.append(i > 1 ? "," : "").append("127.0.0.1:").append(basePort + i);
+        }
+        File logs = Files.createTempDirectory("cluster-harness").toFile();
+        System.out.println("Node logs in " + logs);
+
+        List<Process> processes = new ArrayList<>();
+        try {
+            processes.add(start(logs, "router", "server.ClusterRouter",
+                    "--cluster=" + members, String.valueOf(basePort)));
+            awaitPort(basePort);
+            for (int i = 1; i <= nodeCount; i++) {
+                int port = basePort + i;
+                processes.add(start(logs, "node-" + i, "server.Headless", "--cluster=" + members,
+                        "--node=127.0.0.1:" + port, String.valueOf(port)));
+                awaitPort(port);
+                // Long enough for the probes to see the node and the tables to move
+                Thread.sleep(settleMillis);
+
+                System.out.printf("%n== %d node%s ==%n", i, i == 1 ? "" : "s");
+                List<String> loadArgs = new ArrayList<>();
+                for (Map.Entry<String, String> option : options.entrySet()) {
+                    loadArgs.add("--" + option.getKey() + "=" + option.getValue());
+                }
+                LoadGenerator.main(loadArgs.toArray(new String[0]));
+            }
+        } finally {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Start a class of this classpath in a JVM of its own.
+     */
+    private static Process start(File logs, String name, String mainClass, String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass);
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(logs, name + ".log"))
+                .start();
+    }
+
+    /**
+     * Wait until something accepts connections on a loopback port.
+     */
+    private static void awaitPort(int port) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + START_TIMEOUT_MILLIS;
+        while (true) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                return;
+            } catch (IOException ex) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Nothing listening on port " + port, ex);
+                }
+                Thread.sleep(200);
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package loadgen;
+
+import server.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Headless load generator for the server. Opens a number of concurrent
+ * sessions and has each one replay a weighted mix of commands until the run
+ * time is up, then prints latency percentiles per command along with the
+ * connection and byte rates.
+ *
+ * <pre>
+ * java loadgen.LoadGenerator --port=50001 --sessions=2000 --duration=30 \
+ *     --dir=/srv/assets --mix=DIR:5,PWD:3,CD:2,DOWNLOAD:1 --file=cards.png
+ * </pre>
+ *
+ * Options:
+ * --host       server address, default 127.0.0.1
+ * --port       server port, default 50001
+ * --sessions   concurrent sessions, default 100
+ * --duration   run time in seconds, default 10
+ * --mix        comma separated COMMAND:weight list. DIR, PWD, CD, DOWNLOAD and
+ *              BYE have built in handling, anything else is sent as a line
+ *              and one line is read back (for example "BET 10:2").
+ * --dir        directory every session changes to first, and the CD target
+ * --file       file DOWNLOAD asks for, relative to --dir
+ * --reconnect  commands per connection before reconnecting, 0 to stay connected
+ * --think      pause between commands in milliseconds, default 0
+ * --tables     tables to spread the sessions over, 0 (the default) for none.
+ *              Each session joins a random one after its CD, timed as JOIN,
+ *              so a mix such as "STATE:5,HINT:2" plays at that table.
+ */
+public class LoadGenerator {
+
+    private final String host;
+    private final int port;
+    private final int sessions;
+    private final long durationNanos;
+    private final String directory;
+    private final String file;
+    private final int reconnectEvery;
+    private final long thinkMillis;
+    private final int tables;
+
+    // Command mix as parallel arrays of requests and cumulative weights
+    private final String[] mix;
+    private final int[] cumulativeWeights;
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> errors = new LinkedHashMap<>();
+    private final LongAdder connections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+
+    private LoadGenerator(Map<String, String> options) {
+        host = options.getOrDefault("host", "127.0.0.1");
+        port = Integer.parseInt(options.getOrDefault("port", "50001"));
+        sessions = Integer.parseInt(options.getOrDefault("sessions", "100"));
+        durationNanos = Long.parseLong(options.getOrDefault("duration", "10")) * 1_000_000_000L;
+        directory = options.get("dir");
+        file = options.get("file");
+        reconnectEvery = Integer.parseInt(options.getOrDefault("reconnect", "0"));
+        thinkMillis = Long.parseLong(options.getOrDefault("think", "0"));
+        tables = Integer.parseInt(options.getOrDefault("tables", "0"));
+
+        String[] entries = options.getOrDefault("mix", "DIR:5,PWD:3,CD:2").split(",");
+        mix = new String[entries.length];
+        cumulativeWeights = new int[entries.length];
+        int total = 0;
+        for (int i = 0; i < entries.length; i++) {
+            int colon = entries[i].lastIndexOf(':');
+            mix[i] = colon < 0 ? entries[i] : entries[i].substring(0, colon);
+            total += colon < 0 ? 1 : Integer.parseInt(entries[i].substring(colon + 1));
+            cumulativeWeights[i] = total;
+        }
+
+        // Every histogram exists up front so workers never modify the maps
+        track("HELLO");
+        if (tables > 0) {
+            track("JOIN");
+        }
+        for (String request : mix) {
+            track(name(request));
+        }
+        track("BYE");
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unrecognised argument " + arg);
+                System.exit(1);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    private void track(String command) {
+        latencies.putIfAbsent(command, new LatencyHistogram());
+        errors.putIfAbsent(command, new LongAdder());
+    }
+
+    /**
+     * Start every session, wait for the run to finish and print the report.
+     */
+    void run() throws InterruptedException {
+        System.out.printf("%d sessions against %s:%d for %d s%n",
+                sessions, host, port, durationNanos / 1_000_000_000L);
+
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        CountDownLatch finished = new CountDownLatch(sessions);
+        for (int i = 0; i < sessions; i++) {
+            long seed = i;
+            // Small stacks so thousands of sessions fit in one process
+            Thread worker = new Thread(null, () -> {
+                try {
+                    session(deadline, new SplittableRandom(seed));
+                } finally {
+                    finished.countDown();
+                }
+            }, "Session-" + i, 256 * 1024);
+            worker.setDaemon(true);
+            worker.start();
+        }
+        finished.await();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        report(seconds);
+    }
+
+    /**
+     * One simulated client. Connects, runs commands from the mix until the
+     * deadline and reconnects when asked to.
+     */
+    private void session(long deadline, SplittableRandom random) {
+        while (System.nanoTime() < deadline) {
+            long begin = System.nanoTime();
+            try (Socket socket = new Socket()) {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port));
+                connections.increment();
+                Connection connection = new Connection(socket);
+
+                String greeting = connection.readLine();
+                if (greeting == null || !greeting.startsWith("HELLO")) {
+                    errors.get("HELLO").increment();
+                    continue;
+                }
+                latencies.get("HELLO").record(System.nanoTime() - begin);
+
+                if (directory != null) {
+                    connection.writeLine("CD " + directory);
+                    connection.readReply();
+                }
+                if (tables > 0) {
+                    timed(connection, "JOIN " + random.nextInt(tables), "JOIN");
+                }
+
+                boolean open = true;
+                int sent = 0;
+                while (open && System.nanoTime() < deadline
+                        && (reconnectEvery == 0 || sent < reconnectEvery)) {
+                    String request = pick(random);
+                    String command = name(request);
+                    open = timed(connection, request, command) && !command.equals("BYE");
+                    sent++;
+                    if (thinkMillis > 0) {
+                        Thread.sleep(thinkMillis);
+                    }
+                }
+                if (open) {
+                    timed(connection, "BYE", "BYE");
+                }
+            } catch (IOException e) {
+                // Could not connect or the greeting never arrived
+                errors.get("HELLO").increment();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run one request and record its latency, or an error against its
+     * command if it failed.
+     *
+     * @return false if the connection can no longer be used
+     */
+    private boolean timed(Connection connection, String request, String command) {
+        long start = System.nanoTime();
+        try {
+            if (execute(connection, request)) {
+                latencies.get(command).record(System.nanoTime() - start);
+            } else {
+                errors.get(command).increment();
+            }
+            return true;
+        } catch (IOException | NumberFormatException e) {
+            errors.get(command).increment();
+            return false;
+        }
+    }
+
+    /**
+     * Send one request and read its complete response.
+     *
+     * @return false if the server answered with an error
+     */
+    private boolean execute(Connection connection, String request) throws IOException {
+        switch (name(request)) {
+            case "BYE":
+                connection.writeLine("BYE");
+                // The server closes the connection once it has handled BYE
+                return connection.readReply() == null;
+            case "CD":
+                connection.writeLine(directory == null ? "CD ." : "CD " + directory);
+                String reply = connection.readReply();
+                return reply != null && !reply.equals("DDNE") && !reply.equals("PD");
+            case "DOWNLOAD":
+                connection.writeLine("DOWNLOAD " + file);
+                if (!"READY".equals(connection.readReply())) {
+                    return false;
+                }
+                connection.writeLine("READY");
+                String length = connection.readLine();
+                return length != null && connection.skip(Long.parseLong(length));
+            default:
+                // DIR, PWD and anything else answer with a single line
+                connection.writeLine(request);
+                String line = connection.readReply();
+                return line != null && !line.equals("Client Request Error.")
+                        && !line.equals("TABLE FULL") && !line.startsWith("MOVED#")
+                        && !line.equals("OUTCOME UNKNOWN");
+        }
+    }
+
+    private String pick(SplittableRandom random) {
+        int roll = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (roll < cumulativeWeights[i]) {
+                return mix[i];
+            }
+        }
+        return mix[mix.length - 1];
+    }
+
+    /**
+     * @return the command keyword of a request, used to group results
+     */
+    private static String name(String request) {
+        int space = request.indexOf(' ');
+        return (space < 0 ? request : request.substring(0, space)).toUpperCase();
+    }
+
+    private void report(double seconds) {
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %8s%n",
+                "command", "count", "p50 us", "p99 us", "p999 us", "max us", "errors");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            System.out.printf("%-10s %10d %10.1f %10.1f %10.1f %10.1f %8d%n",
+                    entry.getKey(), histogram.count(),
+                    histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+                    histogram.percentile(99.9) / 1e3, histogram.max() / 1e3,
+                    errors.get(entry.getKey()).sum());
+        }
+        System.out.printf("%.1f connections/s, %.2f MB/s received over %.1f s%n",
+                connections.sum() / seconds,
+                bytesReceived.sum() / seconds / (1024 * 1024), seconds);
+    }
+
+    /**
+     * A client socket with line reads that do not buffer past the line, so
+     * the raw DOWNLOAD body can follow on the same stream.
+     */
+    private class Connection {
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] lineBuffer = new byte[64 * 1024];
+        private final byte[] skipBuffer = new byte[64 * 1024];
+
+        Connection(Socket socket) throws IOException {
+            in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+            out = socket.getOutputStream();
+        }
+
+        void writeLine(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * @return the next line without its terminator, null at end of stream
+         */
+        String readLine() throws IOException {
+            int length = 0;
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                if (length < lineBuffer.length) {
+                    lineBuffer[length++] = (byte) b;
+                }
+            }
+            if (b == -1 && length == 0) {
+                return null;
+            }
+            bytesReceived.add(length + 1);
+            if (length > 0 && lineBuffer[length - 1] == '\r') {
+                length--;
+            }
+            return new String(lineBuffer, 0, length, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the next line that is not a table event pushed by the
+         * server, null at end of stream
+         */
+        String readReply() throws IOException {
+            String line;
+            do {
+                line = readLine();
+            } while (line != null && line.startsWith("EVENT#"));
+            return line;
+        }
+
+        /**
+         * Read and discard a DOWNLOAD body.
+         *
+         * @return false if the stream ended early
+         */
+        boolean skip(long length) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(skipBuffer, 0, (int) Math.min(skipBuffer.length, remaining));
+                if (read < 0) {
+                    return false;
+                }
+                remaining -= read;
+                bytesReceived.add(read);
+            }
+            return true;
+        }
+    }
+}
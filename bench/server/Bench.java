@@ -0,0 +1,110 @@
+package server;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.function.LongSupplier;
+
+/**
+ * Minimal microbenchmark harness. Runs an operation in timed iterations after
+ * a warm up and reports time and heap allocation per operation. Each result
+ * is consumed so the JIT cannot remove the work being measured.
+ */
+class Bench {
+
+    private static final int WARMUP_ITERATIONS = 5;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long ITERATION_NANOS = 1_000_000_000L;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so they are never dead code
+    static volatile long sink;
+
+    // Console captured before server logging is silenced
+    static final PrintStream out = System.out;
+
+    private Bench() {
+    }
+
+    /**
+     * Discard System.out so the server's per request logging does not end up
+     * in the results. Results are still printed through Bench.out.
+     */
+    static void silenceServerLogs() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    /**
+     * Measure an operation and print one result line.
+     *
+     * @param name      name printed in the results
+     * @param operation the work to measure, its result is consumed
+     * @return average nanoseconds per operation
+     */
+    static double measure(String name, LongSupplier operation) {
+        return measure(name, 64, operation);
+    }
+
+    /**
+     * Measure an operation and print one result line.
+     *
+     * @param name      name printed in the results
+     * @param batch     operations run between clock reads, 1 for slow operations
+     * @param operation the work to measure, its result is consumed
+     * @return average nanoseconds per operation
+     */
+    static double measure(String name, int batch, LongSupplier operation) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            iteration(batch, operation);
+        }
+
+        long operations = 0;
+        long nanos = 0;
+        long allocated = 0;
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+            long bytesBefore = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            long[] result = iteration(batch, operation);
+            allocated += threads.getThreadAllocatedBytes(Thread.currentThread().getId()) - bytesBefore;
+            operations += result[0];
+            nanos += result[1];
+        }
+
+        double nanosPerOp = (double) nanos / operations;
+        out.printf("%-48s %12.1f ns/op %14.0f ops/s %10.1f B/op%n",
+                name, nanosPerOp, 1e9 / nanosPerOp, (double) allocated / operations);
+        return nanosPerOp;
+    }
+
+    /**
+     * Run the operation for one iteration.
+     *
+     * @return operations performed and nanoseconds taken
+     */
+    private static long[] iteration(int batch, LongSupplier operation) {
+        long operations = 0;
+        long accumulator = 0;
+        long start = System.nanoTime();
+        long deadline = start + ITERATION_NANOS;
+        long now;
+        do {
+            // Check the clock in batches so it does not dominate short operations
+            for (int i = 0; i < batch; i++) {
+                accumulator += operation.getAsLong();
+            }
+            operations += batch;
+            now = System.nanoTime();
+        } while (now < deadline);
+        sink += accumulator;
+        return new long[]{operations, now - start};
+    }
+}
@@ -0,0 +1,71 @@
+package server;
+
+import java.io.OutputStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cost of a table action that pushes its event to every other seat, with
+ * and without one client that writes slowly, and how many pushed events
+ * were coalesced into each socket write.
+ */
+public class BroadcastBench {
+
+    public static void main(String[] args) {
+        Bench.silenceServerLogs();
+        Bench.out.println("Table event broadcast (" + Table.SEATS + " seats)");
+        run("round at full table", 0);
+        run("round at full table, one client 1 ms/write", 1);
+    }
+
+    private static void run(String name, long slowMillis) {
+        AtomicLong written = new AtomicLong();
+        Table table = new Table(0, Rules.STANDARD, new SplittableRandom(1));
+        Outbox[] outboxes = new Outbox[Table.SEATS];
+        for (int seat = 0; seat < Table.SEATS; seat++) {
+            long delay = seat == 0 ? slowMillis : 0;
+            Outbox outbox = new Outbox(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    written.incrementAndGet();
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    written.addAndGet(len);
+                }
+            }, () -> {
+            });
+            outboxes[seat] = outbox;
+            table.join(seat, outbox);
+        }
+
+        long offeredBefore = Outbox.offeredCount();
+        long writesBefore = Outbox.writeCount();
+        // One op is a round: every seat bets then stands, each action pushed to the other six
+        Bench.measure(name, 1, () -> {
+            for (int seat = 0; seat < Table.SEATS; seat++) {
+                if ("INVALID BET".equals(table.bet(seat, 1))) {
+                    table.leave(seat);
+                    table.join(seat, outboxes[seat]);
+                    table.bet(seat, 1);
+                }
+            }
+            for (int seat = 0; seat < Table.SEATS; seat++) {
+                table.stand(seat);
+            }
+            return written.get();
+        });
+        long offered = Outbox.offeredCount() - offeredBefore;
+        long writes = Outbox.writeCount() - writesBefore;
+        Bench.out.printf("%-48s %12d events %10d writes %6.1f events/write%n",
+                "  coalescing", offered, writes, (double) offered / Math.max(writes, 1));
+    }
+}
@@ -0,0 +1,109 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compares the original request parsing of ClientConnection.clientHandler()
+ * (readLine, split("\\s+") twice, toUpperCase, string switch) with
+ * CommandDecoder (reusable buffer, packed keyword table lookup).
+ */
+public class CommandParserBench {
+
+    // A mix of requests a chatty client sends
+    private static final String[] REQUESTS = {
+            "PWD",
+            "DIR",
+            "CD ..",
+            "cd assets",
+            "DOWNLOAD card_back.png",
+            "dir",
+            "HELLO there",
+            "BYE"
+    };
+
+    public static void main(String[] args) {
+        byte[][] lines = new byte[REQUESTS.length][];
+        StringBuilder stream = new StringBuilder();
+        for (int i = 0; i < REQUESTS.length; i++) {
+            lines[i] = REQUESTS[i].getBytes(StandardCharsets.US_ASCII);
+            stream.append(REQUESTS[i]).append("\r\n");
+        }
+        byte[] streamBytes = stream.toString().getBytes(StandardCharsets.US_ASCII);
+
+        Bench.out.println("Command parsing");
+
+        int[] next = {0};
+        Bench.measure("parse: split + toUpperCase + switch", () -> {
+            String rawInput = REQUESTS[next[0]++ & 7];
+            return legacyParse(rawInput);
+        });
+
+        CommandDecoder decoder = new CommandDecoder();
+        Bench.measure("parse: CommandDecoder table lookup", () -> {
+            byte[] line = lines[next[0]++ & 7];
+            decoder.decode(line, 0, line.length);
+            return decoder.command().ordinal();
+        });
+
+        // Includes framing the lines out of the socket stream
+        Bench.measure("read+parse: BufferedReader + split (8 lines)", () -> {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        new ByteArrayInputStream(streamBytes)));
+                long result = 0;
+                String rawInput;
+                while ((rawInput = reader.readLine()) != null) {
+                    result += legacyParse(rawInput);
+                }
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        Bench.measure("read+parse: CommandDecoder.readLine (8 lines)", () -> {
+            try {
+                CommandDecoder streamDecoder = new CommandDecoder(new ByteArrayInputStream(streamBytes));
+                long result = 0;
+                while (streamDecoder.readLine()) {
+                    result += streamDecoder.command().ordinal();
+                }
+                return result;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * The command parsing ClientConnection.clientHandler() used before
+     * CommandDecoder.
+     */
+    private static int legacyParse(String rawInput) {
+        String parsedCommand;
+        if (rawInput.split("\\s+").length >= 2) {
+            parsedCommand = rawInput.split("\\s+")[0];
+        } else {
+            parsedCommand = rawInput;
+        }
+        switch (parsedCommand.toUpperCase()) {
+            case "BYE":
+                return 0;
+            case "PWD":
+                return 1;
+            case "DIR":
+                return 2;
+            case "CD":
+                return 3;
+            case "DOWNLOAD":
+                return 4;
+            default:
+                return 6;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * DIR and CD hot paths: encoding directory listings of different sizes, with
+ * and without DirectoryCache, and resolving CD targets.
+ */
+public class DirectoryBench {
+
+    private static final int[] SIZES = {10, 1_000, 100_000};
+
+    public static void main(String[] args) throws IOException {
+        Bench.out.println("Directory listing");
+        for (int size : SIZES) {
+            Path directory = createDirectory(size);
+            try {
+                String path = directory.toString();
+                // Slow listings are timed one at a time
+                int batch = size >= 100_000 ? 1 : 64;
+                Bench.measure("getDirectory " + size + " entries", batch,
+                        () -> ClientConnection.getDirectory(path).length());
+                Bench.measure("DirectoryCache " + size + " entries", batch,
+                        () -> DirectoryCache.getDirectory(path).length());
+            } finally {
+                delete(directory);
+            }
+        }
+
+        Bench.out.println("Change directory");
+        Path root = Files.createTempDirectory("bench-cd");
+        try {
+            Files.createDirectories(root.resolve("assets").resolve("cards"));
+            File current = root.resolve("assets").toFile();
+            String absolute = root.resolve("assets").resolve("cards").toString();
+
+            Bench.measure("changeDirectory ..", () -> ClientConnection.changeDirectory("..", current).length());
+            Bench.measure("changeDirectory relative", () -> ClientConnection.changeDirectory("cards", current).length());
+            Bench.measure("changeDirectory absolute", () -> ClientConnection.changeDirectory(absolute, current).length());
+            Bench.measure("changeDirectory missing", () -> ClientConnection.changeDirectory("nope", current).length());
+        } finally {
+            delete(root);
+        }
+    }
+
+    /**
+     * Create a directory holding size entries, one in ten of them folders.
+     */
+    private static Path createDirectory(int size) throws IOException {
+        Path directory = Files.createTempDirectory("bench-dir");
+        byte[] contents = new byte[16];
+        for (int i = 0; i < size; i++) {
+            if (i % 10 == 0) {
+                Files.createDirectory(directory.resolve("folder" + i));
+            } else {
+                Files.write(directory.resolve("file" + i + ".dat"), contents);
+            }
+        }
+        return directory;
+    }
+
+    static void delete(Path root) throws IOException {
+        try (Stream<Path> paths = Files.walk(root)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
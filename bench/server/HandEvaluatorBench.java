@@ -0,0 +1,57 @@
+package server;
+
+import java.util.SplittableRandom;
+
+/**
+ * Dealing and scoring with the packed card and hand encoding, reported as
+ * hands evaluated per second, and basic strategy lookups.
+ */
+public class HandEvaluatorBench {
+
+    private static final int STREAM = 1 << 16; // Must be a power of two
+
+    private static int position = 0;
+
+    public static void main(String[] args) {
+        Bench.out.println("Hand evaluator");
+
+        SplittableRandom random = new SplittableRandom(42);
+        Shoe shoe = new Shoe(6, 1.0, random);
+        byte[] stream = new byte[STREAM];
+        for (int i = 0; i < STREAM; i++) {
+            stream[i] = shoe.deal();
+        }
+
+        // Two cards, hit to 17, then every property the table asks for
+        Bench.measure("deal and evaluate hand", () -> {
+            int p = position;
+            int hand = Hand.add(Hand.EMPTY, stream[p++ & (STREAM - 1)]);
+            hand = Hand.add(hand, stream[p++ & (STREAM - 1)]);
+            while (Hand.total(hand) < 17) {
+                hand = Hand.add(hand, stream[p++ & (STREAM - 1)]);
+            }
+            position = p;
+            return Hand.total(hand) + (Hand.isSoft(hand) ? 32 : 0)
+                    + (Hand.isBlackjack(hand) ? 64 : 0) + (Hand.isBust(hand) ? 128 : 0);
+        });
+
+        // The lookup behind HINT, cycling through every hand and upcard
+        Strategy strategy = Strategy.STANDARD;
+        Bench.measure("basic strategy decision", () -> {
+            int p = position++;
+            return strategy.decide(p & (Hand.KEYS - 1), 0, (p >>> 7) % 10 + 1, true, false, true).ordinal();
+        });
+
+        Shoe table = new Shoe(6, 0.75, random);
+        Bench.measure("shoe deal", () -> {
+            if (table.needsShuffle()) {
+                table.shuffle();
+            }
+            return table.deal();
+        });
+        Bench.measure("shoe shuffle", () -> {
+            table.shuffle();
+            return 1;
+        });
+    }
+}
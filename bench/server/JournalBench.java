@@ -0,0 +1,80 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+
+/**
+ * Cost of persistence: what a table pays to journal a change, which is the
+ * write latency a hand sees, and what a group commit costs the sync thread.
+ */
+public class JournalBench {
+
+    // Small segments, deleted as the benchmark goes, keep its disk use down
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+    private static final int DELETE_EVERY = 16 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        Path directory = Files.createTempDirectory("bench-journal");
+        Journal journal = new Journal(directory, 1, SEGMENT_SIZE, 5);
+
+        Table table = new Table(1, Rules.STANDARD, new SplittableRandom(7));
+        for (int seat = 0; seat < Table.SEATS; seat++) {
+            table.join(seat + 1);
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordOut = new DataOutputStream(record);
+
+        Bench.out.println("Journal");
+        // What Persistence.tableChanged() does after every change to a full table
+        Bench.measure("journal table change (7 seats)", () -> {
+            record.reset();
+            try {
+                table.writeSnapshot(recordOut);
+                return append(journal, record.toByteArray());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        byte[] payload = new byte[96];
+        Bench.measure("journal append 96 bytes", () -> append(journal, payload));
+        // One record per commit is the worst case, appends between syncs share one
+        Bench.measure("append and commit", 1, () -> {
+            long sequence = append(journal, payload);
+            journal.commit();
+            return sequence;
+        });
+
+        LatencyHistogram appends = journal.appendLatency();
+        LatencyHistogram syncs = journal.syncLatency();
+        Bench.out.printf("%-48s %12d ns p50 %10d ns p99 %10d ns p99.9%n", "  append latency",
+                appends.percentile(50), appends.percentile(99), appends.percentile(99.9));
+        Bench.out.printf("%-48s %12.0f us p50 %10.0f us p99 %10.0f us p99.9%n", "  sync latency",
+                syncs.percentile(50) / 1e3, syncs.percentile(99) / 1e3, syncs.percentile(99.9) / 1e3);
+
+        journal.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    private static long append(Journal journal, byte[] payload) {
+        try {
+            long sequence = journal.append(Persistence.TABLE, payload, 0, payload.length);
+            if (sequence % DELETE_EVERY == 0) {
+                journal.deleteBefore(sequence);
+            }
+            return sequence;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package server;
+
+/**
+ * Cost of the instrumentation: what every request pays to be timed and
+ * recorded, and what a metrics scrape costs the server.
+ */
+public class MetricsBench {
+
+    private static final Command[] COMMANDS = Command.values();
+
+    private static int position = 0;
+
+    public static void main(String[] args) {
+        Bench.out.println("Metrics");
+
+        // Both clock reads and the histogram update, as the client handlers do
+        Bench.measure("time and record request", () -> {
+            long started = System.nanoTime();
+            Command command = COMMANDS[position++ & 7];
+            long nanos = System.nanoTime() - started;
+            ServerMetrics.recordRequest(command, nanos);
+            return nanos;
+        });
+        Bench.measure("count bytes sent", () -> {
+            ServerMetrics.addBytesSent(4096);
+            return 1;
+        });
+        Bench.measure("scrape", () -> ServerMetrics.scrapeText().length());
+        Bench.measure("console summary", () -> ServerMetrics.summary().length());
+    }
+}
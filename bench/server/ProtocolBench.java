@@ -0,0 +1,198 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * End to end protocol paths through a real ClientConnection over loopback:
+ * request round trips in the text and binary protocols, which cover parsing
+ * and dispatch, DOWNLOAD throughput with and without zero copy, and
+ * DOWNLOAD of a popular file with and without the FileCache.
+ */
+public class ProtocolBench {
+
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int POPULAR_FILE_SIZE = 1024 * 1024;
+
+    public static void main(String[] args) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress("127.0.0.1", 0));
+        ServerSocket server = serverChannel.socket();
+
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    new Thread(new ClientConnection(server.accept())).start();
+                }
+            } catch (IOException e) {
+                // Server socket closed, benchmark finished
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        // ClientConnection logs every request, keep that out of the results
+        Bench.silenceServerLogs();
+
+        Path file = Files.createTempFile("bench-download", ".dat");
+        try (RandomAccessFile contents = new RandomAccessFile(file.toFile(), "rw")) {
+            contents.setLength(FILE_SIZE);
+        }
+
+        try (Socket socket = new Socket("127.0.0.1", server.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            BufferedReader lines = new BufferedReader(new InputStreamReader(in));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            lines.readLine(); // HELLO
+
+            Bench.out.println("Request round trip");
+            Bench.measure("round trip PWD", 1, () -> roundTrip(out, lines, "PWD"));
+            Bench.measure("round trip unknown command", 1, () -> roundTrip(out, lines, "NOPE"));
+            out.println("CD " + file.getParent());
+            lines.readLine();
+            Bench.measure("round trip CD .", 1, () -> roundTrip(out, lines, "CD " + file.getParent()));
+            Bench.measure("round trip DIR text", 1, () -> roundTrip(out, lines, "DIR"));
+            out.println("BYE");
+        }
+
+        // The same requests in the binary protocol
+        try (Socket socket = new Socket("127.0.0.1", server.getLocalPort())) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            readLine(in); // HELLO
+            out.println("CD " + file.getParent());
+            readLine(in);
+            out.println("BINARY");
+            readLine(in);
+
+            FrameEncoder frames = new FrameEncoder();
+            byte[] reply = new byte[1 << 20];
+            Bench.measure("round trip PWD binary", 1,
+                    () -> frameRoundTrip(frames.begin(Frame.PWD), socket, in, reply));
+            Bench.measure("round trip DIR binary", 1,
+                    () -> frameRoundTrip(frames.begin(Frame.DIR), socket, in, reply));
+            frames.begin(Frame.BYE).end();
+            frames.writeTo(socket.getOutputStream());
+        }
+
+        Bench.out.println("DOWNLOAD throughput (" + FILE_SIZE / (1024 * 1024) + " MB file)");
+        String directory = file.getParent().toString();
+        String fileName = file.getFileName().toString();
+        for (boolean zeroCopy : new boolean[]{true, false}) {
+            ClientConnection.zeroCopy = zeroCopy;
+            double nanos = Bench.measure("download " + (zeroCopy ? "transferTo" : "buffered copy"), 1,
+                    () -> download(server.getLocalPort(), directory, fileName));
+            Bench.out.printf("%-48s %12.0f MB/s%n", "  throughput", FILE_SIZE / (1024.0 * 1024.0) / (nanos / 1e9));
+        }
+        ClientConnection.zeroCopy = true;
+
+        Path popular = Files.createTempFile("bench-popular", ".dat");
+        try (RandomAccessFile contents = new RandomAccessFile(popular.toFile(), "rw")) {
+            contents.setLength(POPULAR_FILE_SIZE);
+        }
+        Bench.out.println("DOWNLOAD of a popular file (" + POPULAR_FILE_SIZE / 1024 + " KB)");
+        String popularName = popular.getFileName().toString();
+        for (boolean cached : new boolean[]{true, false}) {
+            FileCache.setCapacity(cached ? 64L * 1024 * 1024 : 0);
+            Bench.measure("download " + (cached ? "from FileCache" : "from disk"), 1,
+                    () -> download(server.getLocalPort(), directory, popularName));
+        }
+        FileCache.setCapacity(64L * 1024 * 1024);
+        Files.delete(popular);
+
+        Files.delete(file);
+        server.close();
+    }
+
+    private static long roundTrip(PrintWriter out, BufferedReader lines, String request) {
+        out.println(request);
+        try {
+            return lines.readLine().length();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Send the frame begun in the encoder and read back one reply frame.
+     *
+     * @return length of the reply
+     */
+    private static long frameRoundTrip(FrameEncoder frames, Socket socket,
+                                       DataInputStream in, byte[] reply) {
+        frames.end();
+        try {
+            frames.writeTo(socket.getOutputStream());
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = in.read();
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            in.readFully(reply, 0, length);
+            return length;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * One complete session: HELLO, CD, DOWNLOAD, body, BYE. Measures what the
+     * client sees including connection setup.
+     */
+    private static long download(int port, String directory, String fileName) {
+        byte[] buffer = new byte[256 * 1024];
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            readLine(in); // HELLO
+            out.println("CD " + directory);
+            readLine(in);
+            out.println("DOWNLOAD " + fileName);
+            readLine(in); // READY
+            out.println("READY");
+            long length = Long.parseLong(readLine(in));
+            long received = 0;
+            while (received < length) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, length - received));
+                if (read < 0) {
+                    break;
+                }
+                received += read;
+            }
+            out.println("BYE");
+            return received;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read a text line without buffering past it, the file body follows.
+     */
+    private static String readLine(DataInputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+}
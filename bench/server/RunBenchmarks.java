@@ -0,0 +1,22 @@
+package server;
+
+/**
+ * Runs every benchmark in the bench source root. Compare the output with
+ * bench/baseline.txt to spot regressions.
+ */
+public class RunBenchmarks {
+
+    public static void main(String[] args) throws Exception {
+        Bench.out.println("java " + System.getProperty("java.version") + ", "
+                + Runtime.getRuntime().availableProcessors() + " cpus, "
+                + System.getProperty("os.name"));
+        CommandParserBench.main(args);
+        DirectoryBench.main(args);
+        HandEvaluatorBench.main(args);
+        TableSchedulerBench.main(args);
+        BroadcastBench.main(args);
+        MetricsBench.main(args);
+        JournalBench.main(args);
+        ProtocolBench.main(args);
+    }
+}
@@ -0,0 +1,48 @@
+package server;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Rounds per second across many tables, for 1 up to one shard per core, to
+ * check that the sharded scheduler scales with cores.
+ */
+public class TableSchedulerBench {
+
+    private static final int TABLES = 5_000;
+
+    public static void main(String[] args) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        Bench.out.println("Table scheduler (" + TABLES + " tables, one player each)");
+
+        for (int shards = 1; shards <= cores; shards *= 2) {
+            TableScheduler scheduler = new TableScheduler(shards);
+            for (int table = 0; table < TABLES; table++) {
+                long session = table;
+                scheduler.call(table, t -> t.join(session));
+            }
+
+            // One op is a full round (bet, stand, settle) at every table
+            Bench.measure("rounds at " + TABLES + " tables, " + shards + " shards", 1, () -> {
+                CompletableFuture<?>[] rounds = new CompletableFuture<?>[TABLES];
+                for (int table = 0; table < TABLES; table++) {
+                    long session = table;
+                    rounds[table] = scheduler.submit(table, t -> {
+                        if ("INVALID BET".equals(t.bet(session, 1))) {
+                            // Out of chips, sit down again with a fresh stack
+                            t.leave(session);
+                            t.join(session);
+                            t.bet(session, 1);
+                        }
+                        t.stand(session);
+                        return t.state(session).length();
+                    });
+                }
+                CompletableFuture.allOf(rounds).join();
+                return rounds.length;
+            });
+            if (shards < cores && shards * 2 > cores) {
+                shards = cores / 2; // Make sure the last step uses every core
+            }
+        }
+    }
+}
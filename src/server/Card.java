@@ -0,0 +1,51 @@
+package server;
+
+/**
+ * Playing cards encoded as a single byte so shoes and hands can be held in
+ * primitive arrays. A card is suit * 13 + rank - 1, where rank runs from 1
+ * (ace) to 13 (king) and suit from 0 to 3, giving codes 0 to 51.
+ */
+final class Card {
+
+    static final int CODES = 52;
+
+    private static final String RANKS = "A23456789TJQK";
+    private static final String SUITS = "CDHS";
+
+    private Card() {
+    }
+
+    /**
+     * @param rank 1 (ace) to 13 (king)
+     * @param suit 0 to 3
+     * @return the card's code
+     */
+    static byte of(int rank, int suit) {
+        return (byte) (suit * 13 + rank - 1);
+    }
+
+    /**
+     * @return 1 (ace) to 13 (king)
+     */
+    static int rank(byte card) {
+        return card % 13 + 1;
+    }
+
+    static int suit(byte card) {
+        return card / 13;
+    }
+
+    /**
+     * @return blackjack value, aces count as 1 here and are promoted by Hand
+     */
+    static int value(byte card) {
+        return Math.min(rank(card), 10);
+    }
+
+    /**
+     * Append the two character name of a card, for example "AS" or "TD".
+     */
+    static StringBuilder append(StringBuilder out, byte card) {
+        return out.append(RANKS.charAt(card % 13)).append(SUITS.charAt(card / 13));
+    }
+}
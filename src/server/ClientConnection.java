@@ -2,6 +2,14 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * ClientConnection class is responsible for handling individual connections and
@@ -11,9 +19,37 @@ import java.net.Socket;
  */
 public class ClientConnection implements Runnable {
 
+    // Size of the buffer used by the copying DOWNLOAD fallback
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    // Size of each checksummed chunk sent in reply to RANGE
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Send DOWNLOAD bodies with FileChannel.transferTo when the socket has a
+    // channel. Turned off with the --buffered-download startup option.
+    static boolean zeroCopy = true;
+
+    // Source of session ids, used to identify players at a table
+    private static final AtomicLong nextSessionId = new AtomicLong();
+
+    // The ids of a cluster node's sessions start at its node number shifted
+    // left by this, so they are unique across the cluster, see Cluster
+    static final int NODE_SHIFT = 40;
+
     private final Socket client;
+    private long sessionId = nextSessionId.incrementAndGet(); // Replaced by RESUME
+    private volatile String resumeToken; // Given in the greeting, null if resumption is off
+    private boolean saidBye = false; // Ended by the client, so nothing to resume
+    private volatile boolean moved = false; // Its table was handed to another node
+    private int tableId = -1; // Table the client is seated at, -1 for none
+    // The client's working directory, starting in the program's directory
+    private volatile File currentDirectory = new File(System.getProperty("user.dir"));
     private PrintWriter outStream;
-    private BufferedReader inStream;
+    private CommandDecoder inStream;
+    private Outbox outbox; // Table events pushed to the client
+    private IdleReaper.Timer idleTimer; // Closes the session if the client goes quiet
+    private byte[] copyBuffer;
+    private ByteBuffer chunkBuffer;
 
     /**
      * Constructor. Takes the connected client socket as a parameter.
@@ -24,12 +60,157 @@ public class ClientConnection implements Runnable {
         this.client = client;
     }
 
+    /**
+     * Give new sessions ids from a cluster node's own range. Called before
+     * any session starts or is restored.
+     *
+     * @param node number of the node, from 1
+     */
+    static void setNodeNumber(int node) {
+        nextSessionId.set((long) node << NODE_SHIFT);
+    }
+
+    /**
+     * Make sure new sessions get ids above that of a session restored by
+     * Persistence. Ids from another node's range, of sessions handed over
+     * with their tables, cannot be taken here anyway.
+     *
+     * @param session id of a session in use
+     */
+    static void reserveSessionId(long session) {
+        nextSessionId.accumulateAndGet(session,
+                (next, id) -> (id >>> NODE_SHIFT) == (next >>> NODE_SHIFT) ? Math.max(next, id) : next);
+    }
+
     /**
      * Default method implemented by the Runnable interface. It gets called when a
      * new instance of ClientConnection is created. Starts clientHandler() function
+     * and makes sure the socket is closed however the session ends. A session
+     * that ends without BYE is parked so the client can resume it.
      */
     public void run() {
-        clientHandler();
+        SessionGauges.sessionOpened();
+        idleTimer = IdleReaper.watch(this::closeIdle);
+        try {
+            clientHandler();
+        } finally {
+            idleTimer.cancel();
+            Cluster.sessionEnded(sessionId);
+            if (moved) {
+                // The seat went with the table, the new node keeps the rest
+                Persistence.sessionClosed(sessionId);
+            } else if (resumeToken != null && !saidBye && !IdleReaper.isDraining() && hasState()) {
+                park();
+            } else {
+                leaveTable();
+                Persistence.sessionClosed(sessionId);
+            }
+            if (outbox != null) {
+                outbox.close();
+            }
+            // Close the client connection when finished.
+            try {
+                client.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing client connection", e);
+            }
+            SessionGauges.sessionClosed();
+        }
+    }
+
+    /**
+     * @return true if the session has a seat or directory worth resuming
+     */
+    private boolean hasState() {
+        return tableId >= 0 || !currentDirectory.getPath().equals(System.getProperty("user.dir"));
+    }
+
+    /**
+     * Keep the session's seat and directory for the client to resume, see
+     * Resumption. Its journal record is kept as well, so it can also be
+     * resumed after a restart.
+     */
+    private void park() {
+        if (tableId >= 0) {
+            TableScheduler.shared().call(tableId, table -> {
+                table.detach(sessionId);
+                return null;
+            });
+        }
+        Resumption.park(sessionId, resumeToken, tableId, currentDirectory.getPath());
+    }
+
+    /**
+     * Take over the state of a parked session: its id, directory and seat.
+     * Whatever this session had set up so far is given up.
+     *
+     * @param token token the client was greeted with on its earlier connection
+     * @return RESUMED#directory#table, the table -1 if not seated, or an error
+     */
+    private String resume(String token) {
+        Resumption.Parked parked = Resumption.claim(token);
+        if (parked == null) {
+            return "RESUME FAILED";
+        }
+        leaveTable();
+        Persistence.sessionClosed(sessionId);
+        Cluster.sessionEnded(sessionId);
+        sessionId = parked.session;
+        resumeToken = parked.token;
+        Cluster.sessionStarted(sessionId, this);
+        currentDirectory = new File(parked.directory);
+        if (parked.tableId >= 0
+                && TableScheduler.shared().call(parked.tableId, table -> table.reattach(sessionId, outbox))) {
+            tableId = parked.tableId;
+        }
+        saveSession();
+        ServerLog.info("Resumed session " + sessionId + " from " + client.getInetAddress());
+        return "RESUMED#" + currentDirectory.getPath() + "#" + tableId;
+    }
+
+    /**
+     * Called by the IdleReaper when the client has sent nothing for the idle
+     * timeout, or between requests once the server is draining. Closing the
+     * socket fails the blocked read in the handler, which then ends the
+     * session as usual.
+     */
+    private void closeIdle() {
+        ServerLog.info((IdleReaper.isDraining() ? "Shutting down" : "Closing idle")
+                + " connection from " + client.getInetAddress());
+        try {
+            client.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing client connection", e);
+        }
+    }
+
+    /**
+     * @return the token the session was greeted with, null for none
+     */
+    String resumeToken() {
+        return resumeToken;
+    }
+
+    /**
+     * @return the session's current directory
+     */
+    String directory() {
+        return currentDirectory.getPath();
+    }
+
+    /**
+     * Called by Cluster once the client's table has been handed to another
+     * node. Closing the socket ends the session without parking it, and the
+     * client or the ClusterRouter resumes it on the node that now has it.
+     */
+    void closeMoved() {
+        moved = true;
+        ServerLog.info("Table moved, closing connection from " + client.getInetAddress());
+        try {
+            client.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing client connection", e);
+        }
     }
 
     /**
@@ -40,99 +221,418 @@ public class ClientConnection implements Runnable {
     private void clientHandler() {
 
         boolean run = true;
-        // Initialize the current directory file to the program's directory
-        File currentDirectory = new File(System.getProperty("user.dir"));
-        String rawInput = ""; // Full client request
-        String parsedCommand = ""; // Command portion of client request
-
+        boolean binary = false; // Switch to binaryHandler() when the loop ends
 
         try {
             // Create server input and output streams
             outStream = new PrintWriter(client.getOutputStream(), true);
-            inStream = new BufferedReader(new InputStreamReader(client.getInputStream()));
+            inStream = new CommandDecoder(client.getInputStream());
+            outbox = new Outbox(client.getOutputStream(), client);
         } catch (IOException ex) {
-            System.err.println("Error Creating Input and Output Streams");
-            ex.printStackTrace();
+            ServerLog.error("Error Creating Input and Output Streams", ex);
         }
 
-        System.out.println(Thread.currentThread().getName() +
-                ": Client connection from " + client.getInetAddress());
+        ServerLog.info("Client connection from " + client.getInetAddress());
 
-        // Send client a message that they have successfully connected
-        outStream.println("HELLO");
+        // Send client a message that they have successfully connected, with
+        // the token it can later resume the session with
+        if (Resumption.isEnabled()) {
+            resumeToken = Resumption.newToken(sessionId);
+            outStream.println("HELLO#" + resumeToken);
+        } else {
+            outStream.println("HELLO");
+        }
+        Cluster.sessionStarted(sessionId, this);
 
         // Loop until client chooses to exit
         while (run) {
             try {
-                rawInput = inStream.readLine();
-
-                // Get the command token (first word) from user input
-                if (rawInput.split("\\s+").length >= 2) {
-                    parsedCommand = rawInput.split("\\s+")[0];
-                } else {
-                    parsedCommand = rawInput;
+                // Read the next request and decode its command token (first word)
+                if (!inStream.readLine()) {
+                    ServerLog.info("Client closed the connection from " + client.getInetAddress());
+                    break;
                 }
-
             } catch (IOException ex) {
-                System.err.println("Error Reading From Input Stream. Closing " +
-                        "connection");
-                ex.printStackTrace();
+                if (idleTimer.isExpired() || moved) {
+                    break; // Closed by the reaper or Cluster, already logged
+                }
+                ServerLog.error("Error Reading From Input Stream. Closing " +
+                        "connection", ex);
                 break;
             }
 
-            switch (parsedCommand.toUpperCase()) {
-                case "BYE":
-                    System.out.println(Thread.currentThread().getName() +
-                            ": BYE Received - Closing connection from " + client.getInetAddress());
+            // DOWNLOAD and RANGE read the client's READY, which replaces the
+            // decoded command, so keep it for the latency histogram
+            Command command = inStream.command();
+            long started = System.nanoTime();
+            // A request in progress is never cut off by the reaper or a shutdown
+            idleTimer.setBusy(true);
 
-                    run = false; // break out of loop
-                    break;
-                case "PWD":
-                    System.out.println(Thread.currentThread().getName() +
-                            ": PWD Received");
-                    outStream.println(currentDirectory.getPath()); // send file's current path
-                    break;
-                case "DIR":
-                    System.out.println(Thread.currentThread().getName() +
-                            ": DIR Received");
-                    outStream.println(getDirectory(currentDirectory.getPath()));
-                    break;
-                case "CD":
-                    System.out.println(Thread.currentThread().getName() +
-                            ": CD Received");
+            // Replies must not interleave with events pushed to this client
+            ReentrantLock writeLock = outbox.writeLock();
+            writeLock.lock();
+            try {
+                switch (command) {
+                    case BYE:
+                        ServerLog.info("BYE Received - Closing connection from " + client.getInetAddress());
 
-                    // Attempt to change directory and store output in String
-                    String output = changeDirectory(rawInput, currentDirectory);
+                        saidBye = true;
+                        run = false; // break out of loop
+                        break;
+                    case PWD:
+                        ServerLog.debug("PWD Received");
+                        outStream.println(currentDirectory.getPath()); // send file's current path
+                        break;
+                    case DIR:
+                        ServerLog.debug("DIR Received");
+                        outStream.println(DirectoryCache.getDirectory(currentDirectory.getPath()));
+                        break;
+                    case CD:
+                        ServerLog.debug("CD Received");
 
-                    // There was an error navigating to new directory
-                    if (!output.equals("DDNE") && !output.equals("PD")) {
-                        currentDirectory = new File(output);
-                    }
+                        // Attempt to change directory and store output in String
+                        String output = changeDirectory(inStream.argument(), currentDirectory);
 
-                    // Send the function response string regardless, the client will handle
-                    // displaying the error codes to the user
-                    outStream.println(output);
-                    break;
-                case "DOWNLOAD":
-                    System.out.println(Thread.currentThread().getName() +
-                            ": DOWNLOAD Received");
-                    sendFile(rawInput, currentDirectory, outStream, inStream);
-                    break;
-                default:
-                    outStream.println("Client Request Error.");
-                    System.out.println(Thread.currentThread().getName() +
-                            ": Client sent invalid command");
+                        // There was an error navigating to new directory
+                        if (!output.equals("DDNE") && !output.equals("PD")) {
+                            currentDirectory = new File(output);
+                            saveSession();
+                        }
+
+                        // Send the function response string regardless, the client will handle
+                        // displaying the error codes to the user
+                        outStream.println(output);
+                        break;
+                    case DOWNLOAD:
+                        ServerLog.debug("DOWNLOAD Received");
+                        if (!sendFile(inStream.argument(), currentDirectory, outStream, inStream)) {
+                            run = false;
+                        }
+                        break;
+                    case RANGE:
+                        ServerLog.debug("RANGE Received");
+                        if (!sendRange(currentDirectory, outStream, inStream)) {
+                            run = false;
+                        }
+                        break;
+                    case JOIN:
+                    case LEAVE:
+                    case BET:
+                    case HIT:
+                    case STAND:
+                    case DOUBLE:
+                    case STATE:
+                    case HINT:
+                        ServerLog.debug(command + " Received");
+                        outStream.println(playTable(command, inStream.argument()));
+                        break;
+                    case RESUME:
+                        ServerLog.debug("RESUME Received");
+                        outStream.println(resume(inStream.argument()));
+                        break;
+                    case ADOPT:
+                        ServerLog.debug("ADOPT Received");
+                        // Only the other nodes of the cluster hand over tables
+                        if (Cluster.isPeer(client.getInetAddress())) {
+                            outStream.println(Cluster.adopt(inStream.argument()));
+                        } else {
+                            outStream.println("Client Request Error.");
+                        }
+                        break;
+                    case BINARY:
+                        ServerLog.debug("BINARY Received");
+                        outStream.println("BINARY");
+                        outbox.switchToBinary();
+                        binary = true;
+                        run = false;
+                        break;
+                    default:
+                        outStream.println("Client Request Error.");
+                        ServerLog.debug("Client sent invalid command");
+                }
+            } finally {
+                writeLock.unlock();
+                outbox.resume();
+                idleTimer.setBusy(false);
+                ServerMetrics.recordRequest(command, System.nanoTime() - started);
             }
         }
 
-        // Close the client connection when finished.
+        if (binary) {
+            binaryHandler();
+        }
+    }
+
+    /**
+     * Serve the rest of the session in the binary protocol, see Frame.
+     * Mirrors the command switch in clientHandler(). A frame that cannot be
+     * decoded ends the session like a failed read.
+     */
+    private void binaryHandler() {
+        FrameDecoder frames = new FrameDecoder(inStream.remainingInput());
+        FrameEncoder out = new FrameEncoder();
+
         try {
-            client.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+            OutputStream bytesOut = client.getOutputStream();
+            while (frames.readFrame()) {
+                Command command = frames.command();
+                long started = System.nanoTime();
+                idleTimer.setBusy(true);
+                ReentrantLock writeLock = outbox.writeLock();
+                writeLock.lock();
+                try {
+                    switch (command) {
+                        case BYE:
+                            ServerLog.info("BYE Received - Closing connection from " + client.getInetAddress());
+                            saidBye = true;
+                            return;
+                        case PWD:
+                            ServerLog.debug("PWD Received");
+                            out.begin(Frame.TEXT).writeString(currentDirectory.getPath()).end();
+                            break;
+                        case DIR:
+                            ServerLog.debug("DIR Received");
+                            byte[] listing = DirectoryCache.getEncodedDirectory(currentDirectory.getPath());
+                            out.begin(Frame.LISTING).writeBytes(listing, 0, listing.length).end();
+                            break;
+                        case CD:
+                            ServerLog.debug("CD Received");
+                            String output = changeDirectory(frames.readString(), currentDirectory);
+                            if (output.equals("DDNE") || output.equals("PD")) {
+                                writeError(out, output);
+                            } else {
+                                currentDirectory = new File(output);
+                                saveSession();
+                                out.begin(Frame.TEXT).writeString(output).end();
+                            }
+                            break;
+                        case DOWNLOAD:
+                            ServerLog.debug("DOWNLOAD Received");
+                            sendFileFrames(frames.readString(), currentDirectory, out, bytesOut);
+                            break;
+                        case RANGE:
+                            ServerLog.debug("RANGE Received");
+                            long offset = frames.readVarint();
+                            long count = frames.readSignedVarint();
+                            sendRangeFrames(frames.readString(), offset, count, currentDirectory, out, bytesOut);
+                            break;
+                        case JOIN:
+                        case LEAVE:
+                        case BET:
+                        case HIT:
+                        case STAND:
+                        case DOUBLE:
+                        case STATE:
+                        case HINT:
+                            ServerLog.debug(command + " Received");
+                            playTableFrames(command, frames, out);
+                            break;
+                        default:
+                            writeError(out, "Client Request Error.");
+                            ServerLog.debug("Client sent invalid opcode " + frames.opcode());
+                    }
+                    out.writeTo(bytesOut);
+                } finally {
+                    writeLock.unlock();
+                    outbox.resume();
+                    idleTimer.setBusy(false);
+                    ServerMetrics.recordRequest(command, System.nanoTime() - started);
+                }
+            }
+            ServerLog.info("Client closed the connection from " + client.getInetAddress());
+        } catch (IOException ex) {
+            if (!idleTimer.isExpired() && !moved) {
+                ServerLog.error("Error in binary session. Closing connection", ex);
+            }
         }
     }
 
+    private static void writeError(FrameEncoder out, String code) {
+        out.begin(Frame.ERROR).writeString(code).end();
+    }
+
+    /**
+     * Binary protocol counterpart of playTable(). Table state is encoded
+     * straight into the connection's encoder on the table's shard thread,
+     * this thread waits for it to finish before touching the encoder again.
+     *
+     * @param command one of the table commands
+     * @param frames  decoder holding the request's fields
+     * @param out     encoder the reply is added to
+     */
+    private void playTableFrames(Command command, FrameDecoder frames, FrameEncoder out) throws IOException {
+        TableScheduler scheduler = TableScheduler.shared();
+
+        if (command == Command.JOIN) {
+            long requested = frames.readVarint();
+            // A 10 byte varint decodes negative
+            if (requested < 0 || requested > Integer.MAX_VALUE) {
+                writeError(out, "INVALID TABLE");
+                return;
+            }
+            String owner = Cluster.ownerOf((int) requested);
+            if (owner != null) {
+                writeError(out, "MOVED#" + owner);
+                return;
+            }
+            leaveTable();
+            int seat = scheduler.call((int) requested, table -> table.join(sessionId, outbox));
+            if (seat < 0) {
+                writeError(out, "TABLE FULL");
+                return;
+            }
+            tableId = (int) requested;
+            saveSession();
+            scheduler.call(tableId, table -> writeStateOr(table, null, out));
+            return;
+        }
+
+        if (tableId < 0) {
+            writeError(out, "NOT SEATED");
+            return;
+        }
+        switch (command) {
+            case LEAVE:
+                leaveTable();
+                out.begin(Frame.TEXT).writeString("LEFT").end();
+                break;
+            case BET:
+                long bet = frames.readVarint();
+                // Out of range bets become 0, which the table rejects
+                int amount = bet < 0 || bet > Integer.MAX_VALUE ? 0 : (int) bet;
+                scheduler.call(tableId, table -> writeStateOr(table, table.bet(sessionId, amount), out));
+                break;
+            case HIT:
+                scheduler.call(tableId, table -> writeStateOr(table, table.hit(sessionId), out));
+                break;
+            case STAND:
+                scheduler.call(tableId, table -> writeStateOr(table, table.stand(sessionId), out));
+                break;
+            case DOUBLE:
+                scheduler.call(tableId, table -> writeStateOr(table, table.doubleDown(sessionId), out));
+                break;
+            case HINT:
+                scheduler.call(tableId, table -> {
+                    String error = table.turnError(sessionId);
+                    if (error != null) {
+                        writeError(out, error);
+                    } else {
+                        out.begin(Frame.ADVICE).writeByte(table.suggestion().ordinal()).end();
+                    }
+                    return null;
+                });
+                break;
+            default:
+                scheduler.call(tableId, table -> writeStateOr(table, null, out));
+        }
+    }
+
+    /**
+     * @param error result of a table action, null if it succeeded
+     * @return nothing, for use as a TableScheduler action
+     */
+    private Void writeStateOr(Table table, String error, FrameEncoder out) {
+        if (error != null) {
+            writeError(out, error);
+        } else {
+            table.writeState(sessionId, out);
+        }
+        return null;
+    }
+
+    /**
+     * Handle a blackjack command. The work is run on the shard that owns the
+     * client's table, this thread only waits for the reply.
+     *
+     * @param command  one of the table commands
+     * @param argument table number for JOIN, amount for BET, otherwise unused
+     * @return reply to send to the client
+     */
+    private String playTable(Command command, String argument) {
+        TableScheduler scheduler = TableScheduler.shared();
+
+        if (command == Command.JOIN) {
+            int requested;
+            try {
+                requested = Integer.parseInt(argument);
+            } catch (NumberFormatException ex) {
+                return "INVALID TABLE";
+            }
+            if (requested < 0) {
+                return "INVALID TABLE";
+            }
+            // In a cluster the client is sent to the node hosting the table
+            String owner = Cluster.ownerOf(requested);
+            if (owner != null) {
+                return "MOVED#" + owner;
+            }
+            leaveTable();
+            int seat = scheduler.call(requested, table -> table.join(sessionId, outbox));
+            if (seat < 0) {
+                return "TABLE FULL";
+            }
+            tableId = requested;
+            saveSession();
+            return scheduler.call(tableId, table -> table.state(sessionId));
+        }
+
+        if (tableId < 0) {
+            return "NOT SEATED";
+        }
+        switch (command) {
+            case LEAVE:
+                leaveTable();
+                return "LEFT";
+            case BET:
+                int amount;
+                try {
+                    amount = Integer.parseInt(argument);
+                } catch (NumberFormatException ex) {
+                    return "INVALID BET";
+                }
+                return scheduler.call(tableId, table -> stateOr(table, table.bet(sessionId, amount)));
+            case HIT:
+                return scheduler.call(tableId, table -> stateOr(table, table.hit(sessionId)));
+            case STAND:
+                return scheduler.call(tableId, table -> stateOr(table, table.stand(sessionId)));
+            case DOUBLE:
+                return scheduler.call(tableId, table -> stateOr(table, table.doubleDown(sessionId)));
+            case HINT:
+                return scheduler.call(tableId, table -> table.hint(sessionId));
+            default:
+                return scheduler.call(tableId, table -> table.state(sessionId));
+        }
+    }
+
+    /**
+     * @param error result of a table action, null if it succeeded
+     * @return the error, or the table state if there was none
+     */
+    private String stateOr(Table table, String error) {
+        return error != null ? error : table.state(sessionId);
+    }
+
+    /**
+     * Give up the client's seat, if it has one.
+     */
+    private void leaveTable() {
+        if (tableId >= 0) {
+            TableScheduler.shared().call(tableId, table -> {
+                table.leave(sessionId);
+                return null;
+            });
+            tableId = -1;
+            saveSession();
+        }
+    }
+
+    /**
+     * Record the session's directory and table, see Persistence.
+     */
+    private void saveSession() {
+        Persistence.sessionChanged(sessionId, tableId, currentDirectory.getPath(), resumeToken);
+    }
+
     /**
      * Display the contents of the clients current working directory.
      * Separates the results by file and folder. Users can download files and enter
@@ -147,60 +647,116 @@ public class ClientConnection implements Runnable {
      * The client will be responsible for parsing the tokens and
      * formatting the output.
      */
-    private String getDirectory(String directory) {
+    static String getDirectory(String directory) {
         File folder = new File(directory);
         File[] directoryListing = folder.listFiles();
-        StringBuilder output = new StringBuilder();
 
     /* Build a new string with files at the top and directories at the
        bottom. Delimit each entry with a "#" character. The client will
        parse the tokens from the long string that the server sends. Each
        directory item has a total of 3 different details about it.
     */
-        if (directoryListing != null) {
-            for (File file : directoryListing) {
-                if (file.isFile()) {
-                    // Put all the files before the folder listings
-                    output.insert(0, "File#" +
-                            +file.length() +
-                            "#" + file.getName() + "#");
-                } else if (file.isDirectory()) {
-                    output.append("Folder");
-                    output.append("#");
-                    output.append("-");
-                    output.append("#");
-                    output.append(file.getName());
-                    output.append("#");
-                }
+        if (directoryListing == null) {
+            return "";
+        }
+
+        StringBuilder output = new StringBuilder(directoryListing.length * 32);
+        boolean[] isFolder = new boolean[directoryListing.length];
+
+        // Files are listed last to first, the order the client has always
+        // received them in, so walk the listing backwards for them
+        for (int i = directoryListing.length - 1; i >= 0; i--) {
+            File file = directoryListing[i];
+            if (file.isFile()) {
+                output.append("File#")
+                        .append(file.length())
+                        .append('#')
+                        .append(file.getName())
+                        .append('#');
+            } else {
+                isFolder[i] = file.isDirectory();
             }
+        }
 
-            // If length is 0, the folder was empty
-            if (output.length() == 0) {
-                output.append("EMPTY");
+        // Then the folders in listing order
+        for (int i = 0; i < directoryListing.length; i++) {
+            if (isFolder[i]) {
+                output.append("Folder#-#")
+                        .append(directoryListing[i].getName())
+                        .append('#');
             }
         }
 
+        // If length is 0, the folder was empty
+        if (output.length() == 0) {
+            output.append("EMPTY");
+        }
+
         return output.toString();
     }
 
     /**
-     * Reads the client request and parses the new directory path given. Makes sure
+     * Binary protocol counterpart of getDirectory(). Lists the same entries
+     * in the same order as the fields of a Frame.LISTING frame: a varint
+     * count, then per entry a byte (0 file, 1 folder), a varint size (0 for
+     * folders) and the name. A directory that cannot be listed has no entries.
+     *
+     * @param directory absolute path String to a file directory
+     * @return the encoded fields
+     */
+    static byte[] encodeDirectory(String directory) {
+        File[] directoryListing = new File(directory).listFiles();
+        FrameEncoder out = new FrameEncoder();
+        if (directoryListing == null) {
+            return out.writeVarint(0).toByteArray();
+        }
+
+        boolean[] isFile = new boolean[directoryListing.length];
+        boolean[] isFolder = new boolean[directoryListing.length];
+        int count = 0;
+        for (int i = 0; i < directoryListing.length; i++) {
+            isFile[i] = directoryListing[i].isFile();
+            isFolder[i] = !isFile[i] && directoryListing[i].isDirectory();
+            if (isFile[i] || isFolder[i]) {
+                count++;
+            }
+        }
+
+        out.writeVarint(count);
+        // Files last to first, then folders in listing order, as in text
+        for (int i = directoryListing.length - 1; i >= 0; i--) {
+            if (isFile[i]) {
+                out.writeByte(0).writeVarint(directoryListing[i].length())
+                        .writeString(directoryListing[i].getName());
+            }
+        }
+        for (int i = 0; i < directoryListing.length; i++) {
+            if (isFolder[i]) {
+                out.writeByte(1).writeVarint(0).writeString(directoryListing[i].getName());
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Resolves the new directory path given by the client. Makes sure
      * that the given path exists, is a directory, and the server has read permissions
      * Return the path if success, otherwise return an error code.
      *
-     * @param rawInput         the entire request string from the client
+     * @param targetDir        the requested directory, the request without "CD"
      * @param currentDirectory the server's current working directory for the client
      * @return Returns the new file's absolute path on success.
      * Returns "PD" if user does not have read permissions
      * Returns "DDNE" if the directory doesn't exist
      */
-    private String changeDirectory(String rawInput,
-                                   File currentDirectory) {
+    static String changeDirectory(String targetDir,
+                                  File currentDirectory) {
         File newFilePath;
 
-        //Create a new string excluding the "CD" part of the array
-        String targetDir = rawInput.substring(rawInput.indexOf(" ")).trim();
-
+        // No directory given
+        if (targetDir.isEmpty()) {
+            return "DDNE";
+        }
 
         //Go up a level to parent directory
         if (targetDir.equals("..")) {
@@ -224,27 +780,40 @@ public class ClientConnection implements Runnable {
         return "DDNE";
     }
 
+    /**
+     * Wait for the client to confirm a DOWNLOAD or RANGE with READY. The
+     * client may take its time, so the session counts as idle meanwhile.
+     *
+     * @param inStream data input stream from the client
+     * @return true if the client sent READY
+     * @throws IOException if the read fails
+     */
+    private boolean awaitReady(CommandDecoder inStream) throws IOException {
+        idleTimer.setBusy(false);
+        try {
+            return inStream.readLine() && inStream.lineEquals("READY");
+        } finally {
+            idleTimer.setBusy(true);
+        }
+    }
+
     /**
      * Send a file to the connected client. Client must send the filename. Server
      * checks if the filename exists, sends READY, client confirms the download,
      * sends READY, server sends the file size, client receives the file size.
-     * Server starts sending the file in 1mb chunks. Client receives data.
+     * Server then sends the file contents. Client receives data.
      *
-     * @param rawInput  - The entire input string received from the Client
+     * @param fileName  - The requested file name, the request without "DOWNLOAD"
      * @param directory - The client's current working director
      * @param outStream - Data output stream to the client
      * @param inStream  - Data input stream from the client
+     * @return false if the transfer broke off after the length was sent, so
+     * the client is out of step and the session must end
      */
-    private void sendFile(String rawInput, File directory,
-                          PrintWriter outStream, BufferedReader inStream) {
+    private boolean sendFile(String fileName, File directory,
+                          PrintWriter outStream, CommandDecoder inStream) {
 
-        // Create a new string excluding the command
-        String fileName = rawInput.substring(rawInput.indexOf(" ")).trim();
-
-        BufferedInputStream fileReader = null;
-        OutputStream bytesOut;
-        int bytesSent;
-        byte[] buffer = new byte[1000000]; // Can transfer 1mb at a time
+        FileInputStream fileReader = null;
 
         // Set file to the filename the user gives in their request
         File file = new File(directory, fileName);
@@ -252,49 +821,412 @@ public class ClientConnection implements Runnable {
     /* Make sure that given file exists, is a file not a directory, and the
        server has read permissions for the file */
         if (file.isFile() && file.exists() && file.canRead()) {
-            try {
-                // Create a new stream to read from source file
-                fileReader = new BufferedInputStream(new FileInputStream(file));
-
-            } catch (FileNotFoundException e) {
-                System.err.println("Could not create file reader stream");
-                e.printStackTrace();
-            }
-
             // Tell the client that the server is ready to send the file
             outStream.println("READY");
 
             try {
                 // Get client response after sending "READY"
-                if (inStream.readLine().equals("READY")) {
-                    bytesOut = client.getOutputStream();
+                if (awaitReady(inStream)) {
+                    // Popular files are sent from memory shared by all sessions
+                    ByteBuffer cached = FileCache.get(file);
+                    if (cached != null) {
+                        outStream.println(cached.remaining());
+                        writeCached(cached, socketOrStream(client.getOutputStream()));
+                        ServerLog.debug(file.getName() + " sent to client from cache");
+                        return true;
+                    }
+
+                    try {
+                        // Create a new stream to read from source file
+                        fileReader = new FileInputStream(file);
+                    } catch (FileNotFoundException e) {
+                        ServerLog.error("Could not create file reader stream", e);
+                    }
+                    long length = file.length();
 
                     // Send the file length before sending the file
-                    outStream.println(file.length());
+                    outStream.println(length);
 
                     // Make sure fileReader stream has been initialized before reading
                     if (fileReader != null) {
-                        // Keep reading from file and sending to client until all data is sent or error
-                        while ((bytesSent = fileReader.read(buffer, 0, buffer.length)) != -1) {
-                            bytesOut.write(buffer, 0, bytesSent);
+                        SocketChannel socketChannel = client.getChannel();
+                        if (zeroCopy && socketChannel != null) {
+                            transferFile(fileReader.getChannel(), length, socketChannel);
+                        } else {
+                            copyFile(fileReader, length, client.getOutputStream());
                         }
 
-                        System.out.println(Thread.currentThread().getName() + ": "
-                                + file.getName() + " sent to client");
-                        fileReader.close(); // Close the file input stream
-                        bytesOut.flush();   // Flush the data output stream
+                        ServerLog.debug(file.getName() + " sent to client");
                     }
 
                 } else {
-                    System.out.println("\tClient has aborted the download");
+                    ServerLog.debug("Client has aborted the download");
                 }
+            } catch (EOFException e) {
+                // The client waits for bytes that will never come
+                ServerLog.warn(file.getName() + " shrank during transfer. Closing connection");
+                return false;
             } catch (IOException e) {
-                System.err.println("Download command could not get client response.");
-                e.printStackTrace();
+                ServerLog.error("Download command could not get client response.", e);
+            } finally {
+                // Release the file whether or not the transfer completed
+                if (fileReader != null) {
+                    try {
+                        fileReader.close();
+                    } catch (IOException e) {
+                        ServerLog.error("Error closing file reader stream", e);
+                    }
+                }
             }
         } else {
             outStream.println("FNF");
         }
+        return true;
     }
-}
 
+    /**
+     * Binary protocol counterpart of sendFile(). No handshake is needed: the
+     * reply is a Frame.FILE frame with the size, then the data in DATA frames
+     * of up to CHUNK_SIZE bytes, or an ERROR frame "FNF".
+     *
+     * @param fileName  the requested file name
+     * @param directory the client's current working directory
+     * @param out       encoder for the client, frames queued in it go first
+     * @param bytesOut  output stream of the client socket
+     * @throws IOException if the file or socket fails mid transfer
+     */
+    private void sendFileFrames(String fileName, File directory,
+                                FrameEncoder out, OutputStream bytesOut) throws IOException {
+        File file = new File(directory, fileName);
+        if (!(file.isFile() && file.canRead())) {
+            writeError(out, "FNF");
+            return;
+        }
+
+        ByteBuffer cached = FileCache.get(file);
+        if (cached != null) {
+            int length = cached.remaining();
+            out.begin(Frame.FILE).writeVarint(length).end();
+            WritableByteChannel socket = socketOrStream(bytesOut);
+            for (int position = 0; position < length; position += CHUNK_SIZE) {
+                int chunk = Math.min(CHUNK_SIZE, length - position);
+                out.header(Frame.DATA, chunk);
+                out.writeTo(bytesOut);
+                cached.limit(position + chunk).position(position);
+                while (cached.hasRemaining()) {
+                    socket.write(cached);
+                }
+            }
+            ServerMetrics.addBytesSent(length);
+            ServerLog.debug(file.getName() + " sent to client from cache");
+            return;
+        }
+
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            long length = fileChannel.size();
+            out.begin(Frame.FILE).writeVarint(length).end();
+
+            WritableByteChannel socket = socketOrStream(bytesOut);
+            long position = 0;
+            while (position < length) {
+                long chunk = Math.min(CHUNK_SIZE, length - position);
+                out.header(Frame.DATA, chunk);
+                out.writeTo(bytesOut);
+                long end = position + chunk;
+                while (position < end) {
+                    long sent = fileChannel.transferTo(position, end - position, socket);
+                    if (sent <= 0 && position >= fileChannel.size()) {
+                        // The frame was promised in full, the stream cannot recover
+                        throw new EOFException("File shrank during transfer");
+                    }
+                    position += sent;
+                }
+            }
+            ServerMetrics.addBytesSent(length);
+            ServerLog.debug(file.getName() + " sent to client");
+        }
+    }
+
+    /**
+     * @param bytesOut output stream of the client socket
+     * @return channel to write file contents to the client through, the
+     * socket's own channel when zero copy is on and the socket has one
+     */
+    private WritableByteChannel socketOrStream(OutputStream bytesOut) {
+        SocketChannel socketChannel = client.getChannel();
+        return zeroCopy && socketChannel != null ? socketChannel : Channels.newChannel(bytesOut);
+    }
+
+    /**
+     * Send a file's contents from the FileCache. A socket channel writes
+     * straight from the cache's memory, without a copy on the heap.
+     *
+     * @param data   view of the cached contents, consumed
+     * @param socket channel of the client socket
+     * @throws IOException if the socket fails mid transfer
+     */
+    static void writeCached(ByteBuffer data, WritableByteChannel socket) throws IOException {
+        long length = data.remaining();
+        while (data.hasRemaining()) {
+            socket.write(data);
+        }
+        ServerMetrics.addBytesSent(length);
+    }
+
+    /**
+     * Zero copy transfer. The kernel moves the file straight to the socket
+     * (sendfile on Linux) without the data passing through the Java heap.
+     *
+     * @param file   channel of the file being downloaded
+     * @param length number of bytes announced to the client
+     * @param socket blocking channel of the client socket
+     * @throws IOException if the file or socket fails mid transfer
+     */
+    static void transferFile(FileChannel file, long length,
+                             WritableByteChannel socket) throws IOException {
+        long position = 0;
+        // transferTo may send less than asked for, keep going until done
+        while (position < length) {
+            long sent = file.transferTo(position, length - position, socket);
+            if (sent <= 0 && position >= file.size()) {
+                // The length was promised in full, the stream cannot recover
+                ServerMetrics.addBytesSent(position);
+                throw new EOFException("File shrank during transfer");
+            }
+            position += sent;
+        }
+        ServerMetrics.addBytesSent(position);
+    }
+
+    /**
+     * Buffered fallback used when the socket has no channel or zero copy is
+     * turned off. Reuses one buffer per connection instead of allocating a new
+     * one for every download.
+     *
+     * @param fileReader stream of the file being downloaded
+     * @param length     number of bytes announced to the client
+     * @param bytesOut   output stream of the client socket
+     * @throws IOException if the file or socket fails mid transfer
+     */
+    private void copyFile(InputStream fileReader, long length, OutputStream bytesOut) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = new byte[COPY_BUFFER_SIZE];
+        }
+
+        // Keep reading from file and sending to client until the announced length is sent
+        long remaining = length;
+        while (remaining > 0) {
+            int bytesSent = fileReader.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (bytesSent == -1) {
+                bytesOut.flush();
+                throw new EOFException("File shrank during transfer");
+            }
+            bytesOut.write(copyBuffer, 0, bytesSent);
+            ServerMetrics.addBytesSent(bytesSent);
+            remaining -= bytesSent;
+        }
+        bytesOut.flush();   // Flush the data output stream
+    }
+
+    /**
+     * Send part of a file so an interrupted download can be resumed. The
+     * request is "RANGE offset count filename", a count of -1 means up to the
+     * end of the file. Uses the same READY / READY handshake as DOWNLOAD, then
+     * the server sends a header line "offset count fileSize chunkSize". The
+     * data follows in chunks of chunkSize bytes (the last may be shorter),
+     * each followed by a line holding the chunk's CRC32C in hex. A client
+     * resumes by asking again from the end of the last chunk that verified.
+     * Replies "FNF" if the file is missing and "BADRANGE" if the request
+     * cannot be satisfied.
+     *
+     * @param directory - The client's current working director
+     * @param outStream - Data output stream to the client
+     * @param inStream  - Data input stream from the client, holding the
+     *                  request: offset, count and filename
+     * @return false if the transfer broke off after the header was sent, so
+     * the client is out of step and the session must end
+     */
+    private boolean sendRange(File directory,
+                              PrintWriter outStream, CommandDecoder inStream) {
+        long offset;
+        long count;
+        String fileName;
+        try {
+            offset = inStream.nextLong();
+            count = inStream.nextLong();
+            fileName = inStream.remainingArgument();
+        } catch (NumberFormatException ex) {
+            outStream.println("BADRANGE");
+            return true;
+        }
+        if (fileName.isEmpty()) {
+            outStream.println("BADRANGE");
+            return true;
+        }
+
+        File file = new File(directory, fileName);
+        if (!(file.isFile() && file.exists() && file.canRead())) {
+            outStream.println("FNF");
+            return true;
+        }
+
+        long fileSize = file.length();
+        if (count == -1) {
+            count = fileSize - offset;
+        }
+        if (offset < 0 || count < 0 || offset > fileSize || count > fileSize - offset) {
+            outStream.println("BADRANGE");
+            return true;
+        }
+
+        boolean headerSent = false;
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            // Tell the client that the server is ready to send the file
+            outStream.println("READY");
+
+            // Get client response after sending "READY"
+            if (!awaitReady(inStream)) {
+                ServerLog.debug("Client has aborted the download");
+                return true;
+            }
+
+            outStream.println(offset + " " + count + " " + fileSize + " " + CHUNK_SIZE);
+            headerSent = true;
+
+            WritableByteChannel socketChannel = client.getChannel();
+            if (socketChannel == null) {
+                socketChannel = Channels.newChannel(client.getOutputStream());
+            }
+            if (chunkBuffer == null) {
+                chunkBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+            sendChunks(fileChannel, offset, count, chunkBuffer, socketChannel, outStream);
+
+            ServerLog.debug(file.getName() + " bytes " + offset + "-" + (offset + count)
+                    + " sent to client");
+        } catch (IOException e) {
+            ServerLog.error("Range download failed.", e);
+            // The client waits for chunks that will never come
+            return !headerSent;
+        }
+        return true;
+    }
+
+    /**
+     * Binary protocol counterpart of sendRange(). Replies with a
+     * Frame.RANGE_HEADER frame, then each chunk as a DATA frame followed by a
+     * CHECKSUM frame. Errors are ERROR frames "FNF" or "BADRANGE".
+     *
+     * @param fileName  the requested file name
+     * @param offset    first byte wanted
+     * @param count     number of bytes wanted, -1 for up to the end of the file
+     * @param directory the client's current working directory
+     * @param out       encoder for the client, frames queued in it go first
+     * @param bytesOut  output stream of the client socket
+     * @throws IOException if the file or socket fails mid transfer
+     */
+    private void sendRangeFrames(String fileName, long offset, long count, File directory,
+                                 FrameEncoder out, OutputStream bytesOut) throws IOException {
+        File file = new File(directory, fileName);
+        if (!(file.isFile() && file.canRead())) {
+            writeError(out, "FNF");
+            return;
+        }
+        long fileSize = file.length();
+        if (count == -1) {
+            count = fileSize - offset;
+        }
+        if (offset < 0 || count < 0 || offset > fileSize || count > fileSize - offset) {
+            writeError(out, "BADRANGE");
+            return;
+        }
+
+        try (FileChannel fileChannel = new FileInputStream(file).getChannel()) {
+            out.begin(Frame.RANGE_HEADER).writeVarint(offset).writeVarint(count)
+                    .writeVarint(fileSize).writeVarint(CHUNK_SIZE).end();
+
+            WritableByteChannel socket = client.getChannel();
+            if (socket == null) {
+                socket = Channels.newChannel(bytesOut);
+            }
+            if (chunkBuffer == null) {
+                chunkBuffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            }
+            CRC32C crc = new CRC32C();
+            long position = offset;
+            long end = offset + count;
+            while (position < end) {
+                long checksum = readChunk(fileChannel, position, end, chunkBuffer, crc);
+                out.header(Frame.DATA, chunkBuffer.limit());
+                out.writeTo(bytesOut);
+                while (chunkBuffer.hasRemaining()) {
+                    socket.write(chunkBuffer);
+                }
+                position += chunkBuffer.limit();
+                ServerMetrics.addBytesSent(chunkBuffer.limit());
+                out.begin(Frame.CHECKSUM).writeVarint(checksum).end();
+            }
+            ServerLog.debug(file.getName() + " bytes " + offset + "-" + end + " sent to client");
+        }
+    }
+
+    /**
+     * Write count bytes of the file starting at offset as checksummed chunks.
+     * Each chunk is read once into the direct buffer, checksummed, and written
+     * from the same buffer, so the data is never copied onto the heap.
+     *
+     * @param file      channel of the file being downloaded
+     * @param offset    first byte to send
+     * @param count     number of bytes to send
+     * @param buffer    direct buffer of CHUNK_SIZE bytes
+     * @param socket    channel the chunk data is written to
+     * @param outStream writer the checksum lines are sent through
+     * @throws IOException if the file or socket fails mid transfer
+     */
+    static void sendChunks(FileChannel file, long offset, long count, ByteBuffer buffer,
+                           WritableByteChannel socket, PrintWriter outStream) throws IOException {
+        CRC32C crc = new CRC32C();
+        long position = offset;
+        long end = offset + count;
+
+        while (position < end) {
+            long checksum = readChunk(file, position, end, buffer, crc);
+            while (buffer.hasRemaining()) {
+                socket.write(buffer);
+            }
+            position += buffer.limit();
+            ServerMetrics.addBytesSent(buffer.limit());
+
+            outStream.println(Long.toHexString(checksum));
+        }
+    }
+
+    /**
+     * Read the chunk of the file starting at position into the direct buffer
+     * and checksum it. The buffer is left ready to be written.
+     *
+     * @param file     channel of the file being downloaded
+     * @param position first byte of the chunk
+     * @param end      end of the range being sent, the chunk stops there
+     * @param buffer   direct buffer of CHUNK_SIZE bytes
+     * @param crc      reused checksum
+     * @return CRC32C of the chunk
+     * @throws IOException if the file cannot be read
+     */
+    private static long readChunk(FileChannel file, long position, long end,
+                                  ByteBuffer buffer, CRC32C crc) throws IOException {
+        buffer.clear();
+        buffer.limit((int) Math.min(buffer.capacity(), end - position));
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("File shrank during transfer");
+            }
+        }
+        buffer.flip();
+
+        crc.reset();
+        crc.update(buffer);
+        buffer.rewind();
+        return crc.getValue();
+    }
+}
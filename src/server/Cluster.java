@@ -0,0 +1,493 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Lets several servers share the tables between them. Turned on by giving
+ * every node the same --cluster list of members, each node then hosts only
+ * the tables the ClusterRing of the live members gives it. A JOIN of any
+ * other table is answered "MOVED#host:port" with the node that owns it,
+ * which the ClusterRouter follows for its clients.
+ *
+ * When a member joins or leaves, the ring changes and every node hands the
+ * tables it no longer owns to their new owner: the table is removed here
+ * between hands, sent with its players' sessions in an ADOPT request, and
+ * the connections of those players are closed. The new owner parks the
+ * sessions in Resumption, so the players resume them there with the token
+ * they were greeted with and find their seats and chips. A node that fails
+ * takes its tables with it; with a --state-dir they come back when it is
+ * restarted, and are handed on if the ring moved them meanwhile.
+ *
+ * A handover is identified by the table's origin and its generation, which
+ * the sender bumps before every attempt. A node adopts each one once and
+ * answers a repeat ADOPTED without seating anyone twice. When the reply to
+ * an ADOPT is lost the sender asks "ADOPT CHECK table origin generation"
+ * whether the table was adopted before restoring it, and a handover
+ * refused that way stays refused should its ADOPT still arrive. Until the
+ * new owner answers, the table is held by neither node rather than by both,
+ * though it is kept in this node's snapshots. A node that already hosts a
+ * table of the same origin never seats a handed over copy of it.
+ *
+ * Nodes trust ADOPT from any address of a member, the cluster is meant to
+ * run on a private network. Every call is a no-op when not clustered.
+ */
+final class Cluster {
+
+    private static final long REBALANCE_MILLIS = 5000;
+    private static final int ADOPT_TIMEOUT_MILLIS = 5000;
+    private static final int CONFIRM_ATTEMPTS = 3;
+    private static final int MAX_HANDOVERS = 10_000;
+
+    // Sessions connected to this node, closed if their table moves
+    private static final ConcurrentHashMap<Long, ClientConnection> live = new ConcurrentHashMap<>();
+    private static final Object rebalanceLock = new Object();
+    // Handovers this node has answered, by handoverKey(), true if the table
+    // was adopted and false if it was refused. Guarded by itself.
+    private static final Map<String, Boolean> handovers = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > MAX_HANDOVERS;
+        }
+    };
+    // Tables sent without an answer, held until their owner says whether it
+    // adopted them. Changed by the rebalance thread, snapshots read it too.
+    private static final List<Handover> unconfirmed = new CopyOnWriteArrayList<>();
+
+    private static volatile String self; // Null when not clustered
+    private static volatile ClusterMembership membership;
+    private static Set<InetAddress> peerAddresses = new HashSet<>();
+    private static boolean ringChanged = false;
+
+    /**
+     * A table on its way to another node and its players' sessions.
+     */
+    private static final class Handover {
+        final Table table;
+        final String owner;
+        final List<ClientConnection> connected = new ArrayList<>();
+        // Parked sessions of its players, taken from Resumption
+        final List<Resumption.Parked> parked = new ArrayList<>();
+
+        Handover(Table table, String owner) {
+            this.table = table;
+            this.owner = owner;
+        }
+    }
+
+    private Cluster() {
+    }
+
+    /**
+     * Take this node's place in a cluster. Called before Persistence is
+     * opened, so restored sessions are counted in the node's own id range.
+     *
+     * @param node    this node's address, "host:port"
+     * @param members address of every member, including this node
+     * @throws IllegalArgumentException if this node is not a member
+     */
+    static void configure(String node, List<String> members) {
+        int index = members.indexOf(node);
+        if (index < 0) {
+            throw new IllegalArgumentException(node + " is not in the cluster " + members);
+        }
+        ClientConnection.setNodeNumber(index + 1);
+        Set<InetAddress> addresses = new HashSet<>();
+        for (String member : members) {
+            try {
+                addresses.addAll(List.of(InetAddress.getAllByName(
+                        ClusterMembership.address(member).getHostString())));
+            } catch (UnknownHostException ex) {
+                ServerLog.warn("Cannot resolve cluster member " + member);
+            }
+        }
+        peerAddresses = addresses;
+        membership = new ClusterMembership(node, members, Cluster::ringChanged);
+        self = node;
+    }
+
+    /**
+     * Start probing the other members and handing over tables. Called once
+     * the tables have been recovered.
+     */
+    static void start() {
+        if (self == null) {
+            return;
+        }
+        membership.start();
+        ServerLog.info("Cluster node " + self + ", live members " + membership.ring());
+        Thread rebalancer = new Thread(Cluster::rebalanceLoop, "Cluster-Rebalance");
+        rebalancer.setDaemon(true);
+        rebalancer.start();
+    }
+
+    /**
+     * @param tableId table a client wants to join
+     * @return address of the node owning it, null if it is this node's or
+     * the server is not clustered
+     */
+    static String ownerOf(int tableId) {
+        if (self == null) {
+            return null;
+        }
+        String owner = membership.ring().ownerOf(tableId);
+        return owner.equals(self) ? null : owner;
+    }
+
+    /**
+     * @param address address of a client
+     * @return true if the client is on a member's host
+     */
+    static boolean isPeer(InetAddress address) {
+        return self != null && peerAddresses.contains(address);
+    }
+
+    /**
+     * Register a session connected to this node.
+     *
+     * @param session    id of the session
+     * @param connection the session's connection
+     */
+    static void sessionStarted(long session, ClientConnection connection) {
+        if (self != null) {
+            live.put(session, connection);
+        }
+    }
+
+    /**
+     * @param session id of a session that has ended or was resumed as another
+     */
+    static void sessionEnded(long session) {
+        if (self != null) {
+            live.remove(session);
+        }
+    }
+
+    /**
+     * Host a table handed over by another node. The request is the base64 of
+     * the table as Table.writeSnapshot() writes it, then an int count and per
+     * session a long id, the resumption token and the directory. Also
+     * answers "CHECK table origin generation", see checkAdopted().
+     *
+     * @param argument the request without "ADOPT"
+     * @return ADOPTED, NOT ADOPTED if the handover was refused, MOVED#owner
+     * if the table is not this node's, or an error
+     */
+    static String adopt(String argument) {
+        if (self == null) {
+            return "Client Request Error.";
+        }
+        if (argument.startsWith("CHECK ")) {
+            return checkAdopted(argument.substring("CHECK ".length()));
+        }
+        Table table;
+        List<Resumption.Parked> sessions = new ArrayList<>();
+        try {
+            DataInputStream in = new DataInputStream(
+                    new ByteArrayInputStream(Base64.getDecoder().decode(argument)));
+            table = Table.readSnapshot(in, Rules.STANDARD, new SplittableRandom());
+            if (table == null) {
+                return "INVALID TABLE";
+            }
+            for (int count = in.readInt(); count > 0; count--) {
+                long session = in.readLong();
+                String token = in.readUTF();
+                sessions.add(new Resumption.Parked(session, token, table.id, in.readUTF(), 0));
+            }
+        } catch (IOException | IllegalArgumentException ex) {
+            ServerLog.warn("Damaged ADOPT request");
+            return "INVALID TABLE";
+        }
+        // The sender's ring may not have caught up with this one's yet
+        String owner = ownerOf(table.id);
+        if (owner != null) {
+            return "MOVED#" + owner;
+        }
+
+        String key = handoverKey(table.origin(), table.generation());
+        synchronized (handovers) {
+            Boolean answered = handovers.get(key);
+            if (answered != null) {
+                return answered ? "ADOPTED" : "NOT ADOPTED"; // Sent again
+            }
+            handovers.put(key, Boolean.TRUE);
+            if (!TableScheduler.shared().adopt(table)) {
+                ServerLog.info("Table " + table.id + " was adopted already");
+                return "ADOPTED";
+            }
+            for (Resumption.Parked state : sessions) {
+                Resumption.park(state.session, state.token, table.id, state.directory);
+                Persistence.sessionChanged(state.session, table.id, state.directory, state.token);
+            }
+        }
+        ServerLog.info("Adopted table " + table.id + " with " + sessions.size() + " players");
+        return "ADOPTED";
+    }
+
+    /**
+     * Tell the sender of a handover whose reply it lost whether the table
+     * was adopted. If not, the handover is refused from now on, so the
+     * sender can safely restore the table.
+     *
+     * @param argument "table origin generation"
+     * @return ADOPTED or NOT ADOPTED
+     */
+    private static String checkAdopted(String argument) {
+        String[] fields = argument.trim().split(" ");
+        int tableId;
+        long origin;
+        int generation;
+        try {
+            tableId = Integer.parseInt(fields[0]);
+            origin = Long.parseLong(fields[1]);
+            generation = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+            return "Client Request Error.";
+        }
+        String key = handoverKey(origin, generation);
+        synchronized (handovers) {
+            Boolean answered = handovers.get(key);
+            if (answered == null) {
+                // Also covers tables adopted before this node restarted
+                answered = TableScheduler.shared().hosts(tableId, origin);
+                handovers.put(key, answered);
+            }
+            return answered ? "ADOPTED" : "NOT ADOPTED";
+        }
+    }
+
+    /**
+     * Write the tables held until their new owner answers, which are still
+     * this node's until it does, as Table.writeSnapshot() writes them.
+     *
+     * @param out the snapshot being written
+     * @return number of tables written
+     * @throws IOException if the write fails
+     */
+    static int writeUnconfirmed(DataOutputStream out) throws IOException {
+        int count = 0;
+        for (Handover handover : unconfirmed) {
+            handover.table.writeSnapshot(out);
+            count++;
+        }
+        return count;
+    }
+
+    private static String handoverKey(long origin, int generation) {
+        return origin + ":" + generation;
+    }
+
+    private static void ringChanged() {
+        synchronized (rebalanceLock) {
+            ringChanged = true;
+            rebalanceLock.notifyAll();
+        }
+    }
+
+    /**
+     * Hand over tables whenever the ring changes, and every REBALANCE_MILLIS
+     * for tables that could not be moved before, because a hand was in play
+     * or their owner did not answer.
+     */
+    private static void rebalanceLoop() {
+        while (true) {
+            synchronized (rebalanceLock) {
+                try {
+                    if (!ringChanged) {
+                        rebalanceLock.wait(REBALANCE_MILLIS);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ringChanged = false;
+            }
+            if (!IdleReaper.isDraining()) {
+                rebalance();
+            }
+        }
+    }
+
+    private static void rebalance() {
+        // Handovers whose owner did not answer last time
+        for (Handover handover : unconfirmed) {
+            String reply = confirm(handover, 1);
+            if (reply != null) {
+                unconfirmed.remove(handover);
+                finish(handover, reply);
+            }
+        }
+
+        TableScheduler scheduler = TableScheduler.shared();
+        for (int tableId : scheduler.tableIds()) {
+            String owner = ownerOf(tableId);
+            if (owner == null) {
+                continue;
+            }
+            Table table = scheduler.remove(tableId);
+            if (table == null) {
+                continue; // Left, or a hand in play, try again later
+            }
+            // Every attempt is a new handover, so a refused one stays refused
+            table.nextGeneration();
+            Handover handover = new Handover(table, owner);
+            String reply;
+            try {
+                reply = handOver(handover);
+                if (reply == null) {
+                    reply = confirm(handover, CONFIRM_ATTEMPTS);
+                }
+            } catch (IOException ex) {
+                reply = ex.toString(); // Never sent
+            }
+            if (reply == null) {
+                unconfirmed.add(handover);
+                ServerLog.warn("No answer from " + owner + " for table " + tableId
+                        + ", holding it until " + owner + " says whether it adopted it");
+            } else {
+                finish(handover, reply);
+            }
+        }
+    }
+
+    /**
+     * Complete a handover once the new owner has answered.
+     *
+     * @param reply ADOPTED, or why the table is still this node's
+     */
+    private static void finish(Handover handover, String reply) {
+        Table table = handover.table;
+        if (reply.equals("ADOPTED")) {
+            Persistence.tableRemoved(table.id);
+            for (Resumption.Parked state : handover.parked) {
+                Persistence.sessionClosed(state.session);
+            }
+            for (ClientConnection connection : handover.connected) {
+                connection.closeMoved();
+            }
+            ServerLog.info("Handed table " + table.id + " to " + handover.owner);
+        } else {
+            // Put it back, it moves on a later pass
+            TableScheduler.shared().restore(table);
+            for (Resumption.Parked state : handover.parked) {
+                Resumption.park(state.session, state.token, state.tableId, state.directory);
+            }
+            ServerLog.warn("Could not hand table " + table.id + " to " + handover.owner + ": " + reply);
+        }
+    }
+
+    /**
+     * Send a table and its players' sessions to their new owner.
+     *
+     * @return the owner's reply, null if the request was sent but no reply
+     * came, so the table may or may not have been adopted
+     * @throws IOException if the request could not be sent
+     */
+    private static String handOver(Handover handover) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        handover.table.writeSnapshot(out);
+        long[] seated = handover.table.seatedSessions();
+        out.writeInt(seated.length);
+        for (long session : seated) {
+            ClientConnection connection = live.get(session);
+            String token = "";
+            String directory = System.getProperty("user.dir");
+            if (connection != null) {
+                handover.connected.add(connection);
+                token = connection.resumeToken() != null ? connection.resumeToken() : "";
+                directory = connection.directory();
+            } else {
+                Resumption.Parked state = Resumption.take(session);
+                if (state != null) {
+                    handover.parked.add(state);
+                    token = state.token;
+                    directory = state.directory;
+                }
+            }
+            out.writeLong(session);
+            out.writeUTF(token);
+            out.writeUTF(directory);
+        }
+        return request(handover.owner, "ADOPT " + Base64.getEncoder().encodeToString(bytes.toByteArray()));
+    }
+
+    /**
+     * Ask the new owner whether it adopted a table whose handover went
+     * unanswered.
+     *
+     * @param attempts times to ask, PROBE_MILLIS apart
+     * @return ADOPTED, NOT ADOPTED, or null if the owner did not answer
+     */
+    private static String confirm(Handover handover, int attempts) {
+        Table table = handover.table;
+        String check = "ADOPT CHECK " + table.id + " " + table.origin() + " " + table.generation();
+        for (int attempt = 0; attempt < attempts; attempt++) {
+            if (attempt > 0) {
+                try {
+                    Thread.sleep(ClusterMembership.PROBE_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            try {
+                String reply = request(handover.owner, check);
+                if ("ADOPTED".equals(reply) || "NOT ADOPTED".equals(reply)) {
+                    return reply;
+                }
+            } catch (IOException ex) {
+                // Not reachable yet, ask again
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Send one request to another node over a session of its own.
+     *
+     * @return the reply, null if the request was sent but no reply came
+     * @throws IOException if the request could not be sent
+     */
+    private static String request(String node, String request) throws IOException {
+        try (Socket socket = new Socket()) {
+            socket.connect(ClusterMembership.address(node), ADOPT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(ADOPT_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            String hello = in.readLine();
+            if (hello == null || !hello.startsWith("HELLO")) {
+                throw new IOException("No greeting from " + node);
+            }
+            out.println(request);
+            String reply;
+            try {
+                reply = in.readLine();
+            } catch (IOException ex) {
+                return null;
+            }
+            out.println("BYE");
+            return reply;
+        }
+    }
+}
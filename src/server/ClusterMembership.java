@@ -0,0 +1,212 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tracks which members of a cluster are up and keeps the ClusterRing of the
+ * live ones. A probe thread holds one ordinary client session open to each
+ * peer and sends it PWD every PROBE_MILLIS; a peer that fails DOWN_AFTER
+ * probes in a row is down, and up again as soon as a probe succeeds. A long
+ * lived session keeps the probes cheap and out of the peers' logs.
+ *
+ * Used by the nodes, see Cluster, and by the ClusterRouter.
+ */
+final class ClusterMembership {
+
+    static final long PROBE_MILLIS = 1000;
+    private static final int DOWN_AFTER = 2;
+    private static final int PROBE_TIMEOUT_MILLIS = 500;
+
+    /**
+     * A member other than this process and the session probing it.
+     */
+    private static final class Peer {
+        final String address;
+        Socket socket;
+        BufferedReader in;
+        PrintWriter out;
+        int failures = DOWN_AFTER; // Down until the first probe succeeds
+        boolean live = false;
+
+        Peer(String address) {
+            this.address = address;
+        }
+    }
+
+    private final String self; // Always live, null for a router
+    private final List<Peer> peers = new ArrayList<>();
+    private final Runnable onChange;
+    private volatile ClusterRing ring;
+    private volatile boolean running = false;
+
+    /**
+     * @param self     this node's address, null if this process is not a member
+     * @param members  address of every member, "host:port", including self
+     * @param onChange run on the probe thread whenever the ring changes
+     */
+    ClusterMembership(String self, List<String> members, Runnable onChange) {
+        this.self = self;
+        this.onChange = onChange;
+        for (String member : members) {
+            if (!member.equals(self)) {
+                peers.add(new Peer(member));
+            }
+        }
+        ring = buildRing();
+    }
+
+    /**
+     * Probe every peer once, so the ring starts with the members already up,
+     * then keep probing on a background thread.
+     */
+    void start() {
+        probeAll();
+        running = true;
+        Thread prober = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(PROBE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                probeAll();
+            }
+        }, "Cluster-Probe");
+        prober.setDaemon(true);
+        prober.start();
+    }
+
+    /**
+     * Stop probing. The ring keeps its last state.
+     */
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * @return ring of the members currently up
+     */
+    ClusterRing ring() {
+        return ring;
+    }
+
+    private void probeAll() {
+        boolean changed = false;
+        for (Peer peer : peers) {
+            boolean live = probe(peer) ? resetFailures(peer) : ++peer.failures < DOWN_AFTER;
+            if (live != peer.live) {
+                peer.live = live;
+                changed = true;
+                ServerLog.info("Cluster member " + peer.address + " is " + (live ? "up" : "down"));
+            }
+        }
+        if (changed) {
+            ring = buildRing();
+            onChange.run();
+        }
+    }
+
+    private static boolean resetFailures(Peer peer) {
+        peer.failures = 0;
+        return true;
+    }
+
+    /**
+     * Send PWD over the peer's session, opening one first if needed.
+     *
+     * @return true if the peer answered
+     */
+    private static boolean probe(Peer peer) {
+        try {
+            if (peer.socket == null) {
+                Socket socket = new Socket();
+                socket.connect(address(peer.address), PROBE_TIMEOUT_MILLIS);
+                socket.setSoTimeout(PROBE_TIMEOUT_MILLIS);
+                peer.socket = socket;
+                peer.in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                peer.out = new PrintWriter(socket.getOutputStream(), true);
+                if (!startsWith(peer.in.readLine(), "HELLO")) {
+                    throw new IOException("Not a server");
+                }
+            }
+            peer.out.println("PWD");
+            if (peer.in.readLine() == null) {
+                throw new IOException("Connection closed");
+            }
+            return true;
+        } catch (IOException ex) {
+            if (peer.socket != null) {
+                try {
+                    peer.socket.close();
+                } catch (IOException e) {
+                    // Already failed
+                }
+                peer.socket = null;
+            }
+            return false;
+        }
+    }
+
+    private ClusterRing buildRing() {
+        List<String> live = new ArrayList<>();
+        if (self != null) {
+            live.add(self);
+        }
+        for (Peer peer : peers) {
+            if (peer.live) {
+                live.add(peer.address);
+            }
+        }
+        return new ClusterRing(live);
+    }
+
+    private static boolean startsWith(String line, String prefix) {
+        return line != null && line.startsWith(prefix);
+    }
+
+    /**
+     * @param address "host:port"
+     * @return the socket address, unresolved if the host is unknown
+     */
+    static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * Parse a comma separated member list, checking each is "host:port".
+     *
+     * @param list the list as given on the command line
+     * @return the members, in order
+     * @throws IllegalArgumentException if a member has no valid port
+     */
+    static List<String> parseMembers(String list) {
+        Map<String, Boolean> members = new LinkedHashMap<>();
+        for (String member : list.split(",")) {
+            String trimmed = member.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            int colon = trimmed.lastIndexOf(':');
+            try {
+                if (colon <= 0 || Integer.parseInt(trimmed.substring(colon + 1)) <= 0) {
+                    throw new NumberFormatException();
+                }
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException("Cluster member " + trimmed + " is not host:port");
+            }
+            members.put(trimmed, Boolean.TRUE);
+        }
+        return new ArrayList<>(members.keySet());
+    }
+}
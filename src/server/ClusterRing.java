@@ -0,0 +1,136 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Consistent hash ring deciding which node of a cluster owns each table.
+ * Every node is placed on the ring at VIRTUAL_NODES points hashed from its
+ * address, and a table belongs to the first node point at or after the
+ * table's own hash. Adding or removing a node only moves the tables in the
+ * arcs next to its points, about 1/n of them, and the virtual nodes keep the
+ * arcs even so every node gets a similar share.
+ *
+ * The ring only depends on the set of addresses, so every node and router
+ * that sees the same live members agrees on every owner. Immutable.
+ */
+final class ClusterRing {
+
+    static final int VIRTUAL_NODES = 128;
+
+    private final List<String> nodes;
+    private final long[] points; // Sorted hashes of every virtual node
+    private final String[] owners; // Node of each point
+
+    /**
+     * @param nodes addresses of the live nodes, "host:port"
+     */
+    ClusterRing(List<String> nodes) {
+        List<String> sorted = new ArrayList<>(nodes);
+        Collections.sort(sorted);
+        this.nodes = Collections.unmodifiableList(sorted);
+
+        int count = sorted.size() * VIRTUAL_NODES;
+        long[] hashes = new long[count];
+        for (int n = 0; n < sorted.size(); n++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                hashes[n * VIRTUAL_NODES + v] = hash(sorted.get(n) + "#" + v);
+            }
+        }
+        // Sort the points, keeping track of whose each one is
+        Integer[] indexes = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, (a, b) -> Long.compare(hashes[a], hashes[b]));
+        points = new long[count];
+        owners = new String[count];
+        for (int i = 0; i < count; i++) {
+            points[i] = hashes[indexes[i]];
+            owners[i] = sorted.get(indexes[i] / VIRTUAL_NODES);
+        }
+    }
+
+    /**
+     * @return the live nodes, sorted
+     */
+    List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * @return true if no node is live
+     */
+    boolean isEmpty() {
+        return points.length == 0;
+    }
+
+    /**
+     * @param tableId table to look up
+     * @return address of the node owning the table, null if no node is live
+     */
+    String ownerOf(int tableId) {
+        return ownerOfHash(mix(tableId));
+    }
+
+    /**
+     * Pick a node for something that is not a table, such as a session that
+     * has not joined one yet.
+     *
+     * @param key any number, spread over the nodes
+     * @return address of a node, null if no node is live
+     */
+    String nodeFor(long key) {
+        return ownerOfHash(mix(key ^ 0x5DEECE66DL));
+    }
+
+    private String ownerOfHash(long hash) {
+        if (points.length == 0) {
+            return null;
+        }
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1; // First point after the hash
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof ClusterRing && nodes.equals(((ClusterRing) other).nodes);
+    }
+
+    @Override
+    public int hashCode() {
+        return nodes.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return nodes.toString();
+    }
+
+    /**
+     * FNV-1a over the UTF-8 bytes, finished with mix() to spread the bits.
+     */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * The SplitMix64 finaliser, so consecutive table ids land far apart.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,796 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Front end of a cluster, see Cluster. Clients connect to the router as they
+ * would to a single server, and it keeps each one connected to the node that
+ * owns its table:
+ * <ul>
+ * <li>a new client is greeted by the node it is first sent to, picked from
+ * the ClusterRing so sessions spread over the nodes,</li>
+ * <li>a JOIN of a table owned by another node moves the client there,
+ * carrying over its directory, and a MOVED reply from a node whose ring
+ * was ahead of the router's is followed the same way,</li>
+ * <li>when a node drops the connection, because the client's table was
+ * handed to another node or the node failed, the session is resumed with
+ * its token on the table's new owner, or set up again there with CD and
+ * JOIN if it cannot be. A request that was in flight is sent again if
+ * sending it twice is harmless. Otherwise the node may or may not have
+ * applied it, so the client is answered OUTCOME UNKNOWN after an EVENT#
+ * with the table as it is now.</li>
+ * </ul>
+ * A client that resumes through the router with the token it was greeted
+ * with is found on whichever node now has its session.
+ *
+ * Replies are read line by line so the router knows where each one ends;
+ * DOWNLOAD and RANGE bodies are passed through by length. A session that
+ * switches to BINARY is piped to its node as it is and not routed again.
+ *
+ * java -cp out server.ClusterRouter --cluster=10.0.0.1:50001,10.0.0.2:50001 50000
+ */
+public final class ClusterRouter {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final long REPLY_TIMEOUT_MILLIS = 30_000;
+    private static final int REHOME_ATTEMPTS = 10;
+    private static final int MAX_ALIASES = 100_000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String LOST = "(connection lost)"; // Compared by identity
+    private static final String OUTCOME_UNKNOWN = "OUTCOME UNKNOWN";
+    // Requests a node can be sent again when it was lost before answering
+    private static final Set<String> IDEMPOTENT = Set.of(
+            "PWD", "DIR", "CD", "JOIN", "STATE", "HINT", "DOWNLOAD", "RANGE", "BINARY");
+
+    /**
+     * What follows a request sent to a node, so the pump knows how to read
+     * the reply.
+     */
+    private enum Expect {
+        LINE,   // One line, passed on unless it is MOVED#
+        QUIET,  // One line for the router only
+        FILE,   // A length line and that many bytes, see ClientConnection.sendFile()
+        RANGE,  // A RANGE header line and checksummed chunks, see sendRange()
+        BINARY  // The BINARY line, then frames for the rest of the session
+    }
+
+    private final ClusterMembership membership;
+    private final AtomicLong routes = new AtomicLong();
+    // Token a client was greeted with, to that of the session it is on now
+    private final Map<String, String> aliases = Collections.synchronizedMap(
+            new LinkedHashMap<String, String>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_ALIASES;
+                }
+            });
+
+    private ClusterRouter(List<String> nodes) {
+        membership = new ClusterMembership(null, nodes, () -> { });
+    }
+
+    public static void main(String[] args) {
+        int port = 50000;
+        List<String> nodes = null;
+        for (String arg : args) {
+            if (arg.startsWith("--cluster=")) {
+                nodes = ClusterMembership.parseMembers(arg.substring("--cluster=".length()));
+            } else if (arg.startsWith("--log-level=")) {
+                ServerLog.setLevel(ServerLog.Level.valueOf(
+                        arg.substring("--log-level=".length()).toUpperCase(Locale.ROOT)));
+            } else {
+                try {
+                    port = Integer.parseInt(arg);
+                } catch (NumberFormatException ex) {
+                    ServerLog.warn("Invalid input");
+                }
+            }
+        }
+        if (nodes == null || nodes.isEmpty()) {
+            ServerLog.warn("Give the nodes with --cluster=host:port,host:port");
+            ServerLog.flush();
+            System.exit(-1);
+        }
+
+        ClusterRouter router = new ClusterRouter(nodes);
+        router.membership.start();
+        try (ServerSocket server = new ServerSocket(port)) {
+            ServerLog.info("Routing port " + server.getLocalPort() + " to " + router.membership.ring());
+            while (true) {
+                Socket client = server.accept();
+                Thread thread = new Thread(router.new Route(client), "Route-" + router.routes.get());
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException ex) {
+            ServerLog.error("Could not accept clients", ex);
+            ServerLog.flush();
+            System.exit(-1);
+        }
+    }
+
+    /**
+     * One client and its connection to a node. Requests are forwarded by
+     * the client's thread holding the route's lock, which the node's pump
+     * also takes to move the session when the node drops it.
+     */
+    private final class Route implements Runnable {
+        private final long id = routes.incrementAndGet();
+        private final Socket client;
+        private InputStream clientIn;
+        private OutputStream clientOut;
+        private final ByteArrayOutputStream clientLine = new ByteArrayOutputStream();
+
+        private Backend backend;
+        private String greetingToken; // Token the client was greeted with, null for none
+        private String directory; // Last directory the client changed to, null for the node's
+        private int tableId = -1;
+        private Expect transfer; // Follows the client's READY to a DOWNLOAD or RANGE
+        private boolean binary = false;
+        private boolean ended = false;
+
+        Route(Socket client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            boolean saidBye = false;
+            try {
+                client.setTcpNoDelay(true);
+                clientIn = new BufferedInputStream(client.getInputStream(), BUFFER_SIZE);
+                clientOut = client.getOutputStream();
+                synchronized (this) {
+                    backend = connectAny(membership.ring().nodeFor(id));
+                    if (backend == null) {
+                        return;
+                    }
+                    greetingToken = backend.token;
+                    writeClient(backend.greeting);
+                }
+
+                String line;
+                while (!binary && (line = readClientLine()) != null) {
+                    synchronized (this) {
+                        String command = keyword(line);
+                        if (command.equals("BYE")) {
+                            saidBye = true;
+                            if (greetingToken != null) {
+                                aliases.remove(greetingToken);
+                            }
+                            backend.bye();
+                            break;
+                        }
+                        if (!handle(command, line)) {
+                            break;
+                        }
+                    }
+                }
+                if (binary) {
+                    pipeBinary();
+                }
+            } catch (IOException ex) {
+                ServerLog.debug("Routed client " + client.getInetAddress() + " failed: " + ex);
+            } finally {
+                synchronized (this) {
+                    ended = true;
+                    if (!saidBye && backend != null) {
+                        // Without BYE the node parks the session for a RESUME
+                        backend.close();
+                    }
+                }
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    ServerLog.error("Error closing client connection", e);
+                }
+            }
+        }
+
+        /**
+         * Forward one request and follow the session to another node if the
+         * request calls for it.
+         *
+         * @return false if the session cannot go on
+         */
+        private boolean handle(String command, String line) throws IOException {
+            if (transfer != null) {
+                // The client confirms or aborts the download it was offered
+                Expect expect = transfer;
+                transfer = null;
+                if (line.trim().equals("READY")) {
+                    return forward(line, expect) != null;
+                }
+                backend.send(line);
+                return true;
+            }
+            String reply;
+            switch (command) {
+                case "JOIN":
+                    return join(line);
+                case "RESUME":
+                    return resume(argument(line));
+                case "ADOPT":
+                    // Only nodes hand over tables, never a client through the router
+                    writeClient("Client Request Error.");
+                    return true;
+                case "BINARY":
+                    reply = forward(line, Expect.BINARY);
+                    binary = "BINARY".equals(reply);
+                    return reply != null;
+                case "CD":
+                    reply = forward(line, Expect.LINE);
+                    if (reply != null && !reply.equals("DDNE") && !reply.equals("PD")) {
+                        directory = reply;
+                    }
+                    return reply != null;
+                case "LEAVE":
+                    reply = forward(line, Expect.LINE);
+                    if ("LEFT".equals(reply)) {
+                        tableId = -1;
+                    }
+                    return reply != null;
+                case "DOWNLOAD":
+                case "RANGE":
+                    reply = forward(line, Expect.LINE);
+                    if ("READY".equals(reply)) {
+                        transfer = command.equals("RANGE") ? Expect.RANGE : Expect.FILE;
+                    }
+                    return reply != null;
+                default:
+                    // Every other request is answered with one line
+                    return forward(line, Expect.LINE) != null;
+            }
+        }
+
+        /**
+         * JOIN on the node that owns the table, moving the session there
+         * first. A node may still answer MOVED while the router's ring
+         * catches up with the cluster's, which is followed a few times.
+         */
+        private boolean join(String line) throws IOException {
+            int requested;
+            try {
+                requested = Integer.parseInt(argument(line));
+            } catch (NumberFormatException ex) {
+                return forward(line, Expect.LINE) != null;
+            }
+            String owner = membership.ring().ownerOf(requested);
+            String reply = null;
+            for (int attempt = 0; attempt < 3; attempt++) {
+                if (owner != null && !owner.equals(backend.address) && !backend.lost) {
+                    switchTo(owner);
+                }
+                reply = forward(line, Expect.LINE);
+                if (reply == null) {
+                    return false;
+                }
+                if (!reply.startsWith("MOVED#")) {
+                    break;
+                }
+                owner = reply.substring("MOVED#".length());
+            }
+            if (reply.startsWith("MOVED#")) {
+                writeClient(reply); // Held back by the pump, the client can follow it
+            } else if (reply.startsWith("STATE#")) {
+                tableId = requested;
+            } else if (reply.equals("TABLE FULL")) {
+                tableId = -1; // The node gave up the old seat first
+            }
+            return true;
+        }
+
+        /**
+         * RESUME a session the client lost, on whichever node has it now.
+         */
+        private boolean resume(String token) throws IOException {
+            String current = aliases.getOrDefault(token, token);
+            List<String> nodes = new ArrayList<>();
+            nodes.add(backend.address);
+            for (String node : membership.ring().nodes()) {
+                if (!node.equals(backend.address)) {
+                    nodes.add(node);
+                }
+            }
+            for (String node : nodes) {
+                Backend target = backend;
+                if (!node.equals(backend.address) || backend.lost) {
+                    try {
+                        target = new Backend(this, node);
+                    } catch (IOException ex) {
+                        continue;
+                    }
+                }
+                String reply = target.request("RESUME " + current, Expect.QUIET);
+                if (reply != LOST && reply.startsWith("RESUMED#")) {
+                    if (target != backend) {
+                        backend.bye();
+                        backend = target;
+                    }
+                    backend.token = current;
+                    greetingToken = token;
+                    resumed(reply);
+                    writeClient(reply);
+                    return true;
+                }
+                if (target != backend) {
+                    target.bye();
+                }
+            }
+            writeClient("RESUME FAILED");
+            return true;
+        }
+
+        /**
+         * Take the directory and table from a RESUMED#directory#table reply.
+         */
+        private void resumed(String reply) {
+            int separator = reply.lastIndexOf('#');
+            directory = reply.substring("RESUMED#".length(), separator);
+            tableId = Integer.parseInt(reply.substring(separator + 1));
+        }
+
+        /**
+         * Send a request to the node, moving the session if the node drops
+         * the connection before answering. An IDEMPOTENT request is sent
+         * again. A game command may have been applied before the node was
+         * lost, or after the reply timed out, so it is never sent twice:
+         * the client gets the table's state and OUTCOME UNKNOWN instead.
+         *
+         * @return the reply, null if the session could not be moved
+         */
+        private String forward(String line, Expect expect) throws IOException {
+            if (backend.lost && !rehome()) {
+                return null;
+            }
+            String reply = backend.request(line, expect);
+            if (reply != LOST) {
+                return reply;
+            }
+            if (!rehome()) {
+                return null;
+            }
+            if (IDEMPOTENT.contains(keyword(line))) {
+                reply = backend.request(line, expect);
+                return reply == LOST ? null : reply;
+            }
+            if (expect != Expect.LINE) {
+                return null; // A download broke off, the client cannot be told mid body
+            }
+            if (tableId >= 0) {
+                String state = backend.request("STATE", Expect.QUIET);
+                if (state != LOST && state.startsWith("STATE#")) {
+                    writeClient("EVENT#" + state);
+                }
+            }
+            writeClient(OUTCOME_UNKNOWN);
+            return OUTCOME_UNKNOWN;
+        }
+
+        /**
+         * Start a session on another node for the client, with its directory,
+         * and end the one on the current node.
+         */
+        private void switchTo(String node) {
+            Backend next;
+            try {
+                next = new Backend(this, node);
+            } catch (IOException ex) {
+                ServerLog.warn("Cannot reach node " + node);
+                return; // The current node answers MOVED, or hosts the table after all
+            }
+            if (directory != null && next.request("CD " + directory, Expect.QUIET) == LOST) {
+                next.close();
+                return;
+            }
+            backend.bye();
+            backend = next;
+            alias();
+        }
+
+        /**
+         * Move the session to the owner of its table once its node dropped
+         * it: RESUME it there, or failing that CD and JOIN again. Retried
+         * while the ring catches up with a node that failed.
+         *
+         * @return false if no node would take the session
+         */
+        private boolean rehome() {
+            Backend old = backend;
+            old.close();
+            String hint = null; // A node's MOVED reply, ahead of our ring
+            for (int attempt = 0; attempt < REHOME_ATTEMPTS && !ended; attempt++) {
+                ClusterRing ring = membership.ring();
+                String target = hint != null ? hint : tableId >= 0 ? ring.ownerOf(tableId) : ring.nodeFor(id);
+                hint = null;
+                Backend next = null;
+                try {
+                    if (target == null) {
+                        throw new IOException("No live nodes");
+                    }
+                    next = new Backend(this, target);
+                    boolean resumed = false;
+                    boolean seated = false;
+                    if (old.token != null) {
+                        String reply = next.request("RESUME " + old.token, Expect.QUIET);
+                        if (reply == LOST) {
+                            throw new IOException("Lost " + target);
+                        }
+                        if (reply.startsWith("RESUMED#")) {
+                            resumed = true;
+                            next.token = old.token;
+                            int table = tableId;
+                            resumed(reply);
+                            // A seat that expired meanwhile is joined again
+                            seated = tableId >= 0;
+                            if (!seated) {
+                                tableId = table;
+                            }
+                        }
+                    }
+                    if (!resumed && directory != null
+                            && next.request("CD " + directory, Expect.QUIET) == LOST) {
+                        throw new IOException("Lost " + target);
+                    }
+                    if (!seated && tableId >= 0) {
+                        String reply = next.request("JOIN " + tableId, Expect.QUIET);
+                        if (reply == LOST) {
+                            throw new IOException("Lost " + target);
+                        }
+                        if (reply.startsWith("MOVED#")) {
+                            hint = reply.substring("MOVED#".length());
+                            next.bye();
+                            continue;
+                        }
+                        if (reply.startsWith("STATE#")) {
+                            writeClient("EVENT#" + reply); // The table as the client finds it now
+                        } else {
+                            tableId = -1;
+                        }
+                    }
+                    backend = next;
+                    alias();
+                    ServerLog.info("Moved routed session " + id + " to " + target);
+                    return true;
+                } catch (IOException ex) {
+                    if (next != null) {
+                        next.close();
+                    }
+                    sleep(ClusterMembership.PROBE_MILLIS);
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Called by a node's pump when the node dropped the connection. The
+         * session is moved straight away, so table events keep coming while
+         * the client is quiet.
+         */
+        synchronized void lost(Backend lost) {
+            if (lost != backend || ended) {
+                return; // Already moved, or the client thread is doing it
+            }
+            if (binary || !rehome()) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    ServerLog.error("Error closing client connection", e);
+                }
+            }
+        }
+
+        private void alias() {
+            if (greetingToken != null && backend.token != null && !backend.token.equals(greetingToken)) {
+                aliases.put(greetingToken, backend.token);
+            }
+        }
+
+        /**
+         * Connect to a node, or any live node if it cannot be reached.
+         *
+         * @return the node, null if none could be reached
+         */
+        private Backend connectAny(String preferred) {
+            List<String> nodes = new ArrayList<>(membership.ring().nodes());
+            if (preferred != null) {
+                nodes.remove(preferred);
+                nodes.add(0, preferred);
+            }
+            for (String node : nodes) {
+                try {
+                    return new Backend(this, node);
+                } catch (IOException ex) {
+                    ServerLog.warn("Cannot reach node " + node);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Pass the rest of a BINARY session through unchanged.
+         */
+        private void pipeBinary() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = clientIn.read(buffer)) > 0) {
+                backend.out.write(buffer, 0, read);
+            }
+        }
+
+        void writeClient(String line) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+            writeClient(bytes, 0, bytes.length);
+        }
+
+        void writeClient(byte[] bytes, int offset, int length) {
+            synchronized (clientOut) {
+                try {
+                    clientOut.write(bytes, offset, length);
+                } catch (IOException ex) {
+                    // The client thread sees the closed socket and ends the route
+                }
+            }
+        }
+
+        /**
+         * @return the next line from the client without its terminator, null
+         * at end of stream
+         */
+        private String readClientLine() throws IOException {
+            clientLine.reset();
+            int b;
+            while ((b = clientIn.read()) != -1 && b != '\n') {
+                clientLine.write(b);
+            }
+            if (b == -1 && clientLine.size() == 0) {
+                return null;
+            }
+            String line = clientLine.toString(StandardCharsets.UTF_8.name());
+            return line.endsWith("\r") ? line.substring(0, line.length() - 1) : line;
+        }
+    }
+
+    /**
+     * A session on a node for a routed client. Its pump thread passes what
+     * the node sends to the client, and hands the reply to each request to
+     * the client's thread.
+     */
+    private static final class Backend {
+        final String address;
+        final String greeting;
+        String token; // Of the session on the node, null if resumption is off
+        volatile boolean lost = false; // Dropped by the node
+        final OutputStream out;
+
+        private final Route route;
+        private final Socket socket;
+        private final InputStream in;
+        private final BlockingQueue<String> replies = new LinkedBlockingQueue<>();
+        private final Thread pump;
+        private volatile Expect expect; // Of the request waiting for a reply
+        private volatile boolean closing = false;
+
+        Backend(Route route, String address) throws IOException {
+            this.route = route;
+            this.address = address;
+            socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(ClusterMembership.address(address), CONNECT_TIMEOUT_MILLIS);
+                in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                out = socket.getOutputStream();
+                greeting = readGreeting();
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+            if (!greeting.startsWith("HELLO")) {
+                socket.close();
+                throw new IOException(address + " answered " + greeting);
+            }
+            int separator = greeting.indexOf('#');
+            token = separator < 0 ? null : greeting.substring(separator + 1);
+            pump = new Thread(this::pump, "Route-" + route.id + "-Pump");
+            pump.setDaemon(true);
+            pump.start();
+        }
+
+        private String readGreeting() throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.write(b);
+            }
+            return line.toString(StandardCharsets.UTF_8.name()).trim();
+        }
+
+        /**
+         * Send a request and wait for its reply.
+         *
+         * @return the reply, or LOST if the node dropped the connection or
+         * took too long
+         */
+        String request(String line, Expect expect) {
+            replies.clear();
+            this.expect = expect;
+            try {
+                send(line);
+                String reply = replies.poll(REPLY_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (reply == null) {
+                    lost = true;
+                    close();
+                    return LOST;
+                }
+                return reply;
+            } catch (IOException | InterruptedException ex) {
+                lost = true;
+                return LOST;
+            }
+        }
+
+        /**
+         * Send a line that is not answered.
+         */
+        void send(String line) throws IOException {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * End the session with BYE, so the node gives up its seat.
+         */
+        void bye() {
+            closing = true;
+            try {
+                send("BYE");
+                if (Thread.currentThread() != pump) {
+                    pump.join(CONNECT_TIMEOUT_MILLIS); // Passes on what the node sent before
+                }
+            } catch (IOException | InterruptedException ex) {
+                // Closed below regardless
+            }
+            close();
+        }
+
+        /**
+         * Drop the connection without BYE, so the node parks the session.
+         */
+        void close() {
+            closing = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing node connection", e);
+            }
+        }
+
+        /**
+         * Pass what the node sends on to the client. Lines are read one at a
+         * time so replies can be told apart from pushed EVENT lines, and the
+         * bodies of downloads are passed on by their length.
+         */
+        private void pump() {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            ByteArrayOutputStream toClient = new ByteArrayOutputStream(BUFFER_SIZE);
+            long raw = 0; // Bytes to pass on without looking at them
+            long rangeLeft = 0; // Bytes of a RANGE after the current chunk
+            long chunkSize = 0;
+            try {
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    int i = 0;
+                    while (i < read) {
+                        if (raw > 0) {
+                            int count = (int) Math.min(raw, read - i);
+                            toClient.write(buffer, i, count);
+                            i += count;
+                            raw -= count;
+                            continue;
+                        }
+                        byte b = buffer[i++];
+                        line.write(b);
+                        if (b != '\n') {
+                            continue;
+                        }
+                        String text = line.toString(StandardCharsets.UTF_8.name()).trim();
+                        Expect reply = expect;
+                        if (reply == null || text.startsWith("EVENT#")) {
+                            line.writeTo(toClient);
+                            if (rangeLeft > 0) {
+                                // A checksum line, the next chunk follows
+                                raw = Math.min(chunkSize, rangeLeft);
+                                rangeLeft -= raw;
+                            }
+                        } else {
+                            expect = null;
+                            if (reply != Expect.QUIET && !(reply == Expect.LINE && text.startsWith("MOVED#"))) {
+                                line.writeTo(toClient);
+                            }
+                            if (reply == Expect.FILE) {
+                                raw = parseLong(text);
+                            } else if (reply == Expect.RANGE) {
+                                String[] header = text.split(" ");
+                                if (header.length == 4) {
+                                    chunkSize = parseLong(header[3]);
+                                    rangeLeft = parseLong(header[1]);
+                                    raw = Math.min(chunkSize, rangeLeft);
+                                    rangeLeft -= raw;
+                                }
+                            } else if (reply == Expect.BINARY && text.equals("BINARY")) {
+                                raw = Long.MAX_VALUE;
+                            }
+                            // Passed on before the client's thread can act on it
+                            route.writeClient(toClient.toByteArray(), 0, toClient.size());
+                            toClient.reset();
+                            replies.offer(text);
+                        }
+                        line.reset();
+                    }
+                    route.writeClient(toClient.toByteArray(), 0, toClient.size());
+                    toClient.reset();
+                }
+            } catch (IOException ex) {
+                // Treated as the node dropping the connection
+            }
+            if (!closing) {
+                lost = true;
+                replies.offer(LOST);
+                close();
+                route.lost(this);
+            }
+        }
+
+        private static long parseLong(String text) {
+            try {
+                return Math.max(0, Long.parseLong(text.trim()));
+            } catch (NumberFormatException ex) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * @return the command keyword of a request, upper case
+     */
+    private static String keyword(String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        return (space < 0 ? trimmed : trimmed.substring(0, space)).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @return the request without its keyword
+     */
+    private static String argument(String line) {
+        String trimmed = line.trim();
+        int space = trimmed.indexOf(' ');
+        return space < 0 ? "" : trimmed.substring(space + 1).trim();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
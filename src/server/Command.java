@@ -0,0 +1,31 @@
+package server;
+
+/**
+ * Commands a client can send. The name of each constant is the keyword the
+ * client types, matched without regard to case.
+ */
+enum Command {
+    BYE,
+    PWD,
+    DIR,
+    CD,
+    DOWNLOAD,
+    RANGE,
+    // Blackjack table commands
+    JOIN,
+    LEAVE,
+    BET,
+    HIT,
+    STAND,
+    DOUBLE,
+    STATE,
+    HINT,
+    // Takes over a session whose connection was lost, see Resumption
+    RESUME,
+    // Hands a table over from another node of the cluster, see Cluster
+    ADOPT,
+    // Switches the session to the binary protocol, see Frame
+    BINARY,
+    // Anything that is not one of the keywords above
+    UNKNOWN
+}
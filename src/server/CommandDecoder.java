@@ -0,0 +1,310 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits client requests into lines and decodes the command keyword without
+ * regular expressions or per request allocation. Bytes are read into a buffer
+ * owned by the decoder, the keyword is packed into a long and looked up in a
+ * table built once from the Command enum. Only the argument, when a handler
+ * asks for it, is turned into a String.
+ */
+class CommandDecoder {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+
+    // Requests longer than this are rejected
+    static final int MAX_LINE = 64 * 1024;
+
+    // Open addressing table from packed keyword to command. Sized to keep it
+    // sparse, every keyword fits in 8 bytes so a long key is exact.
+    private static final int TABLE_SIZE = 32;
+    private static final long[] keys = new long[TABLE_SIZE];
+    private static final Command[] commands = new Command[TABLE_SIZE];
+
+    static {
+        for (Command command : Command.values()) {
+            if (command == Command.UNKNOWN) {
+                continue;
+            }
+            byte[] name = command.name().getBytes(CHARSET);
+            long key = pack(name, 0, name.length);
+            int slot = slot(key);
+            while (commands[slot] != null) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            keys[slot] = key;
+            commands[slot] = command;
+        }
+    }
+
+    private final InputStream in;
+    private final byte[] readBuffer;
+    private int readPosition = 0;
+    private int readLimit = 0;
+
+    // Current line. Either a copy held in lineBuffer or a window onto a buffer
+    // handed to decode().
+    private byte[] lineBuffer = new byte[256];
+    private byte[] line;
+    private int lineStart;
+    private int lineEnd;
+
+    // Decoded parts of the current line
+    private Command command = Command.UNKNOWN;
+    private int argumentStart;
+    private int argumentEnd;
+    // Where nextLong() continues scanning the argument
+    private int scanPosition;
+
+    /**
+     * Decoder that reads lines from a blocking stream with readLine().
+     *
+     * @param in stream from the client
+     */
+    CommandDecoder(InputStream in) {
+        this.in = in;
+        this.readBuffer = new byte[8192];
+    }
+
+    /**
+     * Decoder for lines already framed by the caller, see decode().
+     */
+    CommandDecoder() {
+        this.in = null;
+        this.readBuffer = null;
+    }
+
+    /**
+     * Read the next line from the stream and decode it. The line terminator
+     * (LF or CRLF) is not part of the line.
+     *
+     * @return false if the client closed the stream
+     * @throws IOException if reading fails or the line is longer than MAX_LINE
+     */
+    boolean readLine() throws IOException {
+        int length = 0;
+        while (true) {
+            if (readPosition == readLimit) {
+                readLimit = in.read(readBuffer, 0, readBuffer.length);
+                readPosition = 0;
+                if (readLimit <= 0) {
+                    readLimit = 0;
+                    if (length == 0) {
+                        return false;
+                    }
+                    break; // Last line had no terminator
+                }
+            }
+
+            // Copy up to the next newline in one go
+            int start = readPosition;
+            int end = start;
+            while (end < readLimit && readBuffer[end] != '\n') {
+                end++;
+            }
+            int count = end - start;
+            if (length + count > lineBuffer.length) {
+                if (length + count > MAX_LINE) {
+                    throw new IOException("Client request too long");
+                }
+                byte[] grown = new byte[Math.min(MAX_LINE, Math.max(length + count, lineBuffer.length * 2))];
+                System.arraycopy(lineBuffer, 0, grown, 0, length);
+                lineBuffer = grown;
+            }
+            System.arraycopy(readBuffer, start, lineBuffer, length, count);
+            length += count;
+
+            if (end < readLimit) {
+                readPosition = end + 1; // Skip the newline
+                break;
+            }
+            readPosition = readLimit;
+        }
+
+        if (length > 0 && lineBuffer[length - 1] == '\r') {
+            length--;
+        }
+        decode(lineBuffer, 0, length);
+        return true;
+    }
+
+    /**
+     * Hand the stream over to another reader, as when a session switches to
+     * the binary protocol. Bytes already read past the current line come
+     * first. The decoder must not be used afterwards.
+     *
+     * @return the rest of the client's input
+     */
+    InputStream remainingInput() {
+        InputStream buffered = new ByteArrayInputStream(
+                Arrays.copyOfRange(readBuffer, readPosition, readLimit));
+        readPosition = readLimit;
+        return new SequenceInputStream(buffered, in);
+    }
+
+    /**
+     * Decode a line that has already been framed. The bytes are not copied,
+     * so they must not change while this line is being handled.
+     *
+     * @param buffer bytes holding the line
+     * @param start  index of the first byte of the line
+     * @param end    index one past the last byte, without the line terminator
+     */
+    void decode(byte[] buffer, int start, int end) {
+        line = buffer;
+        lineStart = start;
+        lineEnd = end;
+
+        // The keyword is the run of non blank bytes at the start of the line
+        int keywordEnd = start;
+        while (keywordEnd < end && !isBlank(buffer[keywordEnd])) {
+            keywordEnd++;
+        }
+        command = lookup(buffer, start, keywordEnd);
+
+        // The argument is the rest of the line with surrounding blanks removed
+        int from = keywordEnd;
+        int to = end;
+        while (from < to && isBlank(buffer[from])) {
+            from++;
+        }
+        while (to > from && isBlank(buffer[to - 1])) {
+            to--;
+        }
+        argumentStart = from;
+        argumentEnd = to;
+        scanPosition = from;
+    }
+
+    /**
+     * @return the command of the current line, UNKNOWN if not recognised
+     */
+    Command command() {
+        return command;
+    }
+
+    /**
+     * @return the text after the keyword, trimmed. Empty if there was none.
+     */
+    String argument() {
+        return new String(line, argumentStart, argumentEnd - argumentStart, CHARSET);
+    }
+
+    /**
+     * Parse the next blank separated decimal number of the argument, for
+     * requests that start with numeric fields such as RANGE.
+     *
+     * @return the number, which may be negative
+     * @throws NumberFormatException if the next field is missing, is not a
+     *                               number or does not fit a long
+     */
+    long nextLong() {
+        int i = scanPosition;
+        boolean negative = i < argumentEnd && line[i] == '-';
+        if (negative) {
+            i++;
+        }
+        int digitsStart = i;
+        long value = 0;
+        while (i < argumentEnd && !isBlank(line[i])) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9 || value > (Long.MAX_VALUE - digit) / 10) {
+                throw new NumberFormatException("Not a number");
+            }
+            value = value * 10 + digit;
+            i++;
+        }
+        if (i == digitsStart) {
+            throw new NumberFormatException("Missing number");
+        }
+        while (i < argumentEnd && isBlank(line[i])) {
+            i++;
+        }
+        scanPosition = i;
+        return negative ? -value : value;
+    }
+
+    /**
+     * @return the argument after the fields read by nextLong(), trimmed.
+     * Empty if there is nothing left.
+     */
+    String remainingArgument() {
+        return new String(line, scanPosition, argumentEnd - scanPosition, CHARSET);
+    }
+
+    /**
+     * @return the entire current line
+     */
+    String line() {
+        return new String(line, lineStart, lineEnd - lineStart, CHARSET);
+    }
+
+    /**
+     * Compare the current line with an ASCII string without allocating.
+     *
+     * @param text expected line, case sensitive
+     * @return true if the line is exactly text
+     */
+    boolean lineEquals(String text) {
+        if (lineEnd - lineStart != text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (line[lineStart + i] != text.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the command for the keyword held in buffer[start, end).
+     */
+    static Command lookup(byte[] buffer, int start, int end) {
+        if (end - start == 0 || end - start > 8) {
+            return Command.UNKNOWN;
+        }
+        long key = pack(buffer, start, end);
+        int slot = slot(key);
+        while (commands[slot] != null) {
+            if (keys[slot] == key) {
+                return commands[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return Command.UNKNOWN;
+    }
+
+    /**
+     * Pack up to 8 bytes into a long, folding ASCII letters to upper case.
+     * Any non ASCII byte makes the key impossible to match.
+     */
+    private static long pack(byte[] buffer, int start, int end) {
+        long key = 0;
+        for (int i = start; i < end; i++) {
+            int b = buffer[i];
+            if (b >= 'a' && b <= 'z') {
+                b -= 'a' - 'A';
+            } else if (b < 0) {
+                return -1;
+            }
+            key = (key << 8) | b;
+        }
+        return key;
+    }
+
+    private static int slot(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 59) & (TABLE_SIZE - 1);
+    }
+
+    private static boolean isBlank(byte b) {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '\f' || b == 0x0B;
+    }
+}
@@ -0,0 +1,132 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Caps on concurrent sessions, in total and per client address. The accept
+ * loops ask admit() before creating a session and every admitted session
+ * calls release() once when it closes. A client over a limit is turned away
+ * straight from the accept loop with a single "BUSY" line, before any thread,
+ * buffer or session state is spent on it.
+ */
+final class ConnectionLimits {
+
+    private static final byte[] BUSY = "BUSY\n".getBytes(StandardCharsets.US_ASCII);
+
+    private static final AtomicInteger sessions = new AtomicInteger();
+    private static final ConcurrentHashMap<InetAddress, AtomicInteger> perAddress =
+            new ConcurrentHashMap<>();
+    private static final LongAdder rejected = new LongAdder();
+
+    // 0 means no limit. Set before the server starts accepting.
+    private static volatile int maxSessions = 0;
+    private static volatile int maxPerAddress = 0;
+
+    private ConnectionLimits() {
+    }
+
+    /**
+     * @param max most sessions served at once, 0 for no limit
+     */
+    static void setMaxSessions(int max) {
+        maxSessions = Math.max(0, max);
+    }
+
+    /**
+     * @param max most sessions served at once for one client address, 0 for no limit
+     */
+    static void setMaxPerAddress(int max) {
+        maxPerAddress = Math.max(0, max);
+    }
+
+    /**
+     * @return number of connections turned away by a limit
+     */
+    static long rejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * Reserve a session for a newly accepted client.
+     *
+     * @param address address of the client
+     * @return true if the client may be served, false if a limit is reached
+     */
+    static boolean admit(InetAddress address) {
+        int max = maxSessions;
+        if (sessions.incrementAndGet() > max && max > 0) {
+            sessions.decrementAndGet();
+            rejected.increment();
+            return false;
+        }
+
+        int perAddressMax = maxPerAddress;
+        if (perAddressMax > 0) {
+            // Counts only change inside compute so none are lost to a
+            // concurrent release removing the entry
+            AtomicInteger count = perAddress.compute(address, (key, current) -> {
+                AtomicInteger counter = current == null ? new AtomicInteger() : current;
+                counter.incrementAndGet();
+                return counter;
+            });
+            if (count.get() > perAddressMax) {
+                release(address);
+                rejected.increment();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Give back the session reserved by admit() once it has closed.
+     *
+     * @param address address of the client
+     */
+    static void release(InetAddress address) {
+        sessions.decrementAndGet();
+        if (maxPerAddress > 0) {
+            // Entries are removed when they reach zero so the map only holds
+            // addresses with open sessions
+            perAddress.computeIfPresent(address,
+                    (key, count) -> count.decrementAndGet() == 0 ? null : count);
+        }
+    }
+
+    /**
+     * Tell a client the server cannot take it and close the connection. The
+     * reply fits in a fresh socket's send buffer, so this does not block.
+     *
+     * @param client connection to turn away
+     */
+    static void reject(Socket client) {
+        try (Socket toClose = client) {
+            OutputStream out = toClose.getOutputStream();
+            out.write(BUSY);
+        } catch (IOException e) {
+            // The client is being turned away anyway
+        }
+    }
+
+    /**
+     * Channel version of reject(Socket), used by the event loop server.
+     *
+     * @param client connection to turn away
+     */
+    static void reject(SocketChannel client) {
+        try (SocketChannel toClose = client) {
+            toClose.write(ByteBuffer.wrap(BUSY));
+        } catch (IOException e) {
+            // The client is being turned away anyway
+        }
+    }
+}
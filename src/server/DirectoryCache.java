@@ -0,0 +1,176 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Directory listings shared by every client session. The first DIR of a
+ * directory encodes it with ClientConnection.getDirectory() and starts
+ * watching it, later DIRs are answered from memory until the WatchService
+ * reports that something in the directory was created, deleted or modified.
+ * Listings for binary protocol sessions are cached the same way, encoded by
+ * ClientConnection.encodeDirectory().
+ *
+ * A directory is only watched while a listing of it is cached: the watch is
+ * cancelled when the listing is dropped and registered again by the next
+ * DIR, so registrations never outgrow MAX_ENTRIES.
+ */
+public class DirectoryCache {
+
+    // Directories beyond this many are listed on every request, uncached
+    private static final int MAX_ENTRIES = 4096;
+
+    private static final ConcurrentHashMap<Path, String> listings = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<Path, byte[]> encodedListings = new ConcurrentHashMap<>();
+    // Bumped on every change so a listing built during a change is not kept
+    private static final ConcurrentHashMap<Path, AtomicLong> generations = new ConcurrentHashMap<>();
+    // Watches of the cached directories. Registering, caching and dropping
+    // a listing hold this lock, so no listing is kept without its watch
+    private static final Object watchLock = new Object();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private static final WatchService watcher = createWatcher();
+
+    private DirectoryCache() {
+    }
+
+    /**
+     * Same result as ClientConnection.getDirectory(), served from the cache
+     * when the directory has not changed since it was last listed.
+     *
+     * @param directory absolute path String to a file directory
+     * @return the encoded directory listing
+     */
+    static String getDirectory(String directory) {
+        return get(directory, listings, ClientConnection::getDirectory);
+    }
+
+    /**
+     * Same result as ClientConnection.encodeDirectory(), served from the
+     * cache when the directory has not changed since it was last listed.
+     *
+     * @param directory absolute path String to a file directory
+     * @return fields of a Frame.LISTING frame, must not be modified
+     */
+    static byte[] getEncodedDirectory(String directory) {
+        return get(directory, encodedListings, ClientConnection::encodeDirectory);
+    }
+
+    private static <T> T get(String directory, ConcurrentHashMap<Path, T> cache,
+                             Function<String, T> lister) {
+        Path path = Paths.get(directory);
+        T listing = cache.get(path);
+        if (listing != null) {
+            hits.increment();
+            return listing;
+        }
+        misses.increment();
+
+        if (watcher == null || cache.size() >= MAX_ENTRIES) {
+            return lister.apply(directory);
+        }
+
+        // Watch before listing so no change can slip in between the two
+        WatchKey key;
+        AtomicLong generation;
+        long before;
+        synchronized (watchLock) {
+            try {
+                key = path.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+            } catch (IOException ex) {
+                return lister.apply(directory);
+            }
+            generation = generations.computeIfAbsent(path, p -> new AtomicLong());
+            before = generation.get();
+        }
+
+        listing = lister.apply(directory);
+        synchronized (watchLock) {
+            // Not kept if the directory changed while it was being listed,
+            // which also cancelled the watch
+            if (generation.get() == before && key.isValid()) {
+                cache.put(path, listing);
+            }
+        }
+        return listing;
+    }
+
+    /**
+     * @return number of DIR requests answered from memory
+     */
+    public static long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of DIR requests that had to list the directory
+     */
+    public static long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Create the shared WatchService and the thread that drains it. Returns
+     * null, which disables caching, if the file system cannot be watched.
+     */
+    private static WatchService createWatcher() {
+        WatchService service;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+        } catch (IOException | UnsupportedOperationException ex) {
+            ServerLog.warn("Directory watching unavailable, DIR results will not be cached");
+            return null;
+        }
+
+        Thread thread = new Thread(() -> watch(service), "Directory-Watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return service;
+    }
+
+    /**
+     * Drop the cached listings of every directory that reports a change and
+     * stop watching it until it is listed again.
+     *
+     * @param service the shared WatchService
+     */
+    private static void watch(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException ex) {
+                return;
+            }
+
+            Path path = (Path) key.watchable();
+            // Events themselves do not matter, any change (or an overflow)
+            // means the listing has to be rebuilt
+            key.pollEvents();
+            synchronized (watchLock) {
+                AtomicLong generation = generations.remove(path);
+                if (generation != null) {
+                    generation.incrementAndGet();
+                }
+                listings.remove(path);
+                encodedListings.remove(path);
+                key.cancel();
+            }
+        }
+    }
+}
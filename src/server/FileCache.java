@@ -0,0 +1,346 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contents of popular files shared by every client session, so a DOWNLOAD of
+ * a file many clients want does not open and read it again each time. Each
+ * cached file is read once into a direct buffer, outside the Java heap, and
+ * every session sends it from a read-only view of that buffer: the socket
+ * writes straight from it, nothing is copied onto the heap, and concurrent
+ * downloads share the one copy.
+ *
+ * The cache holds at most setCapacity() bytes. Room is made by evicting the
+ * least recently used files, but a file only gets in if it has been asked
+ * for more often than the files it would push out (TinyLFU admission, with
+ * request counts kept in a small FrequencySketch). A file downloaded once
+ * does not displace files downloaded all the time. Files bigger than an
+ * eighth of the capacity are never cached and are sent from disk as before.
+ *
+ * A cached file is checked against the file's size and modification time on
+ * every request, and reloaded once it has changed. A copy is used rather
+ * than a mapping of the file, so a file rewritten or truncated while it is
+ * being sent cannot change or fault what the client receives.
+ */
+public class FileCache {
+
+    // Default capacity, kept well under the direct memory limit, which is
+    // the heap limit unless set with -XX:MaxDirectMemorySize
+    private static final long DEFAULT_CAPACITY =
+            Math.min(64L * 1024 * 1024, Runtime.getRuntime().maxMemory() / 4);
+    // Files bigger than the capacity divided by this are not cached
+    private static final int MAX_FILE_SHARE = 8;
+
+    /**
+     * A file's contents as of its size and modification time.
+     */
+    private static final class Entry {
+        final ByteBuffer data; // Read only, never read through directly
+        final long size;
+        final FileTime modified;
+
+        Entry(ByteBuffer data, long size, FileTime modified) {
+            this.data = data;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        boolean matches(BasicFileAttributes attributes) {
+            return attributes.size() == size && attributes.lastModifiedTime().equals(modified);
+        }
+    }
+
+    // Least recently used first. Guarded by itself, as is residentBytes
+    private static final LinkedHashMap<Path, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private static long residentBytes = 0;
+    // Loads in progress, so concurrent misses on one file read it once
+    private static final ConcurrentHashMap<Path, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private static final FrequencySketch frequencies = new FrequencySketch();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    private static volatile long capacity = DEFAULT_CAPACITY;
+
+    private FileCache() {
+    }
+
+    /**
+     * Set the most bytes the cache holds, evicting files if it now holds
+     * more.
+     *
+     * @param bytes capacity in bytes, 0 turns caching off
+     */
+    static void setCapacity(long bytes) {
+        capacity = Math.max(0, bytes);
+        synchronized (entries) {
+            makeRoom(0, null);
+        }
+    }
+
+    /**
+     * The contents of a file to send to a client, from the cache when the
+     * file has not changed since it was cached.
+     *
+     * @param file file the client asked for
+     * @return a view of the contents to send from, positioned at 0, or null
+     * if the file is not cached and should be read from disk
+     */
+    static ByteBuffer get(File file) {
+        if (capacity == 0) {
+            return null;
+        }
+        Path path = file.toPath().toAbsolutePath().normalize();
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException ex) {
+            invalidate(path);
+            return null;
+        }
+        if (!attributes.isRegularFile()) {
+            return null;
+        }
+
+        synchronized (entries) {
+            frequencies.increment(path.hashCode());
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                if (entry.matches(attributes)) {
+                    hits.increment();
+                    return entry.data.duplicate();
+                }
+                remove(path, entry); // Changed on disk
+            }
+        }
+
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(path, load);
+        if (running != null) {
+            // Another session is reading the file, share its copy
+            Entry entry = running.join();
+            if (entry != null && entry.matches(attributes)) {
+                hits.increment();
+                return entry.data.duplicate();
+            }
+            misses.increment();
+            return null;
+        }
+        misses.increment();
+        Entry entry = null;
+        try {
+            entry = load(path, attributes);
+            return entry == null ? null : entry.data.duplicate();
+        } finally {
+            loading.remove(path, load);
+            load.complete(entry);
+        }
+    }
+
+    /**
+     * Read a file into a new entry if the cache takes it.
+     *
+     * @return the entry, null if the file is not cached
+     */
+    private static Entry load(Path path, BasicFileAttributes attributes) {
+        long size = attributes.size();
+        if (size > capacity / MAX_FILE_SHARE || !admits(path, size)) {
+            return null;
+        }
+
+        ByteBuffer data;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            data = ByteBuffer.allocateDirect((int) size);
+            while (data.hasRemaining()) {
+                if (channel.read(data, data.position()) < 0) {
+                    return null; // Shrank while being read
+                }
+            }
+            data.flip();
+            // Changed while being read, so the copy may be torn
+            if (!Files.readAttributes(path, BasicFileAttributes.class).lastModifiedTime()
+                    .equals(attributes.lastModifiedTime())) {
+                return null;
+            }
+        } catch (IOException | OutOfMemoryError ex) {
+            // Out of direct memory or unreadable, the file is sent from disk
+            return null;
+        }
+
+        Entry entry = new Entry(data.asReadOnlyBuffer(), size, attributes.lastModifiedTime());
+        synchronized (entries) {
+            if (!makeRoom(size, path)) {
+                return entry; // Sent this once, others took the room meanwhile
+            }
+            Entry replaced = entries.put(path, entry);
+            if (replaced != null) {
+                residentBytes -= replaced.size;
+            }
+            residentBytes += size;
+        }
+        return entry;
+    }
+
+    /**
+     * TinyLFU admission: a file gets in if the cache has room for it, or if
+     * it has been asked for more often than each of the least recently used
+     * files that would be evicted to make room.
+     */
+    private static boolean admits(Path path, long size) {
+        synchronized (entries) {
+            long needed = residentBytes + size - capacity;
+            if (needed <= 0) {
+                return true;
+            }
+            int frequency = frequencies.frequency(path.hashCode());
+            for (Iterator<Path> victims = entries.keySet().iterator(); needed > 0 && victims.hasNext(); ) {
+                Path victim = victims.next();
+                if (frequencies.frequency(victim.hashCode()) >= frequency) {
+                    return false;
+                }
+                needed -= entries.get(victim).size;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Evict least recently used files until there is room for size more
+     * bytes. Called holding the lock.
+     *
+     * @param keep file being added, not evicted
+     * @return false if there cannot be room
+     */
+    private static boolean makeRoom(long size, Path keep) {
+        if (size > capacity) {
+            return false;
+        }
+        List<Path> evicted = new ArrayList<>();
+        long resident = residentBytes;
+        for (Path path : entries.keySet()) {
+            if (resident + size <= capacity) {
+                break;
+            }
+            if (!path.equals(keep)) {
+                evicted.add(path);
+                resident -= entries.get(path).size;
+            }
+        }
+        for (Path path : evicted) {
+            remove(path, entries.get(path));
+        }
+        return residentBytes + size <= capacity;
+    }
+
+    private static void invalidate(Path path) {
+        synchronized (entries) {
+            Entry entry = entries.get(path);
+            if (entry != null) {
+                remove(path, entry);
+            }
+        }
+    }
+
+    /**
+     * Drop a file. Sessions still sending it keep their view, the memory is
+     * freed once the last of them is done. Called holding the lock.
+     */
+    private static void remove(Path path, Entry entry) {
+        entries.remove(path);
+        residentBytes -= entry.size;
+    }
+
+    /**
+     * @return number of DOWNLOADs sent from the cache
+     */
+    public static long hitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of DOWNLOADs of files that were not cached
+     */
+    public static long missCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return bytes of file contents held by the cache
+     */
+    public static long residentBytes() {
+        synchronized (entries) {
+            return residentBytes;
+        }
+    }
+
+    /**
+     * @return number of files held by the cache
+     */
+    public static int entryCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Approximate request counts of recently requested files: a count-min
+     * sketch of four rows of small saturating counters. Every counter is
+     * halved once SAMPLE_SIZE requests have been counted, so counts follow
+     * what is popular now rather than what once was. Used holding the
+     * cache's lock.
+     */
+    private static final class FrequencySketch {
+        private static final int WIDTH = 1024; // Counters per row, a power of two
+        private static final int ROWS = 4;
+        private static final int MAX_COUNT = 15;
+        private static final int SAMPLE_SIZE = 10 * WIDTH;
+        private static final int[] SEEDS = {0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F};
+
+        private final byte[] counters = new byte[ROWS * WIDTH];
+        private int counted = 0;
+
+        void increment(int key) {
+            for (int row = 0; row < ROWS; row++) {
+                int index = index(key, row);
+                if (counters[index] < MAX_COUNT) {
+                    counters[index]++;
+                }
+            }
+            if (++counted == SAMPLE_SIZE) {
+                for (int i = 0; i < counters.length; i++) {
+                    counters[i] = (byte) (counters[i] >> 1);
+                }
+                counted /= 2;
+            }
+        }
+
+        int frequency(int key) {
+            int frequency = MAX_COUNT;
+            for (int row = 0; row < ROWS; row++) {
+                frequency = Math.min(frequency, counters[index(key, row)]);
+            }
+            return frequency;
+        }
+
+        private static int index(int key, int row) {
+            int hash = key * SEEDS[row];
+            hash ^= hash >>> 16;
+            return row * WIDTH + (hash & (WIDTH - 1));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+/**
+ * Opcodes of the binary protocol. A client switches to it by sending BINARY
+ * after the HELLO greeting. The server answers BINARY, and from then on both
+ * sides only exchange frames: a varint length, then an opcode byte and its
+ * fields, the length covering the opcode and fields. Numbers are unsigned
+ * LEB128 varints, signed ones zigzag encoded first. Strings are a varint
+ * byte count followed by UTF-8. Servers that do not know BINARY reply
+ * "Client Request Error." and the client carries on in text.
+ */
+final class Frame {
+
+    // Requests, client to server. Fields follow the opcode in the order listed.
+    static final int BYE = 0x01;
+    static final int PWD = 0x02;
+    static final int DIR = 0x03;
+    static final int CD = 0x04;        // string directory
+    static final int DOWNLOAD = 0x05;  // string file name
+    static final int RANGE = 0x06;     // varint offset, signed count (-1 to end of file), string file name
+    static final int JOIN = 0x10;      // varint table
+    static final int LEAVE = 0x11;
+    static final int BET = 0x12;       // varint amount
+    static final int HIT = 0x13;
+    static final int STAND = 0x14;
+    static final int DOUBLE = 0x15;
+    static final int STATE = 0x16;
+    static final int HINT = 0x17;
+
+    // Replies, server to client
+    static final int TEXT = 0x80;      // string, PWD and CD results, LEAVE
+    static final int ERROR = 0x81;     // string, the text protocol's error reply (FNF, DDNE, NOT SEATED...)
+    static final int LISTING = 0x82;   // varint count, then per entry: byte 0 file 1 folder, varint size, string name
+    static final int FILE = 0x83;      // varint size, followed by DATA frames holding exactly that many bytes
+    static final int DATA = 0x84;      // raw bytes
+    static final int RANGE_HEADER = 0x85; // varint offset, count, file size, chunk size, then DATA and CHECKSUM per chunk
+    static final int CHECKSUM = 0x86;  // varint CRC32C of the DATA frame before it
+    static final int TABLE = 0x87;     // table state, see Table.writeState()
+    static final int ADVICE = 0x88;    // byte Strategy.Action ordinal, reply to HINT
+    // Pushed without a request when another player changes the table, same fields as TABLE
+    static final int EVENT = 0x89;
+
+    // Largest request frame accepted, matches the text protocol's line limit
+    static final int MAX_REQUEST = CommandDecoder.MAX_LINE;
+
+    private static final Command[] commands = new Command[0x20];
+
+    static {
+        commands[BYE] = Command.BYE;
+        commands[PWD] = Command.PWD;
+        commands[DIR] = Command.DIR;
+        commands[CD] = Command.CD;
+        commands[DOWNLOAD] = Command.DOWNLOAD;
+        commands[RANGE] = Command.RANGE;
+        commands[JOIN] = Command.JOIN;
+        commands[LEAVE] = Command.LEAVE;
+        commands[BET] = Command.BET;
+        commands[HIT] = Command.HIT;
+        commands[STAND] = Command.STAND;
+        commands[DOUBLE] = Command.DOUBLE;
+        commands[STATE] = Command.STATE;
+        commands[HINT] = Command.HINT;
+    }
+
+    private Frame() {
+    }
+
+    /**
+     * @param opcode request opcode
+     * @return the command it stands for, UNKNOWN if none
+     */
+    static Command command(int opcode) {
+        if (opcode < 0 || opcode >= commands.length || commands[opcode] == null) {
+            return Command.UNKNOWN;
+        }
+        return commands[opcode];
+    }
+}
@@ -0,0 +1,145 @@
+package server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads binary protocol request frames, see Frame, from a blocking stream.
+ * A frame is held in a buffer owned by the decoder and its fields are read
+ * in order with the read methods. Nothing is allocated per frame except the
+ * Strings of string fields.
+ */
+class FrameDecoder {
+
+    private final InputStream in;
+    private final byte[] readBuffer = new byte[8192];
+    private int readPosition = 0;
+    private int readLimit = 0;
+
+    // Current frame, opcode excluded
+    private byte[] frame = new byte[256];
+    private int frameLength;
+    private int fieldPosition;
+    private int opcode;
+
+    /**
+     * @param in stream from the client. Bytes the text decoder has already
+     *           buffered must be handed over with the stream.
+     */
+    FrameDecoder(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Read the next frame.
+     *
+     * @return false if the client closed the stream between frames
+     * @throws IOException if reading fails, the stream ends inside a frame or
+     *                     the frame is longer than Frame.MAX_REQUEST
+     */
+    boolean readFrame() throws IOException {
+        if (readPosition == readLimit && !fill()) {
+            return false;
+        }
+
+        long length = 0;
+        for (int shift = 0; ; shift += 7) {
+            if (shift > 28) {
+                throw new IOException("Malformed frame length");
+            }
+            int b = nextByte();
+            length |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 1 || length > Frame.MAX_REQUEST) {
+            throw new IOException("Frame length " + length + " out of range");
+        }
+
+        opcode = nextByte();
+        frameLength = (int) length - 1;
+        if (frameLength > frame.length) {
+            frame = new byte[Math.max(frameLength, frame.length * 2)];
+        }
+        int copied = 0;
+        while (copied < frameLength) {
+            if (readPosition == readLimit && !fill()) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            int count = Math.min(frameLength - copied, readLimit - readPosition);
+            System.arraycopy(readBuffer, readPosition, frame, copied, count);
+            readPosition += count;
+            copied += count;
+        }
+        fieldPosition = 0;
+        return true;
+    }
+
+    int opcode() {
+        return opcode;
+    }
+
+    /**
+     * @return the command of the current frame, UNKNOWN if not recognised
+     */
+    Command command() {
+        return Frame.command(opcode);
+    }
+
+    /**
+     * @return the next field as an unsigned varint
+     * @throws IOException if the frame ends first
+     */
+    long readVarint() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (fieldPosition == frameLength) {
+                throw new EOFException("Frame too short");
+            }
+            int b = frame[fieldPosition++];
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * @return the next field as a zigzag encoded signed varint
+     */
+    long readSignedVarint() throws IOException {
+        long value = readVarint();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * @return the next field as a varint byte count and UTF-8 bytes
+     */
+    String readString() throws IOException {
+        long length = readVarint();
+        if (length > frameLength - fieldPosition) {
+            throw new EOFException("Frame too short");
+        }
+        String value = new String(frame, fieldPosition, (int) length, StandardCharsets.UTF_8);
+        fieldPosition += (int) length;
+        return value;
+    }
+
+    private int nextByte() throws IOException {
+        if (readPosition == readLimit && !fill()) {
+            throw new EOFException("Stream ended inside a frame");
+        }
+        return readBuffer[readPosition++] & 0xFF;
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(readBuffer, 0, readBuffer.length);
+        readPosition = 0;
+        readLimit = Math.max(count, 0);
+        return count > 0;
+    }
+}
@@ -0,0 +1,164 @@
+package server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Builds binary protocol frames, see Frame, in a buffer that is reused for
+ * the life of a connection. Several frames can be queued before they are
+ * written out together with writeTo().
+ */
+class FrameEncoder {
+
+    // Room reserved in front of a frame for its length
+    private static final int MAX_LENGTH_BYTES = 5;
+
+    private byte[] buffer = new byte[1024];
+    private int position = 0;
+    private int frameStart = -1;
+
+    /**
+     * Start a frame. Fields are appended until end() is called.
+     *
+     * @param opcode opcode of the frame
+     * @return this encoder
+     */
+    FrameEncoder begin(int opcode) {
+        ensure(MAX_LENGTH_BYTES + 1);
+        frameStart = position;
+        position += MAX_LENGTH_BYTES;
+        buffer[position++] = (byte) opcode;
+        return this;
+    }
+
+    /**
+     * Finish the frame started by begin() by filling in its length.
+     */
+    void end() {
+        int payloadStart = frameStart + MAX_LENGTH_BYTES;
+        int length = position - payloadStart;
+        int lengthBytes = varintSize(length);
+        // Move the frame up against its length if the length is short
+        int shift = MAX_LENGTH_BYTES - lengthBytes;
+        if (shift > 0) {
+            System.arraycopy(buffer, payloadStart, buffer, payloadStart - shift, length);
+            position -= shift;
+        }
+        writeVarint(buffer, frameStart, length);
+        frameStart = -1;
+    }
+
+    /**
+     * Add the header of a frame whose fields the caller sends itself, as the
+     * file data of DATA frames is sent straight from the file.
+     *
+     * @param opcode      opcode of the frame
+     * @param fieldLength number of bytes that will follow the opcode
+     */
+    void header(int opcode, long fieldLength) {
+        ensure(MAX_LENGTH_BYTES * 2 + 1);
+        position = writeVarint(buffer, position, fieldLength + 1);
+        buffer[position++] = (byte) opcode;
+    }
+
+    FrameEncoder writeByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Append an unsigned varint.
+     */
+    FrameEncoder writeVarint(long value) {
+        ensure(10);
+        position = writeVarint(buffer, position, value);
+        return this;
+    }
+
+    /**
+     * Append a signed varint, zigzag encoded so small negatives stay short.
+     */
+    FrameEncoder writeSignedVarint(long value) {
+        return writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Append a varint byte count and the UTF-8 bytes of the string.
+     */
+    FrameEncoder writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        return writeBytes(bytes, 0, bytes.length);
+    }
+
+    FrameEncoder writeBytes(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, buffer, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * @return number of bytes queued
+     */
+    int size() {
+        return position;
+    }
+
+    /**
+     * @return copy of everything queued, for encoding a payload once and
+     * sending it many times
+     */
+    byte[] toByteArray() {
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * Discard everything queued.
+     */
+    void clear() {
+        position = 0;
+        frameStart = -1;
+    }
+
+    /**
+     * Write every queued frame and empty the buffer.
+     *
+     * @param out stream to the client
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+        out.flush();
+        position = 0;
+    }
+
+    private void ensure(int extra) {
+        if (position + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+        }
+    }
+
+    private static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    /**
+     * @return index after the last byte written
+     */
+    private static int writeVarint(byte[] target, int index, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target[index++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        target[index++] = (byte) value;
+        return index;
+    }
+}
@@ -0,0 +1,110 @@
+package server;
+
+/**
+ * Blackjack hands packed into an int, evaluated through lookup tables so
+ * nothing is allocated while dealing or scoring. The cards themselves are
+ * only needed to show the hand and are kept by the caller in a byte[].
+ *
+ * Layout: bits 0-5 hard total (aces as 1, saturating at 63), bit 6 set if
+ * the hand holds an ace, bits 8-12 number of cards (saturating at 31).
+ */
+final class Hand {
+
+    static final int EMPTY = 0;
+    // Longest hand that is recorded card by card
+    static final int MAX_CARDS = 31;
+    // Number of distinct key() values
+    static final int KEYS = 0x80;
+
+    private static final int KEY_MASK = KEYS - 1; // Hard total and ace bit
+    private static final int ACE = 0x40;
+    private static final int SIZE_SHIFT = 8;
+    private static final int ONE_CARD = 1 << SIZE_SHIFT;
+
+    // Best total and softness for every hard total / ace combination
+    private static final byte[] TOTAL = new byte[KEY_MASK + 1];
+    private static final boolean[] SOFT = new boolean[KEY_MASK + 1];
+    // Key after adding a card: NEXT[key * 13 + rank - 1]
+    private static final byte[] NEXT = new byte[(KEY_MASK + 1) * 13];
+
+    static {
+        for (int key = 0; key <= KEY_MASK; key++) {
+            int hard = key & 0x3F;
+            boolean soft = (key & ACE) != 0 && hard + 10 <= 21;
+            TOTAL[key] = (byte) (soft ? hard + 10 : hard);
+            SOFT[key] = soft;
+            for (int rank = 1; rank <= 13; rank++) {
+                int next = Math.min(hard + Math.min(rank, 10), 0x3F) | (key & ACE);
+                NEXT[key * 13 + rank - 1] = (byte) (rank == 1 ? next | ACE : next);
+            }
+        }
+    }
+
+    private Hand() {
+    }
+
+    /**
+     * @param hand packed hand
+     * @param card card code, see Card
+     * @return the hand with the card added
+     */
+    static int add(int hand, byte card) {
+        int size = hand & ~KEY_MASK;
+        if (size < MAX_CARDS << SIZE_SHIFT) {
+            size += ONE_CARD;
+        }
+        return size | NEXT[(hand & KEY_MASK) * 13 + card % 13];
+    }
+
+    /**
+     * @return the part of the hand that decides how it plays, the hard total
+     * and whether it holds an ace, from 0 to KEYS - 1. A key is itself a
+     * valid hand of that total.
+     */
+    static int key(int hand) {
+        return hand & KEY_MASK;
+    }
+
+    static int size(int hand) {
+        return hand >>> SIZE_SHIFT;
+    }
+
+    /**
+     * @return best total, counting one ace as 11 when that does not bust
+     */
+    static int total(int hand) {
+        return TOTAL[hand & KEY_MASK];
+    }
+
+    /**
+     * @return true if an ace is being counted as 11
+     */
+    static boolean isSoft(int hand) {
+        return SOFT[hand & KEY_MASK];
+    }
+
+    static boolean isBlackjack(int hand) {
+        return size(hand) == 2 && TOTAL[hand & KEY_MASK] == 21;
+    }
+
+    static boolean isBust(int hand) {
+        return (hand & 0x3F) > 21;
+    }
+
+    /**
+     * Append the cards of a hand separated by '.', for example "AS.TD".
+     *
+     * @param cards the hand's cards in the order they were dealt
+     * @param hand  packed hand, gives the number of cards to show
+     */
+    static StringBuilder append(StringBuilder out, byte[] cards, int hand) {
+        int size = Math.min(size(hand), cards.length);
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                out.append('.');
+            }
+            Card.append(out, cards[i]);
+        }
+        return out;
+    }
+}
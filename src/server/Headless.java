@@ -0,0 +1,81 @@
+package server;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Runs the server without the JavaFX console, for machines with no display
+ * and for containers. Nothing here loads a JavaFX class, and the server
+ * accepts connections as soon as it is bound; JMX registration and the
+ * seeding of resumption tokens finish in the background.
+ *
+ * Takes the same options as the console's ServerDaemon, for example
+ * java -cp out server.Headless --nio --idle-timeout=60 50001
+ *
+ * --config=file reads options from a properties file first, one per line:
+ * "port = 50001" for the port, "name = value" for --name=value and
+ * "name = true" for a switch such as --nio. Options on the command line
+ * win over the file wherever --config appears among them.
+ *
+ * Logs go to standard output. SIGTERM drains the server as the console's
+ * stop button does, see ServerDaemon.shutdown().
+ */
+public final class Headless {
+
+    private Headless() {
+    }
+
+    public static void main(String[] args) {
+        // Every config file first, so any option on the command line wins
+        List<String> options = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--config=")) {
+                try {
+                    readConfig(arg.substring("--config=".length()), options);
+                } catch (IOException ex) {
+                    ServerLog.error("Could not read " + arg.substring("--config=".length()), ex);
+                    ServerLog.flush();
+                    System.exit(-1);
+                }
+            }
+        }
+        for (String arg : args) {
+            if (!arg.startsWith("--config=")) {
+                options.add(arg);
+            }
+        }
+
+        // Runs until shut down, then exits the JVM
+        new ServerDaemon(options).run();
+    }
+
+    /**
+     * Add the options in a properties file to the list.
+     *
+     * @param file    path of the file
+     * @param options where the options are added
+     * @throws IOException if the file cannot be read
+     */
+    private static void readConfig(String file, List<String> options) throws IOException {
+        Properties config = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            config.load(in);
+        }
+        for (String name : config.stringPropertyNames()) {
+            String value = config.getProperty(name).trim();
+            if (name.equals("port")) {
+                options.add(value);
+            } else if (value.equalsIgnoreCase("true")) {
+                options.add("--" + name);
+            } else if (!value.equalsIgnoreCase("false")) {
+                options.add("--" + name + "=" + value);
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes sessions whose client has gone quiet. Every session gets a Timer
+ * that it touches whenever the client sends something, and one background
+ * thread runs the timers on a hashed timing wheel: a ring of SLOTS buckets,
+ * each holding the timers due on one tick. Touching a timer only writes the
+ * current tick, it is not moved on the wheel. When its bucket comes up the
+ * reaper checks the last touch and either puts the timer back in the bucket
+ * of its new deadline or expires it, so busy clients cost nothing beyond a
+ * volatile write per request however many sessions are open.
+ *
+ * A session that is handling a request, including sending a file, is busy
+ * and never idle however long the request takes.
+ *
+ * The same timers drain the server on shutdown. Once drain() is called every
+ * session is closed as soon as it is not busy, and closeAll() closes the
+ * rest when the drain deadline has passed.
+ */
+final class IdleReaper {
+
+    private static final long TICK_MILLIS = 250;
+    private static final int SLOTS = 512; // Must be a power of two
+
+    private static final Object lock = new Object();
+    private static final long startNanos = System.nanoTime();
+    private static final LongAdder reaped = new LongAdder();
+
+    // Buckets of the wheel, each guarded by itself
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final ArrayList<Timer>[] wheel = new ArrayList[SLOTS];
+
+    static {
+        for (int i = 0; i < SLOTS; i++) {
+            wheel[i] = new ArrayList<>();
+        }
+    }
+
+    // Idle time allowed in ticks, 0 turns reaping off. Set before sessions start.
+    private static volatile long timeoutTicks = 0;
+    // Tick the reaper has reached, read as the time of every touch
+    private static volatile long currentTick = 0;
+    private static volatile boolean running = false;
+    private static volatile boolean draining = false;
+    private static Thread reaper;
+
+    private IdleReaper() {
+    }
+
+    /**
+     * Close sessions that have not sent anything for this long. Starts the
+     * reaper thread, sessions are only watched once it runs.
+     *
+     * @param seconds idle time allowed, 0 to never close idle sessions
+     */
+    static void setIdleTimeout(long seconds) {
+        timeoutTicks = Math.max(0, seconds * 1000 / TICK_MILLIS);
+        synchronized (lock) {
+            if (reaper == null) {
+                reaper = new Thread(IdleReaper::run, "Idle-Reaper");
+                reaper.setDaemon(true);
+                reaper.start();
+                running = true;
+            }
+        }
+    }
+
+    /**
+     * Close every session as soon as it is not busy, for shutdown. Sessions
+     * are due on the next tick, so calling this again picks up any timer
+     * that was being rescheduled at the time.
+     */
+    static void drain() {
+        draining = true;
+        long next = currentTick + 1;
+        for (Timer timer : takeAll()) {
+            schedule(timer, next);
+        }
+    }
+
+    /**
+     * End a drain, for a server started again in the same process.
+     */
+    static void reopen() {
+        draining = false;
+    }
+
+    /**
+     * Close every session still open, busy or not. Used once the drain
+     * deadline has passed.
+     */
+    static void closeAll() {
+        draining = true;
+        for (Timer timer : takeAll()) {
+            close(timer);
+        }
+    }
+
+    /**
+     * @return true once the server has started draining
+     */
+    static boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return number of sessions closed for being idle
+     */
+    static long reapedCount() {
+        return reaped.sum();
+    }
+
+    /**
+     * Start watching a new session.
+     *
+     * @param onIdle closes the session, called on the reaper thread or the
+     *               thread shutting the server down. Must not block.
+     * @return timer for the session to touch and cancel
+     */
+    static Timer watch(Runnable onIdle) {
+        Timer timer = new Timer(onIdle);
+        if (running) {
+            schedule(timer, timer.lastActive + period());
+        }
+        return timer;
+    }
+
+    /**
+     * @return ticks until an idle timer is next checked. Without a timeout
+     * the timers are still kept on the wheel, for drain(), and checked once
+     * per turn.
+     */
+    private static long period() {
+        long timeout = timeoutTicks;
+        return timeout > 0 ? timeout : SLOTS;
+    }
+
+    private static ArrayList<Timer> takeAll() {
+        ArrayList<Timer> all = new ArrayList<>();
+        for (ArrayList<Timer> slot : wheel) {
+            synchronized (slot) {
+                all.addAll(slot);
+                slot.clear();
+            }
+        }
+        return all;
+    }
+
+    private static void close(Timer timer) {
+        Runnable onIdle = timer.onIdle;
+        if (onIdle == null) {
+            return; // Cancelled
+        }
+        timer.expired = true;
+        try {
+            onIdle.run();
+        } catch (RuntimeException ex) {
+            ServerLog.error("Error closing idle session", ex);
+        }
+    }
+
+    private static void schedule(Timer timer, long tick) {
+        ArrayList<Timer> slot = wheel[(int) (tick & (SLOTS - 1))];
+        synchronized (slot) {
+            slot.add(timer);
+        }
+    }
+
+    private static void run() {
+        long processed = currentTick;
+        while (true) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = (System.nanoTime() - startNanos) / (TICK_MILLIS * 1_000_000);
+            currentTick = now;
+            // Catch up on every tick since the last pass, the thread may have been late
+            while (processed < now) {
+                processed++;
+                expire(processed, now);
+            }
+        }
+    }
+
+    /**
+     * Take the bucket for one tick and reschedule or expire its timers. A
+     * deadline more than a full turn of the wheel away shares the bucket and
+     * is simply put back.
+     */
+    private static void expire(long tick, long now) {
+        ArrayList<Timer> slot = wheel[(int) (tick & (SLOTS - 1))];
+        ArrayList<Timer> due;
+        synchronized (slot) {
+            if (slot.isEmpty()) {
+                return;
+            }
+            due = new ArrayList<>(slot);
+            slot.clear();
+        }
+
+        long timeout = timeoutTicks;
+        long period = period();
+        for (Timer timer : due) {
+            if (timer.onIdle == null) {
+                continue;
+            }
+            if (draining) {
+                // Closed as soon as the request in progress is done
+                if (timer.busy) {
+                    schedule(timer, now + 1);
+                } else {
+                    close(timer);
+                }
+                continue;
+            }
+            if (timer.busy) {
+                schedule(timer, now + period);
+                continue;
+            }
+            long deadline = timer.lastActive + period;
+            if (timeout == 0 || deadline > now) {
+                schedule(timer, Math.max(deadline, now + 1));
+                continue;
+            }
+            reaped.increment();
+            close(timer);
+        }
+    }
+
+    /**
+     * Idle timer of one session. Touched by the session's own thread, read
+     * by the reaper. A cancelled timer stays on the wheel until its bucket
+     * comes up, so it lets go of onIdle, and with it the closed session.
+     */
+    static final class Timer {
+        private volatile Runnable onIdle; // Null once cancelled
+        private volatile long lastActive = currentTick;
+        private volatile boolean busy = false;
+        private volatile boolean expired = false;
+
+        private Timer(Runnable onIdle) {
+            this.onIdle = onIdle;
+        }
+
+        /**
+         * The client sent something, restart the idle time.
+         */
+        void touch() {
+            lastActive = currentTick;
+        }
+
+        /**
+         * Mark the session as busy, for example while a file is sent, or idle
+         * again. The idle time restarts when the work ends.
+         */
+        void setBusy(boolean busy) {
+            this.busy = busy;
+            lastActive = currentTick;
+        }
+
+        /**
+         * Stop watching the session, it has closed.
+         */
+        void cancel() {
+            onIdle = null;
+        }
+
+        /**
+         * @return true if the reaper closed the session for being idle
+         */
+        boolean isExpired() {
+            return expired;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only journal of state changes, written to memory-mapped segment
+ * files in the state directory. An append copies the record into the mapped
+ * segment and returns, it never waits for the disk. A background thread
+ * forces the segment to disk every sync interval, so one fsync commits every
+ * record appended since the last (group commit). A crash loses at most the
+ * records of the last interval.
+ *
+ * Each segment is named after the sequence number of its first record and
+ * holds records of the form: int length, int CRC32C, long sequence number,
+ * then length bytes of a type byte and the payload. The file is zero filled,
+ * so a length of zero marks the end. Replay stops at a record whose checksum
+ * does not match, which is how a write torn by a crash shows up.
+ */
+class Journal implements Closeable {
+
+    static final int SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = 16;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".log";
+
+    /**
+     * Receives records during replay.
+     */
+    interface RecordHandler {
+        /**
+         * @param sequence sequence number of the record
+         * @param type     type byte given to append()
+         * @param payload  the record's payload, only valid during the call
+         * @throws IOException if the payload cannot be decoded
+         */
+        void record(long sequence, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long syncMillis;
+    private final Thread syncer;
+    private final LatencyHistogram appendLatency = new LatencyHistogram();
+    private final LatencyHistogram syncLatency = new LatencyHistogram();
+
+    // Guarded by this
+    private MappedByteBuffer segment;
+    private long segmentFirst; // Sequence number the current segment starts at
+    private long nextSequence;
+    private final CRC32C crc = new CRC32C();
+
+    private volatile long appended; // Last sequence number appended
+    private volatile long committed; // Last sequence number forced to disk
+    private volatile boolean closed = false;
+    private final Object syncLock = new Object();
+
+    /**
+     * Start a new segment for records from firstSequence on. Existing
+     * segments are left as they are, see replay() and deleteBefore().
+     *
+     * @param directory     where segments are kept
+     * @param firstSequence number of the first record appended
+     * @param segmentSize   bytes per segment file
+     * @param syncMillis    how often appended records are forced to disk
+     * @throws IOException if the segment cannot be created
+     */
+    Journal(Path directory, long firstSequence, int segmentSize, long syncMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncMillis = syncMillis;
+        this.nextSequence = firstSequence;
+        this.appended = firstSequence - 1;
+        this.committed = firstSequence - 1;
+        synchronized (this) {
+            openSegment();
+        }
+
+        syncer = new Thread(this::syncLoop, "Journal-Sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Append a record. Thread safe, and does not wait for the disk.
+     *
+     * @param type    record type, handed back by replay()
+     * @param payload array holding the payload
+     * @param offset  start of the payload in the array
+     * @param length  payload length
+     * @return sequence number of the record
+     * @throws IOException if a new segment is needed and cannot be created
+     */
+    long append(byte type, byte[] payload, int offset, int length) throws IOException {
+        long started = System.nanoTime();
+        int size = HEADER_SIZE + 1 + length;
+        if (size > segmentSize) {
+            throw new IllegalArgumentException("Journal record of " + length + " bytes is too large");
+        }
+
+        long sequence;
+        synchronized (this) {
+            if (closed) {
+                throw new IOException("Journal is closed");
+            }
+            if (segment.remaining() < size) {
+                roll();
+            }
+            sequence = nextSequence++;
+            crc.reset();
+            crc.update(type);
+            crc.update(payload, offset, length);
+            segment.putInt(1 + length);
+            segment.putInt((int) crc.getValue());
+            segment.putLong(sequence);
+            segment.put(type);
+            segment.put(payload, offset, length);
+            appended = sequence;
+        }
+        appendLatency.record(System.nanoTime() - started);
+        return sequence;
+    }
+
+    /**
+     * Close the current segment and continue in a new one. Used before a
+     * snapshot, every record in the closed segments is then covered by it.
+     *
+     * @return sequence number of the last record in the closed segments
+     * @throws IOException if the new segment cannot be created
+     */
+    synchronized long roll() throws IOException {
+        segment.force();
+        openSegment();
+        return segmentFirst - 1;
+    }
+
+    /**
+     * Delete segments that only hold records before a sequence number.
+     *
+     * @param sequence first record number that must be kept
+     * @throws IOException if the directory cannot be read
+     */
+    void deleteBefore(long sequence) throws IOException {
+        long current;
+        synchronized (this) {
+            current = segmentFirst;
+        }
+        List<Long> segments = segments(directory);
+        for (int i = 0; i < segments.size(); i++) {
+            long first = segments.get(i);
+            // A segment ends where the next one starts
+            long next = i + 1 < segments.size() ? segments.get(i + 1) : Long.MAX_VALUE;
+            if (first < current && next <= sequence) {
+                Files.deleteIfExists(segmentPath(directory, first));
+            }
+        }
+    }
+
+    /**
+     * Force everything appended so far to disk and wait for it.
+     */
+    void commit() {
+        synchronized (syncLock) {
+            long target = appended;
+            if (target <= committed) {
+                return;
+            }
+            MappedByteBuffer current;
+            synchronized (this) {
+                current = segment;
+            }
+            // Older segments were forced when they were rolled
+            long started = System.nanoTime();
+            current.force();
+            syncLatency.record(System.nanoTime() - started);
+            committed = target;
+        }
+    }
+
+    /**
+     * @return sequence number of the last record known to be on disk
+     */
+    long committedSequence() {
+        return committed;
+    }
+
+    /**
+     * @return time taken by append(), which is what a table pays per record
+     */
+    LatencyHistogram appendLatency() {
+        return appendLatency;
+    }
+
+    /**
+     * @return time taken by each group commit
+     */
+    LatencyHistogram syncLatency() {
+        return syncLatency;
+    }
+
+    /**
+     * Commit what has been appended and stop the sync thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        syncer.interrupt();
+        commit();
+    }
+
+    private void syncLoop() {
+        while (!closed) {
+            try {
+                Thread.sleep(syncMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            commit();
+        }
+    }
+
+    private void openSegment() throws IOException {
+        segmentFirst = nextSequence;
+        // A segment already starting here was left empty by a crash, replay
+        // found nothing in it
+        try (FileChannel channel = FileChannel.open(segmentPath(directory, segmentFirst),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping stays valid after the channel is closed
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * Hand every intact record after a sequence number to the handler, oldest
+     * first.
+     *
+     * @param directory where the segments are kept
+     * @param after     records up to and including this number are skipped
+     * @param handler   receives each record
+     * @return sequence number of the last record found, or after if none
+     * @throws IOException if a segment cannot be read or the handler fails
+     */
+    static long replay(Path directory, long after, RecordHandler handler) throws IOException {
+        long last = after;
+        CRC32C crc = new CRC32C();
+        for (long first : segments(directory)) {
+            MappedByteBuffer segment;
+            try (FileChannel channel = FileChannel.open(segmentPath(directory, first), StandardOpenOption.READ)) {
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            while (segment.remaining() >= HEADER_SIZE) {
+                int length = segment.getInt();
+                int checksum = segment.getInt();
+                if (length <= 0 || length > segment.remaining() - 8) {
+                    break; // End of the segment
+                }
+                long sequence = segment.getLong();
+                ByteBuffer record = segment.slice();
+                record.limit(length);
+                crc.reset();
+                crc.update(record);
+                if ((int) crc.getValue() != checksum) {
+                    ServerLog.warn("Journal record " + sequence + " is damaged, ignoring the rest of "
+                            + segmentPath(directory, first).getFileName());
+                    break;
+                }
+                record.rewind();
+                byte type = record.get();
+                if (sequence > after) {
+                    handler.record(sequence, type, record.slice());
+                    last = Math.max(last, sequence);
+                }
+                segment.position(segment.position() + length);
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return first sequence number of every segment in the directory, in order
+     */
+    private static List<Long> segments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length())));
+                } catch (NumberFormatException ex) {
+                    ServerLog.warn("Ignoring unexpected journal file " + name);
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static Path segmentPath(Path directory, long first) {
+        return directory.resolve(String.format("%s%020d%s", PREFIX, first, SUFFIX));
+    }
+}
@@ -27,24 +27,34 @@ package server;
 
 
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
-import javafx.scene.control.TextField;
+import javafx.scene.control.Label;
+import javafx.scene.control.TextArea;
 import javafx.stage.Stage;
 
 import java.util.List;
 
 
 public class Main extends Application {
+    // Most characters kept in the console, older output is trimmed away
+    private static final int CONSOLE_LIMIT = 100_000;
+    // How often the metrics line under the log is refreshed
+    private static final long METRICS_INTERVAL_MILLIS = 1000;
+
     List<String> args;
+    private ServerDaemon daemon; // The running server, null while stopped
+    @FXML
+    TextArea logArea;
     @FXML
-    static TextField logArea;
+    Label metricsLabel;
 
-    static  TextField getLogArea() {
-        return logArea;
-    }
+    // Log output waiting for the FX thread, and whether an update is queued
+    private final StringBuilder pendingLog = new StringBuilder();
+    private boolean updateQueued = false;
 
 
     public static void main(String[] args) {
@@ -66,16 +76,101 @@ public class Main extends Application {
         primaryStage.show();
     }
 
+    /**
+     * Called by the FXMLLoader once the console is loaded. Routes the server
+     * log into the log area and starts refreshing the metrics line.
+     */
+    @FXML
+    public void initialize() {
+        ServerLog.setConsole(this::appendLog);
+        startMetricsRefresh();
+    }
+
+    /**
+     * Show ServerMetrics.summary() under the log, refreshed every
+     * METRICS_INTERVAL_MILLIS. The summary is built on a background thread
+     * so the FX thread only sets the text.
+     */
+    private void startMetricsRefresh() {
+        Thread refresher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(METRICS_INTERVAL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                String summary = ServerMetrics.summary();
+                Platform.runLater(() -> metricsLabel.setText(summary));
+            }
+        }, "Metrics-Console");
+        refresher.setDaemon(true);
+        refresher.start();
+    }
+
+    /**
+     * Receives log batches from the log writer thread. Batches are collected
+     * until the FX thread gets to them so there is at most one pending
+     * Platform.runLater at a time, however fast the server logs.
+     *
+     * @param text formatted log lines
+     */
+    private void appendLog(String text) {
+        synchronized (pendingLog) {
+            pendingLog.append(text);
+            // Anything that would be trimmed from the console anyway is dropped here
+            if (pendingLog.length() > CONSOLE_LIMIT) {
+                pendingLog.delete(0, pendingLog.length() - CONSOLE_LIMIT);
+            }
+            if (updateQueued) {
+                return;
+            }
+            updateQueued = true;
+        }
+        Platform.runLater(this::flushLog);
+    }
+
+    /**
+     * Runs on the FX thread. Appends everything collected so far and keeps the
+     * console within CONSOLE_LIMIT characters.
+     */
+    private void flushLog() {
+        String text;
+        synchronized (pendingLog) {
+            text = pendingLog.toString();
+            pendingLog.setLength(0);
+            updateQueued = false;
+        }
+        logArea.appendText(text);
+        int excess = logArea.getLength() - CONSOLE_LIMIT;
+        if (excess > 0) {
+            logArea.deleteText(0, excess);
+        }
+    }
+
     @FXML
     public void startServer() {
+        if (daemon != null) {
+            ServerLog.info("Server is already running");
+            return;
+        }
 
 //        Create new thread to handle the server daemon. It always waits
 //        and blocks so it can't be the same thread as UI
-        new Thread(new ServerDaemon()).start();
+        daemon = new ServerDaemon();
+        new Thread(daemon).start();
     }
 
     @FXML
     public void stopServer() {
-        System.out.println("Stopping server!");
+        if (daemon == null) {
+            ServerLog.info("Server is not running");
+            return;
+        }
+        ServerLog.info("Stopping server!");
+
+        // Draining waits for hands and downloads, keep it off the FX thread
+        ServerDaemon stopping = daemon;
+        daemon = null;
+        new Thread(stopping::shutdown, "Shutdown").start();
     }
 }
@@ -0,0 +1,54 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Plain text metrics endpoint for scrapers such as Prometheus. Answers any
+ * GET with ServerMetrics.scrapeText(). Bound to the loopback address only so
+ * metrics are not exposed beyond the machine.
+ */
+class MetricsEndpoint {
+
+    private MetricsEndpoint() {
+    }
+
+    /**
+     * Start serving metrics on a background thread.
+     *
+     * @param port local port to listen on
+     */
+    static void start(int port) {
+        HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException ex) {
+            ServerLog.error("Could not start the metrics endpoint on port " + port, ex);
+            return;
+        }
+        server.createContext("/", MetricsEndpoint::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Metrics-Endpoint");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        ServerLog.info("Metrics available at http://127.0.0.1:" + port + "/metrics");
+    }
+
+    private static void handle(HttpExchange exchange) throws IOException {
+        byte[] body = ServerMetrics.scrapeText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Messages pushed to one client that did not ask for them, such as table
+ * events. Table shards only add to the outbox, which never blocks, and a
+ * small pool of writer threads sends everything pending in one write, so a
+ * burst of events costs one syscall and a slow client never holds up the
+ * table that produced them.
+ *
+ * Messages carry a key. A new message replaces a pending one with the same
+ * key, so a client that falls behind receives only the latest state of its
+ * table rather than every step. A client whose outbox still fills up, or
+ * whose socket has not accepted a write for SLOW_CONSUMER_NANOS, is dropped
+ * by closing its connection. A watchdog thread checks the writes in progress
+ * every WATCHDOG_MILLIS, so a client that stops reading at a quiet table is
+ * dropped too and cannot hold a writer thread for good.
+ *
+ * The connection's own replies must be written while holding writeLock(),
+ * which keeps pushed messages from landing in the middle of a reply.
+ */
+class Outbox {
+
+    static final int CAPACITY = 16;
+    private static final long SLOW_CONSUMER_NANOS = 5_000_000_000L;
+    private static final long WATCHDOG_MILLIS = 1000;
+
+    private static final AtomicInteger writerCount = new AtomicInteger();
+    private static final ExecutorService writers = Executors.newFixedThreadPool(
+            Math.max(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+                Thread thread = new Thread(runnable, "Outbox-Writer-" + writerCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private static final LongAdder offered = new LongAdder();
+    private static final LongAdder coalesced = new LongAdder();
+    private static final LongAdder writes = new LongAdder();
+    private static final LongAdder droppedClients = new LongAdder();
+
+    // Outboxes with a write in progress, watched for their deadline
+    private static final Set<Outbox> writing = ConcurrentHashMap.newKeySet();
+
+    static {
+        Thread watchdog = new Thread(Outbox::watchWrites, "Outbox-Watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private final OutputStream out;
+    private final Closeable connection;
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Pending messages, guarded by this
+    private final long[] keys = new long[CAPACITY];
+    private final byte[][] messages = new byte[CAPACITY][];
+    private int count = 0;
+    private boolean scheduled = false;
+    private boolean closed = false;
+
+    // Only touched by the writer currently holding writeLock
+    private byte[] batch = new byte[4096];
+    private volatile long writeStarted = 0; // 0 while no write is in progress
+
+    // Set once the session switches to the binary protocol, changed holding this
+    private volatile boolean binary = false;
+
+    /**
+     * @param out        stream to the client
+     * @param connection closed to drop the client if it cannot keep up
+     */
+    Outbox(OutputStream out, Closeable connection) {
+        this.out = out;
+        this.connection = connection;
+    }
+
+    /**
+     * @return lock to hold while writing anything else to the client
+     */
+    ReentrantLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * @return true if messages have to be encoded for the binary protocol
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Switch to the binary protocol. Call holding writeLock(), right after
+     * the switch is acknowledged. Pending text messages are discarded.
+     */
+    synchronized void switchToBinary() {
+        binary = true;
+        clear();
+    }
+
+    /**
+     * Queue a message. Never blocks.
+     *
+     * @param key           a pending message with the same key is replaced
+     * @param message       bytes to send, not copied so they must not change
+     * @param binaryMessage true if the message was encoded for the binary
+     *                      protocol, it is discarded if the session has since
+     *                      switched protocol
+     * @return false if the client has been dropped
+     */
+    boolean offer(long key, byte[] message, boolean binaryMessage) {
+        offered.increment();
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (binaryMessage != binary) {
+                return true; // Encoded just before the session switched
+            }
+            if (isStuck(System.nanoTime())) {
+                drop("stopped reading");
+                return false;
+            }
+
+            for (int i = 0; i < count; i++) {
+                if (keys[i] == key) {
+                    messages[i] = message;
+                    coalesced.increment();
+                    return true;
+                }
+            }
+            if (count == CAPACITY) {
+                drop("outbox full");
+                return false;
+            }
+            keys[count] = key;
+            messages[count] = message;
+            count++;
+            schedule();
+            return true;
+        }
+    }
+
+    /**
+     * Call after releasing writeLock(), so messages a writer could not send
+     * while the lock was held go out.
+     */
+    synchronized void resume() {
+        schedule();
+    }
+
+    /**
+     * Stop sending. Pending messages are discarded.
+     */
+    synchronized void close() {
+        closed = true;
+        clear();
+    }
+
+    static long offeredCount() {
+        return offered.sum();
+    }
+
+    static long coalescedCount() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return number of writes to client sockets, each holding one or more messages
+     */
+    static long writeCount() {
+        return writes.sum();
+    }
+
+    static long droppedClientCount() {
+        return droppedClients.sum();
+    }
+
+    private void schedule() {
+        if (!scheduled && count > 0 && !closed) {
+            scheduled = true;
+            writers.execute(this::flush);
+        }
+    }
+
+    /**
+     * Runs on a writer thread. Sends pending messages until none are left or
+     * the connection is busy writing a reply, in which case resume() picks
+     * up where this left off.
+     */
+    private void flush() {
+        while (true) {
+            int length;
+            synchronized (this) {
+                if (count == 0 || closed || !writeLock.tryLock()) {
+                    scheduled = false;
+                    return;
+                }
+                length = takeBatch();
+            }
+
+            try {
+                writeStarted = System.nanoTime();
+                writing.add(this);
+                out.write(batch, 0, length);
+                out.flush();
+                writes.increment();
+            } catch (IOException ex) {
+                // The connection's own thread sees the failure on its next read
+                close();
+            } finally {
+                writing.remove(this);
+                writeStarted = 0;
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true if a write has been blocked for SLOW_CONSUMER_NANOS
+     */
+    private boolean isStuck(long now) {
+        long started = writeStarted;
+        return started != 0 && now - started > SLOW_CONSUMER_NANOS;
+    }
+
+    /**
+     * Runs on the watchdog thread. Drops clients whose write has passed its
+     * deadline, closing the connection fails the blocked write and frees
+     * the writer thread.
+     */
+    private static void watchWrites() {
+        while (true) {
+            try {
+                Thread.sleep(WATCHDOG_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Outbox outbox : writing) {
+                if (outbox.isStuck(now)) {
+                    synchronized (outbox) {
+                        if (!outbox.closed && outbox.isStuck(now)) {
+                            outbox.drop("stopped reading");
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Move every pending message into the batch buffer. Called holding this.
+     *
+     * @return number of bytes in the batch
+     */
+    private int takeBatch() {
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += messages[i].length;
+        }
+        if (length > batch.length) {
+            batch = new byte[Math.max(length, batch.length * 2)];
+        }
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            System.arraycopy(messages[i], 0, batch, position, messages[i].length);
+            position += messages[i].length;
+        }
+        clear();
+        return length;
+    }
+
+    private void clear() {
+        for (int i = 0; i < count; i++) {
+            messages[i] = null;
+        }
+        count = 0;
+    }
+
+    private void drop(String reason) {
+        droppedClients.increment();
+        ServerLog.warn("Dropping slow client, " + reason);
+        closed = true;
+        clear();
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            ServerLog.error("Error closing slow client", ex);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps table and session state across restarts and crashes. Turned on by
+ * giving the server a --state-dir, every call is a no-op otherwise.
+ *
+ * Every change to a table is appended to the Journal as a record of the
+ * table's new state, written by the table's shard thread right after the
+ * change. Sessions record their directory and table the same way. Every
+ * snapshot interval the journal is rolled over, the state of every table and
+ * session is written to a snapshot file and the journal segments it covers
+ * are deleted, so recovery never replays more than one interval.
+ *
+ * Recovery loads the snapshot and replays the journal after it, the last
+ * record of each table or session wins. Hands that were in play are void and
+ * their bets returned, see Table.writeSnapshot(). Recovered sessions are
+ * parked in Resumption, so their players keep their seats and chips if they
+ * resume in time.
+ */
+final class Persistence {
+
+    // Journal record types
+    static final byte TABLE = 1;
+    static final byte SESSION = 2;
+    static final byte SESSION_CLOSED = 3;
+
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+    // Marks the start of a snapshot file, followed by a version number
+    private static final int SNAPSHOT_MAGIC = 0x424A5353; // "BJSS"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Last recorded state of a session.
+     */
+    static final class SessionState {
+        final long session;
+        final int tableId; // -1 for none
+        final String directory;
+        final String token; // Resumption token, empty for none
+
+        SessionState(long session, int tableId, String directory, String token) {
+            this.session = session;
+            this.tableId = tableId;
+            this.directory = directory;
+            this.token = token;
+        }
+    }
+
+    /**
+     * Reusable buffer a record is encoded into before it is appended.
+     */
+    private static final class RecordBuffer extends ByteArrayOutputStream {
+        final DataOutputStream data = new DataOutputStream(this);
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    private static final ThreadLocal<RecordBuffer> buffers = ThreadLocal.withInitial(RecordBuffer::new);
+    private static final ConcurrentHashMap<Long, SessionState> sessions = new ConcurrentHashMap<>();
+    private static final Object snapshotLock = new Object();
+
+    private static volatile Journal journal = null;
+    private static Path directory;
+    private static Thread snapshotter;
+
+    private Persistence() {
+    }
+
+    /**
+     * Recover the state saved in a directory into TableScheduler.shared(),
+     * then start journaling. Called once at startup, before any session.
+     *
+     * @param stateDirectory  where the journal and snapshots are kept
+     * @param syncMillis      how often the journal is forced to disk
+     * @param snapshotSeconds how often a snapshot is taken
+     * @throws IOException if the state cannot be read or the journal created
+     */
+    static void open(Path stateDirectory, long syncMillis, long snapshotSeconds) throws IOException {
+        Files.createDirectories(stateDirectory);
+        directory = stateDirectory;
+        long last = recover();
+        journal = new Journal(directory, last + 1, Journal.SEGMENT_SIZE, syncMillis);
+
+        snapshotter = new Thread(() -> {
+            while (journal != null) {
+                try {
+                    Thread.sleep(snapshotSeconds * 1000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                snapshot();
+            }
+        }, "Snapshotter");
+        snapshotter.setDaemon(true);
+        snapshotter.start();
+    }
+
+    /**
+     * Take a final snapshot and close the journal. Changes made afterwards
+     * are not saved, so sessions closed by a shutdown are restored with the
+     * state they had when it began.
+     */
+    static void close() {
+        if (journal == null) {
+            return;
+        }
+        snapshot();
+        synchronized (snapshotLock) {
+            snapshotter.interrupt();
+            journal.close();
+            journal = null;
+        }
+        ServerLog.info("Saved state to " + directory);
+    }
+
+    /**
+     * @return the journal, or null if state is not being saved
+     */
+    static Journal journal() {
+        return journal;
+    }
+
+    /**
+     * Record a table's new state. Called by its shard thread after every
+     * change to the table.
+     *
+     * @param table the table that changed
+     */
+    static void tableChanged(Table table) {
+        Journal current = journal;
+        if (current == null) {
+            return;
+        }
+        RecordBuffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            table.writeSnapshot(buffer.data);
+            current.append(TABLE, buffer.array(), 0, buffer.size());
+        } catch (IOException ex) {
+            ServerLog.error("Could not journal table " + table.id, ex);
+        }
+    }
+
+    /**
+     * Record that a table is no longer hosted here because it was handed to
+     * another node, see Cluster. Written as the table with nobody seated.
+     *
+     * @param tableId id of the table
+     */
+    static void tableRemoved(int tableId) {
+        Journal current = journal;
+        if (current == null) {
+            return;
+        }
+        RecordBuffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            buffer.data.writeInt(tableId);
+            buffer.data.writeLong(0);
+            buffer.data.writeInt(0);
+            buffer.data.writeByte(0);
+            current.append(TABLE, buffer.array(), 0, buffer.size());
+        } catch (IOException ex) {
+            ServerLog.error("Could not journal table " + tableId, ex);
+        }
+    }
+
+    /**
+     * Record a session's directory, table and resumption token.
+     *
+     * @param session   id of the session
+     * @param tableId   table the session is seated at, -1 for none
+     * @param directory the session's current directory
+     * @param token     the session's resumption token, null for none
+     */
+    static void sessionChanged(long session, int tableId, String directory, String token) {
+        Journal current = journal;
+        if (current == null) {
+            return;
+        }
+        SessionState state = new SessionState(session, tableId, directory, token == null ? "" : token);
+        sessions.put(session, state);
+        RecordBuffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            writeSession(buffer.data, state);
+            current.append(SESSION, buffer.array(), 0, buffer.size());
+        } catch (IOException ex) {
+            ServerLog.error("Could not journal session " + session, ex);
+        }
+    }
+
+    /**
+     * Forget a session that has ended.
+     *
+     * @param session id of the session
+     */
+    static void sessionClosed(long session) {
+        Journal current = journal;
+        if (current == null || sessions.remove(session) == null) {
+            return;
+        }
+        RecordBuffer buffer = buffers.get();
+        buffer.reset();
+        try {
+            buffer.data.writeLong(session);
+            current.append(SESSION_CLOSED, buffer.array(), 0, buffer.size());
+        } catch (IOException ex) {
+            ServerLog.error("Could not journal session " + session, ex);
+        }
+    }
+
+    /**
+     * @return sessions as last recorded, including those recovered at startup
+     */
+    static Map<Long, SessionState> sessions() {
+        return sessions;
+    }
+
+    /**
+     * Write every table and session to the snapshot file and delete the
+     * journal segments it covers. The journal is rolled first, so every
+     * record in the older segments was appended before the state was read.
+     * Later records are replayed on top of the snapshot, which is safe
+     * because each record holds a whole table or session.
+     */
+    static void snapshot() {
+        synchronized (snapshotLock) {
+            Journal current = journal;
+            if (current == null) {
+                return;
+            }
+            long started = System.nanoTime();
+            try {
+                long covered = current.roll();
+                Path file = directory.resolve(SNAPSHOT_FILE);
+                Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+                int tables;
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    DataOutputStream out = new DataOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(channel)));
+                    out.writeInt(SNAPSHOT_MAGIC);
+                    out.writeInt(SNAPSHOT_VERSION);
+                    out.writeLong(covered);
+                    tables = TableScheduler.shared().writeTables(out);
+                    // Handed over without an answer yet, still this node's
+                    tables += Cluster.writeUnconfirmed(out);
+                    out.writeInt(-1); // End of the tables
+                    for (SessionState state : sessions.values()) {
+                        writeSession(out, state);
+                    }
+                    out.writeLong(-1); // End of the sessions
+                    out.flush();
+                    channel.force(true);
+                }
+                Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                current.deleteBefore(covered + 1);
+                ServerLog.debug(String.format("Snapshot of %d tables taken in %.1f ms",
+                        tables, (System.nanoTime() - started) / 1e6));
+            } catch (IOException ex) {
+                ServerLog.error("Could not take a snapshot", ex);
+            }
+        }
+    }
+
+    /**
+     * Load the snapshot, replay the journal after it and hand the tables to
+     * TableScheduler.shared().
+     *
+     * @return sequence number of the last record recovered
+     */
+    private static long recover() throws IOException {
+        long started = System.nanoTime();
+        Map<Integer, Table> tables = new HashMap<>();
+        SplittableRandom random = new SplittableRandom();
+        long covered = 0;
+
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(file)) {
+            try (InputStream fileIn = Files.newInputStream(file)) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(fileIn));
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+                    throw new IOException(file + " is not a snapshot this server can read");
+                }
+                covered = in.readLong();
+                while (true) {
+                    Table table = Table.readSnapshot(in, Rules.STANDARD, random.split());
+                    if (table == null) {
+                        break;
+                    }
+                    tables.put(table.id, table);
+                }
+                for (long session = in.readLong(); session != -1; session = in.readLong()) {
+                    sessions.put(session, readSession(in, session));
+                }
+            }
+        }
+
+        int[] replayed = new int[1];
+        long last = Journal.replay(directory, covered, (sequence, type, payload) -> {
+            replayed[0]++;
+            DataInputStream in = new DataInputStream(new ByteBufferInput(payload));
+            if (type == TABLE) {
+                Table table = Table.readSnapshot(in, Rules.STANDARD, random.split());
+                if (table.isEmpty()) {
+                    tables.remove(table.id);
+                } else {
+                    tables.put(table.id, table);
+                }
+            } else if (type == SESSION) {
+                long session = in.readLong();
+                sessions.put(session, readSession(in, session));
+            } else if (type == SESSION_CLOSED) {
+                sessions.remove(in.readLong());
+            }
+        });
+
+        // Recovered players get their seats back if they resume in time. A
+        // player seated without a session record can only expire.
+        // New sessions must not take the id of a recovered player either.
+        for (SessionState state : sessions.values()) {
+            ClientConnection.reserveSessionId(state.session);
+            Resumption.park(state.session, state.token, state.tableId, state.directory);
+        }
+        for (Table table : tables.values()) {
+            for (long session : table.seatedSessions()) {
+                ClientConnection.reserveSessionId(session);
+                if (!sessions.containsKey(session)) {
+                    Resumption.park(session, "", table.id, System.getProperty("user.dir"));
+                }
+            }
+            TableScheduler.shared().restore(table);
+        }
+
+        ServerLog.info(String.format("Recovered %d tables and %d sessions (%d journal records) in %.1f ms",
+                tables.size(), sessions.size(), replayed[0], (System.nanoTime() - started) / 1e6));
+        return Math.max(last, covered);
+    }
+
+    private static void writeSession(DataOutputStream out, SessionState state) throws IOException {
+        out.writeLong(state.session);
+        out.writeInt(state.tableId);
+        out.writeUTF(state.directory);
+        out.writeUTF(state.token);
+    }
+
+    private static SessionState readSession(DataInputStream in, long session) throws IOException {
+        int tableId = in.readInt();
+        String directory = in.readUTF();
+        return new SessionState(session, tableId, directory, in.readUTF());
+    }
+
+    /**
+     * Reads a journal payload without copying it.
+     */
+    private static final class ByteBufferInput extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInput(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(len, buffer.remaining());
+            buffer.get(b, off, count);
+            return count;
+        }
+    }
+}
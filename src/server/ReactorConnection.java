@@ -0,0 +1,301 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+
+/**
+ * Non-blocking counterpart of ClientConnection. Holds the per-client state for
+ * one channel registered with a Reactor and speaks the same line based
+ * protocol (HELLO/BYE/PWD/DIR/CD/DOWNLOAD). Input is accumulated until a full
+ * line is available, and output is queued and written whenever the channel
+ * becomes writable, so no thread ever blocks on a slow client.
+ */
+class ReactorConnection {
+
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String NEWLINE = System.lineSeparator();
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    private final CommandDecoder decoder = new CommandDecoder();
+
+    // Initialize the current directory file to the program's directory
+    private File currentDirectory = new File(System.getProperty("user.dir"));
+
+    // DOWNLOAD state. pendingDownload is set after READY has been sent and the
+    // client's confirmation has not arrived yet. transferChannel is open while
+    // the file body is being written to the client.
+    private File pendingDownload;
+    private FileChannel transferChannel;
+    private long transferPosition;
+    private long transferRemaining;
+
+    private boolean closing = false;
+
+    // Closes the session if the client goes quiet, see IdleReaper
+    private final IdleReaper.Timer idleTimer;
+
+    /**
+     * Constructor. Takes the accepted channel and the key it was registered
+     * with on the reactor's selector.
+     *
+     * @param channel non-blocking channel connected with the client
+     * @param key     selection key for the channel
+     * @param onIdle  called on the reaper thread when the client has been
+     *                idle too long, must hand the close to the reactor thread
+     */
+    ReactorConnection(SocketChannel channel, SelectionKey key, Runnable onIdle) {
+        this.channel = channel;
+        this.key = key;
+        this.idleTimer = IdleReaper.watch(onIdle);
+    }
+
+    /**
+     * Called once after registration. Sends the client the same greeting that
+     * the blocking server sends.
+     */
+    void open() throws IOException {
+        SessionGauges.sessionOpened();
+        ServerLog.info("Client connection from " + channel.socket().getInetAddress());
+        send("HELLO");
+        flush();
+    }
+
+    /**
+     * Reads whatever is available from the channel and handles every complete
+     * line. Lines are not processed while a file body is being sent, they stay
+     * in the buffer until the transfer finishes.
+     */
+    void handleRead() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            // Client disappeared without sending BYE
+            close();
+            return;
+        }
+        idleTimer.touch();
+        processLines();
+        flush();
+    }
+
+    /**
+     * Called when the channel is writable. Drains queued responses and then
+     * continues any file transfer in progress.
+     */
+    void handleWrite() throws IOException {
+        flush();
+    }
+
+    /**
+     * Extract complete lines from the read buffer and handle them in order.
+     */
+    private void processLines() throws IOException {
+        readBuffer.flip();
+        int start = readBuffer.position();
+        for (int i = start; i < readBuffer.limit() && !closing && transferChannel == null; i++) {
+            if (readBuffer.get(i) == '\n') {
+                int end = i;
+                if (end > start && readBuffer.get(end - 1) == '\r') {
+                    end--;
+                }
+                // Decoded in place, the line is handled before the buffer is compacted
+                decoder.decode(readBuffer.array(), start, end);
+                start = i + 1;
+                handleLine();
+            }
+        }
+        readBuffer.position(start);
+        readBuffer.compact();
+
+        // A line that does not fit the buffer can never be completed
+        if (!readBuffer.hasRemaining() && transferChannel == null) {
+            ServerLog.warn("Client request too long. Closing connection");
+            close();
+        }
+    }
+
+    /**
+     * Handles the request line held by the decoder. Mirrors the command switch
+     * in ClientConnection.clientHandler().
+     */
+    private void handleLine() throws IOException {
+        // Waiting on the client to confirm a DOWNLOAD
+        if (pendingDownload != null) {
+            File file = pendingDownload;
+            pendingDownload = null;
+            if (decoder.lineEquals("READY")) {
+                startTransfer(file);
+            } else {
+                ServerLog.debug("Client has aborted the download");
+            }
+            return;
+        }
+
+        Command command = decoder.command();
+        long started = System.nanoTime();
+        switch (command) {
+            case BYE:
+                ServerLog.info("BYE Received - Closing connection from " + channel.socket().getInetAddress());
+                closing = true;
+                break;
+            case PWD:
+                ServerLog.debug("PWD Received");
+                send(currentDirectory.getPath());
+                break;
+            case DIR:
+                ServerLog.debug("DIR Received");
+                send(DirectoryCache.getDirectory(currentDirectory.getPath()));
+                break;
+            case CD:
+                ServerLog.debug("CD Received");
+                String output = ClientConnection.changeDirectory(decoder.argument(), currentDirectory);
+                if (!output.equals("DDNE") && !output.equals("PD")) {
+                    currentDirectory = new File(output);
+                }
+                send(output);
+                break;
+            case DOWNLOAD:
+                ServerLog.debug("DOWNLOAD Received");
+                File file = new File(currentDirectory, decoder.argument());
+                if (file.isFile() && file.exists() && file.canRead()) {
+                    pendingDownload = file;
+                    send("READY");
+                } else {
+                    send("FNF");
+                }
+                break;
+            default:
+                send("Client Request Error.");
+                ServerLog.debug("Client sent invalid command");
+        }
+        // Time until the reply is queued, the selector thread writes it later
+        ServerMetrics.recordRequest(command, System.nanoTime() - started);
+    }
+
+    /**
+     * Open the requested file and queue its length. The body itself is
+     * written with FileChannel.transferTo as the socket becomes writable,
+     * or queued straight from the FileCache if the file is cached there.
+     *
+     * @param file file the client confirmed it wants to receive
+     */
+    private void startTransfer(File file) throws IOException {
+        ByteBuffer cached = FileCache.get(file);
+        if (cached != null) {
+            send(Integer.toString(cached.remaining()));
+            ServerMetrics.addBytesSent(cached.remaining());
+            writeQueue.add(cached);
+            return;
+        }
+        try {
+            transferChannel = new RandomAccessFile(file, "r").getChannel();
+        } catch (IOException e) {
+            ServerLog.error("Could not create file reader stream", e);
+            return;
+        }
+        transferPosition = 0;
+        transferRemaining = transferChannel.size();
+        send(Long.toString(transferRemaining));
+    }
+
+    /**
+     * Queue a line of text for the client.
+     *
+     * @param line response to send, a line separator is appended
+     */
+    private void send(String line) {
+        writeQueue.add(ByteBuffer.wrap((line + NEWLINE).getBytes(CHARSET)));
+    }
+
+    /**
+     * Write as much pending output as the socket accepts without blocking.
+     * Switches the key's interest to OP_WRITE while output is left over and
+     * back to OP_READ once everything has been sent. The session counts as
+     * busy for the IdleReaper while output is left over.
+     */
+    private void flush() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        while (!writeQueue.isEmpty()) {
+            ByteBuffer head = writeQueue.peek();
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                idleTimer.setBusy(true);
+                return;
+            }
+            writeQueue.poll();
+        }
+
+        if (transferChannel != null) {
+            while (transferRemaining > 0) {
+                long sent = transferChannel.transferTo(transferPosition, transferRemaining, channel);
+                if (sent == 0 && transferPosition >= transferChannel.size()) {
+                    // The length was promised in full, the client would wait forever
+                    ServerLog.warn("File shrank during transfer. Closing connection");
+                    close();
+                    return;
+                }
+                if (sent == 0) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    idleTimer.setBusy(true);
+                    return;
+                }
+                transferPosition += sent;
+                transferRemaining -= sent;
+                ServerMetrics.addBytesSent(sent);
+            }
+            transferChannel.close();
+            transferChannel = null;
+            ServerLog.debug("file sent to client");
+
+            // Requests pipelined behind the download were held back until now
+            processLines();
+            if (!writeQueue.isEmpty()) {
+                flush();
+                return;
+            }
+        }
+
+        if (closing) {
+            close();
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+        // Everything is sent, the session is waiting on the client again
+        idleTimer.setBusy(false);
+    }
+
+    /**
+     * Cancel the key and close the channel and any open file.
+     */
+    void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        closing = true;
+        key.cancel();
+        idleTimer.cancel();
+        SessionGauges.sessionClosed();
+        ConnectionLimits.release(channel.socket().getInetAddress());
+        try {
+            if (transferChannel != null) {
+                transferChannel.close();
+                transferChannel = null;
+            }
+            channel.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing client connection", e);
+        }
+    }
+}
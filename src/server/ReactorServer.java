@@ -0,0 +1,230 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event loop alternative to the thread-per-connection accept loop in
+ * ServerDaemon. The thread running this server accepts connections and hands
+ * them round robin to a small, fixed pool of Reactor threads. Each reactor
+ * multiplexes all of its clients over a single Selector, so thousands of idle
+ * players cost a buffer each instead of a thread each.
+ */
+public class ReactorServer implements Runnable {
+
+    private final ServerSocketChannel serverChannel;
+    private final Reactor[] reactors;
+
+    /**
+     * Constructor. Binds the listening channel and creates the reactors, the
+     * reactor threads are started by run().
+     *
+     * @param port         port number to listen on
+     * @param reactorCount number of selector threads to spread clients over
+     * @param reusePort    share the port with other processes, see
+     *                     ServerDaemon.reusePort()
+     * @throws IOException if the channel or a selector could not be opened
+     */
+    ReactorServer(int port, int reactorCount, boolean reusePort) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        if (reusePort) {
+            ServerDaemon.reusePort(serverChannel);
+        }
+        serverChannel.bind(new InetSocketAddress(port));
+
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor();
+        }
+    }
+
+    /**
+     * @return the port the server is listening on
+     */
+    int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Starts the reactor threads and then accepts connections until the
+     * listening channel is closed.
+     */
+    public void run() {
+        for (int i = 0; i < reactors.length; i++) {
+            Thread thread = new Thread(reactors[i], "Reactor-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                // Accept any incoming connections
+                SocketChannel client = serverChannel.accept();
+                SessionGauges.connectionAccepted();
+                if (!ConnectionLimits.admit(client.socket().getInetAddress())) {
+                    ServerLog.debug("Session limit reached. Rejecting client "
+                            + client.socket().getInetAddress());
+                    ConnectionLimits.reject(client);
+                    continue;
+                }
+                reactors[next].register(client);
+                next = (next + 1) % reactors.length;
+            } catch (ClosedChannelException ex) {
+                break;
+            } catch (IOException ex) {
+                ServerLog.error("ServerSocketChannel: Error Connecting with Client", ex);
+            }
+        }
+    }
+
+    /**
+     * Stop accepting connections. Sessions already open carry on.
+     */
+    void stopAccepting() {
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            ServerLog.error("Error closing server socket", e);
+        }
+    }
+
+    /**
+     * Stop accepting connections and shut down every reactor.
+     */
+    void close() {
+        stopAccepting();
+        for (Reactor reactor : reactors) {
+            reactor.close();
+        }
+    }
+
+    /**
+     * A single selector thread. Newly accepted channels are queued by the
+     * acceptor and registered from inside the loop, since registering from
+     * another thread would block while the selector is waiting.
+     */
+    static class Reactor implements Runnable {
+        private final Selector selector;
+        private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+        // Connections the IdleReaper found idle, closed from the loop
+        private final Queue<SelectionKey> idle = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+
+        Reactor() throws IOException {
+            selector = Selector.open();
+        }
+
+        /**
+         * Hand a freshly accepted channel to this reactor.
+         *
+         * @param client accepted channel, still in blocking mode
+         */
+        void register(SocketChannel client) {
+            pending.add(client);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException | ClosedSelectorException ex) {
+                    ServerLog.error("Error waiting on selector", ex);
+                    break;
+                }
+
+                registerPending();
+                closeIdle();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    ReactorConnection connection = (ReactorConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            connection.handleRead();
+                        } else if (key.isValid() && key.isWritable()) {
+                            connection.handleWrite();
+                        }
+                    } catch (IOException | RuntimeException ex) {
+                        // One broken client must not take down the whole reactor
+                        ServerLog.error("Error handling client. Closing connection", ex);
+                        connection.close();
+                    }
+                }
+            }
+
+            // Close every client still attached to this reactor
+            for (SelectionKey key : selector.keys()) {
+                ((ReactorConnection) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                ServerLog.error("Error closing selector", e);
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel client;
+            while ((client = pending.poll()) != null) {
+                ReactorConnection connection = null;
+                try {
+                    client.configureBlocking(false);
+                    SelectionKey key = client.register(selector, SelectionKey.OP_READ);
+                    connection = new ReactorConnection(client, key, () -> {
+                        idle.add(key);
+                        selector.wakeup();
+                    });
+                    key.attach(connection);
+                    connection.open();
+                } catch (IOException ex) {
+                    if (connection != null) {
+                        // Cancels the key and idle timer and undoes the session counts
+                        ServerLog.error("Error greeting client connection", ex);
+                        connection.close();
+                        continue;
+                    }
+                    ServerLog.error("Error registering client connection", ex);
+                    ConnectionLimits.release(client.socket().getInetAddress());
+                    try {
+                        client.close();
+                    } catch (IOException e) {
+                        ServerLog.error("Error closing client connection", e);
+                    }
+                }
+            }
+        }
+
+        private void closeIdle() {
+            SelectionKey key;
+            while ((key = idle.poll()) != null) {
+                if (key.isValid()) {
+                    ServerLog.info((IdleReaper.isDraining() ? "Shutting down" : "Closing idle")
+                            + " connection from "
+                            + ((SocketChannel) key.channel()).socket().getInetAddress());
+                    ((ReactorConnection) key.attachment()).close();
+                }
+            }
+        }
+
+        /**
+         * Ask the loop to exit. The reactor thread closes its own clients.
+         */
+        void close() {
+            running = false;
+            selector.wakeup();
+        }
+    }
+}
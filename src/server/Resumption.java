@@ -0,0 +1,212 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lets a client that lost its connection carry on where it left off. Each
+ * session is greeted with a token, "HELLO#token". A session that ends
+ * without BYE is parked here under that token with its directory and seat,
+ * which stays at the table marked absent. A client that reconnects within
+ * the resume timeout sends "RESUME token" as its first request and gets all
+ * of it back in one reply, followed by the current state of its table in
+ * place of the events it missed.
+ *
+ * A parked session that is not resumed in time expires: it gives up its seat
+ * and is forgotten. Sessions recovered by Persistence after a restart are
+ * parked the same way, so their players can resume too.
+ */
+final class Resumption {
+
+    private static final long SWEEP_MILLIS = 1000;
+    private static final int SECRET_BYTES = 16;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * State of a session waiting to be resumed.
+     */
+    static final class Parked {
+        final long session;
+        final String token; // Empty if the session cannot be resumed, only expire
+        final int tableId; // -1 for none
+        final String directory;
+        final long deadline; // System.nanoTime() at which it expires
+
+        Parked(long session, String token, int tableId, String directory, long deadline) {
+            this.session = session;
+            this.token = token;
+            this.tableId = tableId;
+            this.directory = directory;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Holds the token generator, which is slow to seed. The sweep thread
+     * creates it as it starts, so the server does not wait for it at startup.
+     */
+    private static final class Secrets {
+        static final SecureRandom random = new SecureRandom();
+    }
+
+    private static final ConcurrentHashMap<Long, Parked> parked = new ConcurrentHashMap<>();
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder expired = new LongAdder();
+    private static final Object lock = new Object();
+
+    // Seconds a session stays parked, 0 turns resumption off
+    private static volatile long timeoutSeconds = 0;
+    private static Thread sweeper;
+
+    private Resumption() {
+    }
+
+    /**
+     * Keep sessions resumable for this long after their connection is lost.
+     * Starts the thread that expires them.
+     *
+     * @param seconds how long a session stays parked, 0 to issue no tokens
+     */
+    static void setTimeout(long seconds) {
+        timeoutSeconds = Math.max(0, seconds);
+        synchronized (lock) {
+            if (sweeper == null) {
+                sweeper = new Thread(Resumption::sweep, "Resume-Expiry");
+                sweeper.setDaemon(true);
+                sweeper.start();
+            }
+        }
+    }
+
+    /**
+     * @return true if sessions are given tokens
+     */
+    static boolean isEnabled() {
+        return timeoutSeconds > 0;
+    }
+
+    /**
+     * Create the token a session is greeted with. The session id is part of
+     * the token, the rest is random so tokens cannot be guessed.
+     *
+     * @param session id of the session
+     * @return the token
+     */
+    static String newToken(long session) {
+        byte[] secret = new byte[SECRET_BYTES];
+        Secrets.random.nextBytes(secret);
+        StringBuilder token = new StringBuilder(Long.toHexString(session)).append('-');
+        for (byte b : secret) {
+            token.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+        return token.toString();
+    }
+
+    /**
+     * Keep a session's state until it is resumed or expires.
+     *
+     * @param session   id of the session
+     * @param token     token the session was greeted with, empty for none
+     * @param tableId   table the session is seated at, -1 for none
+     * @param directory the session's current directory
+     */
+    static void park(long session, String token, int tableId, String directory) {
+        long deadline = System.nanoTime() + timeoutSeconds * 1_000_000_000L;
+        parked.put(session, new Parked(session, token, tableId, directory, deadline));
+    }
+
+    /**
+     * Take the state of a parked session. A session can only be claimed
+     * once, and never after it has expired.
+     *
+     * @param token token the client presented
+     * @return the session's state, or null if the token is not valid
+     */
+    static Parked claim(String token) {
+        int separator = token.indexOf('-');
+        long session;
+        try {
+            session = Long.parseUnsignedLong(token.substring(0, Math.max(separator, 0)), 16);
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        Parked state = parked.get(session);
+        // Compared in constant time so the secret cannot be found a byte at a time
+        if (state == null || state.token.isEmpty() || !MessageDigest.isEqual(
+                state.token.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        if (System.nanoTime() - state.deadline >= 0 || !parked.remove(session, state)) {
+            return null; // Expired, or claimed by another connection
+        }
+        resumed.increment();
+        return state;
+    }
+
+    /**
+     * Take the state of a parked session without its token, to hand it to
+     * another node of the cluster, see Cluster.
+     *
+     * @param session id of the session
+     * @return the session's state, or null if it is not parked
+     */
+    static Parked take(long session) {
+        return parked.remove(session);
+    }
+
+    /**
+     * @return number of sessions waiting to be resumed
+     */
+    static int parkedCount() {
+        return parked.size();
+    }
+
+    /**
+     * @return number of sessions resumed since the server started
+     */
+    static long resumedCount() {
+        return resumed.sum();
+    }
+
+    /**
+     * @return number of parked sessions that expired since the server started
+     */
+    static long expiredCount() {
+        return expired.sum();
+    }
+
+    private static void sweep() {
+        Secrets.random.nextInt();
+        while (true) {
+            try {
+                Thread.sleep(SWEEP_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            for (Parked state : parked.values()) {
+                if (now - state.deadline >= 0 && parked.remove(state.session, state)) {
+                    release(state);
+                }
+            }
+        }
+    }
+
+    /**
+     * Give up an expired session's seat and forget it.
+     */
+    private static void release(Parked state) {
+        expired.increment();
+        if (state.tableId >= 0) {
+            TableScheduler.shared().submit(state.tableId, table -> {
+                table.leave(state.session);
+                return null;
+            });
+        }
+        Persistence.sessionClosed(state.session);
+        ServerLog.debug("Session " + state.session + " was not resumed in time");
+    }
+}
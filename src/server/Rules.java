@@ -0,0 +1,45 @@
+package server;
+
+/**
+ * Table rules that change the game's odds. Shared by the tables the server
+ * hosts and the Simulator used to check a rule set before it is deployed.
+ */
+class Rules {
+
+    // What the server's tables deal today
+    static final Rules STANDARD = new Rules(6, false, true, false, 0.75);
+
+    final int decks;
+    final boolean hitSoft17;        // Dealer hits soft 17 (H17) instead of standing (S17)
+    final boolean doubleAfterSplit; // DAS
+    final boolean surrender;        // Late surrender, after the dealer checks for blackjack
+    final double penetration;       // Fraction of the shoe dealt before reshuffling
+
+    Rules(int decks, boolean hitSoft17, boolean doubleAfterSplit, boolean surrender, double penetration) {
+        this.decks = decks;
+        this.hitSoft17 = hitSoft17;
+        this.doubleAfterSplit = doubleAfterSplit;
+        this.surrender = surrender;
+        this.penetration = penetration;
+    }
+
+    /**
+     * @param dealer packed dealer hand, see Hand
+     * @return true if the dealer has to draw another card
+     */
+    boolean dealerDraws(int dealer) {
+        int total = Hand.total(dealer);
+        return total < 17 || (hitSoft17 && total == 17 && Hand.isSoft(dealer));
+    }
+
+    /**
+     * @return short description, for example "6 decks S17 DAS LS 75%"
+     */
+    @Override
+    public String toString() {
+        return decks + " decks " + (hitSoft17 ? "H17" : "S17")
+                + (doubleAfterSplit ? " DAS" : " NDAS")
+                + (surrender ? " LS" : "")
+                + " " + Math.round(penetration * 100) + "%";
+    }
+}
@@ -1,30 +1,69 @@
 package server;
 
-import javafx.fxml.FXML;
-import javafx.scene.control.TextField;
-
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ServerDaemon implements Runnable {
-    private ServerSocket server = null;
+    // Seconds a client may stay silent before its session is closed
+    private static final int DEFAULT_IDLE_TIMEOUT = 300;
+    // Seconds a shutdown waits for hands and transfers to finish
+    private static final int DEFAULT_DRAIN_TIMEOUT = 30;
+    // Seconds a client that lost its connection has to resume its session
+    private static final int DEFAULT_RESUME_TIMEOUT = 120;
+    // How often a shutdown checks on the hands and sessions it waits for
+    private static final long DRAIN_POLL_MILLIS = 100;
+    // How often the journal is forced to disk, the most a crash can lose
+    private static final long DEFAULT_JOURNAL_SYNC_MILLIS = 5;
+    // Seconds between snapshots, which bound the journal replayed on startup
+    private static final long DEFAULT_SNAPSHOT_INTERVAL = 60;
+
+    // Set once the server is listening, read by shutdown() on another thread
+    private volatile ServerSocket server = null;
+    private volatile ReactorServer reactorServer = null;
+    private volatile ExecutorService executor = null;
     private List<String> args;
+    private final boolean exitWhenStopped;
 
-    TextField logArea;
+    private int drainTimeout = DEFAULT_DRAIN_TIMEOUT;
+    private Path stateDirectory = null; // Where state is kept, null for nowhere
+    private long journalSyncMillis = DEFAULT_JOURNAL_SYNC_MILLIS;
+    private long snapshotInterval = DEFAULT_SNAPSHOT_INTERVAL;
+    private List<String> clusterMembers = null; // Null when not clustered
+    private String clusterNode = null; // This server's member, found by port if not given
+    private final AtomicBoolean stopping = new AtomicBoolean();
+    private final CountDownLatch stopped = new CountDownLatch(1);
 
     ServerDaemon(List<String> args) {
         this.args = args;
-        logArea = Main.getLogArea();
+        this.exitWhenStopped = true;
     }
 
+    /**
+     * Used by the server console, which stays open after the server stops.
+     */
     ServerDaemon() {
         this.args = null;
+        this.exitWhenStopped = false;
     }
 
     public void run() {
@@ -33,28 +72,350 @@ public class ServerDaemon implements Runnable {
 
 
     public void createServer() {
+        int port = 50001; // Default port when none is specified
+        boolean nio = false;
+        boolean virtual = false;
+        int poolSize = 0; // 0 means one platform thread per client
+        int metricsPort = 0; // 0 means no metrics endpoint
+        int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+        int resumeTimeout = DEFAULT_RESUME_TIMEOUT;
+        boolean reusePort = false;
+
+        if (args != null) {
+            for (String arg : args) {
+                if (arg.equals("--nio")) {
+                    // Serve clients from selector threads instead of a thread each
+                    nio = true;
+                } else if (arg.equals("--virtual")) {
+                    // Run each ClientConnection on a virtual thread
+                    virtual = true;
+                } else if (arg.equals("--buffered-download")) {
+                    // Copy DOWNLOAD bodies through a heap buffer instead of transferTo
+                    ClientConnection.zeroCopy = false;
+                } else if (arg.startsWith("--log-level=")) {
+                    // Lowest level written to the log, DEBUG shows every request
+                    try {
+                        ServerLog.setLevel(ServerLog.Level.valueOf(
+                                arg.substring("--log-level=".length()).toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--pool=")) {
+                    // Run ClientConnections on a fixed size pool of threads
+                    try {
+                        poolSize = Integer.parseInt(arg.substring("--pool=".length()));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--metrics-port=")) {
+                    // Serve metrics as plain text on this port of the loopback address
+                    try {
+                        metricsPort = Integer.parseInt(arg.substring("--metrics-port=".length()));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--idle-timeout=")) {
+                    // Close sessions silent for this many seconds, 0 never does
+                    try {
+                        idleTimeout = Integer.parseInt(arg.substring("--idle-timeout=".length()));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--resume-timeout=")) {
+                    // Keep lost sessions resumable this many seconds, 0 issues no tokens
+                    try {
+                        resumeTimeout = Integer.parseInt(arg.substring("--resume-timeout=".length()));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--drain-timeout=")) {
+                    // Seconds a shutdown waits for hands and transfers to finish
+                    try {
+                        drainTimeout = Integer.parseInt(arg.substring("--drain-timeout=".length()));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--state-dir=")) {
+                    // Keep table and session state here across restarts, see Persistence
+                    stateDirectory = Paths.get(arg.substring("--state-dir=".length()));
+                } else if (arg.startsWith("--journal-sync-millis=")) {
+                    // Force the journal to disk this often
+                    try {
+                        journalSyncMillis = Math.max(1,
+                                Long.parseLong(arg.substring("--journal-sync-millis=".length())));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--snapshot-interval=")) {
+                    // Seconds between snapshots of the state
+                    try {
+                        snapshotInterval = Math.max(1,
+                                Long.parseLong(arg.substring("--snapshot-interval=".length())));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--cluster=")) {
+                    // Share the tables with these servers, host:port each, see Cluster
+                    try {
+                        clusterMembers = ClusterMembership.parseMembers(arg.substring("--cluster=".length()));
+                    } catch (IllegalArgumentException ex) {
+                        ServerLog.warn(ex.getMessage());
+                    }
+                } else if (arg.startsWith("--node=")) {
+                    // Which of the --cluster members this server is
+                    clusterNode = arg.substring("--node=".length()).trim();
+                } else if (arg.equals("--reuse-port")) {
+                    // Let a new server process bind the port while this one drains
+                    reusePort = true;
+                } else if (arg.startsWith("--max-sessions=")) {
+                    // Turn clients away once this many sessions are open
+                    try {
+                        ConnectionLimits.setMaxSessions(
+                                Integer.parseInt(arg.substring("--max-sessions=".length())));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--max-per-address=")) {
+                    // Turn clients away once their address has this many sessions open
+                    try {
+                        ConnectionLimits.setMaxPerAddress(
+                                Integer.parseInt(arg.substring("--max-per-address=".length())));
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else if (arg.startsWith("--file-cache=")) {
+                    // Megabytes of popular files kept in memory for DOWNLOAD, 0 for none
+                    try {
+                        FileCache.setCapacity(
+                                Long.parseLong(arg.substring("--file-cache=".length())) * 1024 * 1024);
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                } else {
+                    try {
+                        port = Integer.parseInt(arg);
+                    } catch (NumberFormatException ex) {
+                        ServerLog.warn("Invalid input");
+                    }
+                }
+            }
+        }
+
+        // The console can start a server again after stopping one
+        IdleReaper.reopen();
+        TableScheduler.shared().reopen();
+        IdleReaper.setIdleTimeout(idleTimeout);
+        Resumption.setTimeout(resumeTimeout);
+        if (clusterMembers != null) {
+            try {
+                Cluster.configure(clusterNode != null ? clusterNode : memberOnPort(port), clusterMembers);
+            } catch (IllegalArgumentException ex) {
+                ServerLog.error("Could not join the cluster", ex);
+                ServerLog.flush();
+                System.exit(-1);
+            }
+        }
+        if (stateDirectory != null) {
+            // Recover before the first client can touch a table
+            try {
+                Persistence.open(stateDirectory, journalSyncMillis, snapshotInterval);
+            } catch (IOException ex) {
+                ServerLog.error("Could not recover the state in " + stateDirectory, ex);
+                ServerLog.flush();
+                System.exit(-1);
+            }
+        }
+        Cluster.start();
+        // Starting the platform MBean server takes longer than everything
+        // else here, so it is left off the path to accepting connections
+        Thread registration = new Thread(ServerMetrics::registerMBean, "Metrics-Registration");
+        registration.setDaemon(true);
+        registration.start();
+        if (metricsPort > 0) {
+            MetricsEndpoint.start(metricsPort);
+        }
+
+        // Ctrl+C, SIGTERM or System.exit drain the server before the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "Shutdown"));
+
+        if (nio) {
+            try {
+                reactorServer = new ReactorServer(port,
+                        Runtime.getRuntime().availableProcessors(), reusePort);
+            } catch (IOException ex) {
+                ServerLog.error("Could not create a ServerSocketChannel", ex);
+                System.exit(-1);
+            }
+            logAddresses(reactorServer.getLocalPort());
+            startGaugeLogger();
+
+            // Accepts on this thread until shutdown() closes the channel
+            reactorServer.run();
+        } else {
+            try {
+                // Create ServerSocket and bind to the requested port. It is opened
+                // through a channel so accepted sockets support zero copy DOWNLOADs
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                if (reusePort) {
+                    reusePort(serverChannel);
+                }
+                server = serverChannel.socket();
+                server.bind(new InetSocketAddress(port));
+            } catch (IOException ex) {
+                ServerLog.error("Could not create a ServerSocket", ex);
+                System.exit(-1);
+            }
+
+            logAddresses(server.getLocalPort());
+            startGaugeLogger();
+
+            // Server is bound to a port, wait for connections until shutdown()
+            // closes the socket
+            executor = createExecutor(virtual, poolSize);
+            waitForConnection(server, executor);
+        }
+
+        awaitStopped();
+        if (exitWhenStopped) {
+            System.exit(0);
+        }
+    }
+
+    /**
+     * @param port port this server listens on
+     * @return the only --cluster member with that port
+     * @throws IllegalArgumentException if there is not exactly one
+     */
+    private String memberOnPort(int port) {
+        String found = null;
+        for (String member : clusterMembers) {
+            if (member.endsWith(":" + port)) {
+                if (found != null) {
+                    throw new IllegalArgumentException("several members use port " + port + ", give --node");
+                }
+                found = member;
+            }
+        }
+        if (found == null) {
+            throw new IllegalArgumentException("no member uses port " + port + ", give --node");
+        }
+        return found;
+    }
+
+    /**
+     * Let other processes bind the same port (SO_REUSEPORT), so a new server
+     * can start accepting before this one stops. The kernel spreads new
+     * connections over every process listening on the port, and once this
+     * process closes its socket in shutdown() they all go to the new one.
+     * Connections still waiting in this socket's accept queue when it closes
+     * are reset, and clients retry them against the new process.
+     *
+     * @param channel listening channel, not bound yet
+     * @throws IOException if the option cannot be set
+     */
+    static void reusePort(NetworkChannel channel) throws IOException {
+        if (channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        } else {
+            ServerLog.warn("SO_REUSEPORT is not supported on this platform");
+        }
+    }
+
+    /**
+     * Stop the server without cutting off players or downloads:
+     * <ol>
+     * <li>stop accepting connections,</li>
+     * <li>stop taking bets and wait for the hands in play to finish,</li>
+     * <li>snapshot the state to the --state-dir and stop journaling,</li>
+     * <li>close each session once it has finished its current request,</li>
+     * <li>close whatever is still open once the drain timeout has passed.</li>
+     * </ol>
+     * Returns when the server has stopped. Safe to call more than once and
+     * from any thread; later calls wait for the first to finish.
+     */
+    public void shutdown() {
+        if (!stopping.compareAndSet(false, true)) {
+            awaitStopped();
+            return;
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeout);
+
+        ServerLog.info("Shutting down. No longer accepting connections");
         try {
-            if (args == null) {
-                // No port specified, create ServerSocket and bind to default port 50001
-                server = new ServerSocket(50001);
-            } else if (args.size() == 1) {
-                // Create ServerSocket on specified port
-                server = new ServerSocket(Integer.parseInt(args.get(0)));
-            } else {
-                System.out.println("Invalid input");
+            if (server != null) {
+                server.close();
             }
-        } catch (IOException ex) {
-            System.err.println("Could not create a ServerSocket");
-            ex.printStackTrace();
-            System.exit(-1);
+        } catch (IOException e) {
+            ServerLog.error("Error closing server socket", e);
+        }
+        if (reactorServer != null) {
+            reactorServer.stopAccepting();
         }
 
+        TableScheduler tables = TableScheduler.shared();
+        tables.drain();
+        int hands = tables.handsInPlay();
+        if (hands > 0) {
+            ServerLog.info("Waiting for " + hands + " hands in play to finish");
+        }
+        while (hands > 0 && System.nanoTime() < deadline) {
+            sleep(DRAIN_POLL_MILLIS);
+            hands = tables.handsInPlay();
+        }
+        if (hands > 0) {
+            ServerLog.warn("Drain timeout passed with " + hands + " hands still in play");
+        }
+        // Sessions closed from here on are restored as they were
+        Persistence.close();
+
+        // Sessions close as soon as they are between requests
+        while (SessionGauges.activeSessions() > 0 && System.nanoTime() < deadline) {
+            IdleReaper.drain();
+            sleep(DRAIN_POLL_MILLIS);
+        }
+        if (SessionGauges.activeSessions() > 0) {
+            ServerLog.warn("Drain timeout passed, closing " + SessionGauges.activeSessions()
+                    + " sessions still busy");
+            IdleReaper.closeAll();
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+        }
+        if (reactorServer != null) {
+            reactorServer.close();
+        }
+        ServerLog.info("Server stopped");
+        ServerLog.flush();
+        stopped.countDown();
+    }
+
+    private void awaitStopped() {
+        try {
+            stopped.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Display the addresses clients can use to reach the server.
+     *
+     * @param port port number the server is bound to
+     */
+    private void logAddresses(int port) {
         // Logic to get the computer's network address.
         // Because a computer can have multiple interfaces that are not simply IPs
         // the results need to be filtered
         try {
-            int port = server.getLocalPort();
-
             ArrayList<String> interfaces = new ArrayList<>();
             // Get enumeration of all the computer's network devices addresses
             Enumeration<NetworkInterface> n = NetworkInterface.getNetworkInterfaces();
@@ -68,73 +429,125 @@ public class ServerDaemon implements Runnable {
             }
 
             // Display the parsed addresses
-            logArea.setText(logArea.getText() + "Server Addresses: ");
-//            System.out.println("Server Addresses: ");
+            ServerLog.info("Server Addresses: ");
             for (String ip :
                     interfaces) {
                 if (Character.isDigit(ip.charAt(0))) {
                     if (ip.charAt(0) != '0') {
-//                        System.out.println("\tIP: " + ip + " Port: " + port);
-                        logArea.setText(logArea.getText() + "\tIP: " + ip + " Port: " + port);
+                        ServerLog.info("\tIP: " + ip + " Port: " + port);
                     }
                 }
             }
         } catch (Exception e) {
-            System.err.println("Error getting server address");
-            e.printStackTrace();
+            ServerLog.error("Error getting server address", e);
         }
-
-        // Server is bound to a port, wait for connections in a loop
-        waitForConnection(server);
-
-        System.exit(0);
     }
 
     /**
-     * Waits for incoming connections with the server. Once a client connection
-     * is received, it accepts it and then creates a new thread to handle the
-     * connection. This allows multiple clients to connect to the server
-     * simultaneously
+     * Choose where ClientConnections run. Virtual threads are used when asked
+     * for and the running JVM supports them, otherwise a bounded pool when a
+     * pool size was given. Returns null for the original thread per client.
      *
-     * @param server server socket that is bound to a port number
+     * @param virtual  true to run each client on a virtual thread
+     * @param poolSize number of worker threads, 0 for no pool
+     * @return executor for client connections, or null
      */
-    public static void waitForConnection(ServerSocket server) {
+    private static ExecutorService createExecutor(boolean virtual, int poolSize) {
+        if (virtual) {
+            try {
+                // Looked up reflectively so the server still runs on JDKs
+                // without virtual threads
+                return (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException ex) {
+                ServerLog.warn("Virtual threads are not supported by this JVM");
+            }
+        }
 
-        Socket client = null;
+        if (poolSize > 0) {
+            // Queue a few clients per worker, anything beyond that is turned away
+            return new ThreadPoolExecutor(poolSize, poolSize, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(poolSize * 4));
+        }
+        return null;
+    }
 
-        // Runtime hook to handle when a user presses Ctrl+C to close the server daemon
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
+    /**
+     * Print the session gauges every ten seconds on a background thread.
+     */
+    private static void startGaugeLogger() {
+        Thread logger = new Thread(() -> {
+            while (true) {
                 try {
-                    Thread.sleep(200);
-                    System.out.println("Closing server socket...");
-                    server.close();
-                } catch (IOException e) {
-                    System.err.println("Error closing server socket");
-                    e.printStackTrace();
+                    Thread.sleep(10000);
                 } catch (InterruptedException e) {
-                    System.err.println("Error occurred during shutdown hook");
-                    e.printStackTrace();
+                    return;
                 }
+                ServerLog.info(String.format("Sessions: %d active, %.1f accepts/sec",
+                        SessionGauges.activeSessions(), SessionGauges.sampleAcceptRate()));
             }
-        });
+        }, "Gauge-Logger");
+        logger.setDaemon(true);
+        logger.start();
+    }
 
-        // infinite loop waiting for new connections in main thread'
-        // Close server daemon with Ctrl-C
-        while (true) {
+    /**
+     * Waits for incoming connections with the server. Once a client connection
+     * is received, it accepts it and then creates a new thread to handle the
+     * connection. This allows multiple clients to connect to the server
+     * simultaneously
+     *
+     * @param server   server socket that is bound to a port number
+     * @param executor runs each ClientConnection, or null for a new thread each
+     */
+    public static void waitForConnection(ServerSocket server, ExecutorService executor) {
+
+        // Loop waiting for new connections in main thread until the socket is
+        // closed. Close server daemon with Ctrl-C
+        while (!server.isClosed()) {
+            Socket client = null;
             try {
                 // Accept any incoming connections
                 client = server.accept();
+                SessionGauges.connectionAccepted();
             } catch (IOException ex) {
-                System.err.println("ServerSocket: Error Connecting with Client");
-                ex.printStackTrace();
+                if (server.isClosed()) {
+                    break; // Closed by shutdown()
+                }
+                ServerLog.error("ServerSocket: Error Connecting with Client", ex);
             }
 
             //    Only execute if client has actually connected (!= null)
             if (client != null) {
-                // Create a new thread and pass it the client connection socket
-                // connection
-                new Thread(new ClientConnection(client)).start();
+                InetAddress address = client.getInetAddress();
+                if (!ConnectionLimits.admit(address)) {
+                    ServerLog.debug("Session limit reached. Rejecting client " + address);
+                    ConnectionLimits.reject(client);
+                    continue;
+                }
+
+                // The session gives back its place in the limits however it ends
+                ClientConnection connection = new ClientConnection(client);
+                Runnable session = () -> {
+                    try {
+                        connection.run();
+                    } finally {
+                        ConnectionLimits.release(address);
+                    }
+                };
+                if (executor == null) {
+                    // Create a new thread and pass it the client connection socket
+                    // connection
+                    new Thread(session).start();
+                } else {
+                    try {
+                        executor.execute(session);
+                    } catch (RejectedExecutionException ex) {
+                        ServerLog.warn("Server busy. Rejecting client " + address);
+                        ConnectionLimits.release(address);
+                        ConnectionLimits.reject(client);
+                    }
+                }
             }
         }
     }
@@ -0,0 +1,227 @@
+package server;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Asynchronous server log. Client handlers only claim a slot in a lock-free
+ * ring buffer and store the message, a single background thread formats the
+ * entries and writes them out in batches. Nothing a handler does while
+ * logging waits on the console, and when the buffer is full new entries are
+ * dropped and counted rather than stalling the server.
+ */
+public class ServerLog {
+
+    /**
+     * Severity of a log entry. Entries below the configured level are
+     * discarded before they reach the buffer.
+     */
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    private static final int CAPACITY = 8192; // Must be a power of two
+    private static final int MASK = CAPACITY - 1;
+    // Most entries written out in one batch
+    private static final int BATCH = 512;
+
+    // Bounded multi producer, single consumer queue. A slot can be written
+    // by the producer that claimed position p when its sequence equals p,
+    // and read by the writer when it equals p + 1.
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    private static long head = 0; // Only touched while holding the drain lock
+
+    private static final LongAdder dropped = new LongAdder();
+    private static final Object drainLock = new Object();
+
+    private static volatile Level level = Level.INFO;
+    private static volatile Consumer<String> console;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+            entries[i] = new Entry();
+        }
+
+        Thread writer = new Thread(ServerLog::writeLoop, "Log-Writer");
+        writer.setDaemon(true);
+        writer.start();
+
+        // Write out whatever is still buffered when the server exits
+        Runtime.getRuntime().addShutdownHook(new Thread(ServerLog::flush));
+    }
+
+    private ServerLog() {
+    }
+
+    /**
+     * Set the lowest level that is logged.
+     *
+     * @param newLevel entries below this level are discarded
+     */
+    public static void setLevel(Level newLevel) {
+        level = newLevel;
+    }
+
+    /**
+     * Send every batch to the server console as well as standard output. The
+     * consumer is called from one thread at a time, under drainLock: the
+     * writer thread, or a thread calling flush().
+     *
+     * @param consumer receives formatted batches of lines, null to stop
+     */
+    public static void setConsole(Consumer<String> consumer) {
+        console = consumer;
+    }
+
+    /**
+     * @param check level to test
+     * @return true if entries at this level are being logged
+     */
+    public static boolean isEnabled(Level check) {
+        return check.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message, Throwable cause) {
+        log(Level.ERROR, message, cause);
+    }
+
+    /**
+     * @return number of entries dropped because the buffer was full
+     */
+    public static long droppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Queue an entry. Never blocks, the entry is dropped if the buffer is full.
+     *
+     * @param entryLevel severity of the entry
+     * @param message    text of the entry
+     * @param cause      exception to print with the entry, or null
+     */
+    public static void log(Level entryLevel, String message, Throwable cause) {
+        if (!isEnabled(entryLevel)) {
+            return;
+        }
+
+        long position = tail.get();
+        while (true) {
+            long sequence = sequences.get((int) position & MASK);
+            if (sequence == position) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+                position = tail.get();
+            } else if (sequence < position) {
+                // Writer has not caught up, the buffer is full
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+
+        Entry entry = entries[(int) position & MASK];
+        entry.level = entryLevel;
+        entry.thread = Thread.currentThread().getName();
+        entry.message = message;
+        entry.cause = cause;
+        // Publishes the fields above to the writer
+        sequences.set((int) position & MASK, position + 1);
+    }
+
+    /**
+     * Write out every entry queued so far.
+     */
+    public static void flush() {
+        while (drain() > 0) {
+            // Keep going until the buffer is empty
+        }
+    }
+
+    private static void writeLoop() {
+        while (true) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(2_000_000L);
+            }
+        }
+    }
+
+    /**
+     * Format up to one batch of entries and write them out.
+     *
+     * @return number of entries written
+     */
+    private static int drain() {
+        synchronized (drainLock) {
+            StringBuilder out = new StringBuilder();
+            StringBuilder err = new StringBuilder();
+            int count = 0;
+
+            while (count < BATCH) {
+                int index = (int) head & MASK;
+                if (sequences.get(index) != head + 1) {
+                    break; // Nothing more has been published yet
+                }
+                Entry entry = entries[index];
+                StringBuilder target = entry.level.compareTo(Level.WARN) >= 0 ? err : out;
+                target.append(entry.thread).append(": ").append(entry.message).append(System.lineSeparator());
+                if (entry.cause != null) {
+                    StringWriter trace = new StringWriter();
+                    entry.cause.printStackTrace(new PrintWriter(trace));
+                    target.append(trace);
+                }
+
+                entry.message = null;
+                entry.cause = null;
+                sequences.set(index, head + CAPACITY); // Slot is free again
+                head++;
+                count++;
+            }
+
+            if (count > 0) {
+                if (out.length() > 0) {
+                    System.out.print(out);
+                }
+                if (err.length() > 0) {
+                    System.err.print(err);
+                }
+                Consumer<String> consumer = console;
+                if (consumer != null) {
+                    consumer.accept(out.append(err).toString());
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * One slot of the ring buffer. Reused, never reallocated.
+     */
+    private static class Entry {
+        Level level;
+        String thread;
+        String message;
+        Throwable cause;
+    }
+}
@@ -0,0 +1,296 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Server wide instrumentation. Request latencies are kept in a
+ * LatencyHistogram per command, recorded by the client handlers, and the
+ * rest is gathered from the counters the server already keeps:
+ * SessionGauges, DirectoryCache, FileCache, Outbox and ServerLog. Recording costs an
+ * atomic increment, everything else is computed when the metrics are read.
+ *
+ * Metrics can be read over JMX (see ServerMetricsMBean), from the plain text
+ * endpoint started by MetricsEndpoint, and in the server console.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+
+    private static final Command[] COMMANDS = Command.values();
+    private static final LatencyHistogram[] latencies = new LatencyHistogram[COMMANDS.length];
+    private static final LongAdder bytesSent = new LongAdder();
+
+    // Quantiles exported for each command, as percentiles and as scrape labels
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    static {
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Record how long a request took to handle.
+     *
+     * @param command command of the request
+     * @param nanos   time from the request being read to the reply being sent
+     */
+    static void recordRequest(Command command, long nanos) {
+        latencies[command.ordinal()].record(nanos);
+    }
+
+    /**
+     * Count file bytes sent to clients by DOWNLOAD and RANGE.
+     */
+    static void addBytesSent(long bytes) {
+        bytesSent.add(bytes);
+    }
+
+    /**
+     * @return latencies of one command
+     */
+    static LatencyHistogram latency(Command command) {
+        return latencies[command.ordinal()];
+    }
+
+    /**
+     * Register the metrics with the platform MBean server. Does nothing if
+     * they already are.
+     */
+    static void registerMBean() {
+        try {
+            ObjectName name = new ObjectName("server:type=ServerMetrics");
+            if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new ServerMetrics(), name);
+            }
+        } catch (JMException ex) {
+            ServerLog.error("Could not register metrics with JMX", ex);
+        }
+    }
+
+    /**
+     * Every metric in the Prometheus text exposition format.
+     *
+     * @return lines of "name{labels} value"
+     */
+    static String scrapeText() {
+        StringBuilder out = new StringBuilder(4096);
+        gauge(out, "blackjack_sessions_active", SessionGauges.activeSessions());
+        counter(out, "blackjack_connections_accepted_total", SessionGauges.acceptedTotal());
+        gauge(out, "blackjack_accept_rate_per_second", SessionGauges.acceptRate());
+        counter(out, "blackjack_connections_rejected_total", ConnectionLimits.rejectedCount());
+        counter(out, "blackjack_sessions_reaped_total", IdleReaper.reapedCount());
+        gauge(out, "blackjack_sessions_parked", Resumption.parkedCount());
+        counter(out, "blackjack_sessions_resumed_total", Resumption.resumedCount());
+        counter(out, "blackjack_sessions_resume_expired_total", Resumption.expiredCount());
+        counter(out, "blackjack_bytes_sent_total", bytesSent.sum());
+        counter(out, "blackjack_directory_cache_hits_total", DirectoryCache.hitCount());
+        counter(out, "blackjack_directory_cache_misses_total", DirectoryCache.missCount());
+        gauge(out, "blackjack_directory_cache_hit_ratio", directoryHitRate());
+        counter(out, "blackjack_file_cache_hits_total", FileCache.hitCount());
+        counter(out, "blackjack_file_cache_misses_total", FileCache.missCount());
+        gauge(out, "blackjack_file_cache_hit_ratio", fileHitRate());
+        gauge(out, "blackjack_file_cache_resident_bytes", FileCache.residentBytes());
+        gauge(out, "blackjack_file_cache_entries", FileCache.entryCount());
+        counter(out, "blackjack_table_events_total", Outbox.offeredCount());
+        counter(out, "blackjack_table_events_coalesced_total", Outbox.coalescedCount());
+        counter(out, "blackjack_outbox_writes_total", Outbox.writeCount());
+        counter(out, "blackjack_outbox_dropped_clients_total", Outbox.droppedClientCount());
+        counter(out, "blackjack_log_dropped_total", ServerLog.droppedCount());
+
+        out.append("# TYPE blackjack_requests_total counter\n");
+        for (Command command : COMMANDS) {
+            long count = latency(command).count();
+            if (count > 0) {
+                out.append("blackjack_requests_total{command=\"").append(command)
+                        .append("\"} ").append(count).append('\n');
+            }
+        }
+        out.append("# TYPE blackjack_request_latency_seconds summary\n");
+        for (Command command : COMMANDS) {
+            LatencyHistogram histogram = latency(command);
+            if (histogram.count() == 0) {
+                continue;
+            }
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                out.append("blackjack_request_latency_seconds{command=\"").append(command)
+                        .append("\",quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(histogram.percentile(PERCENTILES[i]) / 1e9).append('\n');
+            }
+        }
+        // A family of its own, a summary has no max series
+        out.append("# TYPE blackjack_request_latency_seconds_max gauge\n");
+        for (Command command : COMMANDS) {
+            LatencyHistogram histogram = latency(command);
+            if (histogram.count() > 0) {
+                out.append("blackjack_request_latency_seconds_max{command=\"").append(command)
+                        .append("\"} ").append(histogram.max() / 1e9).append('\n');
+            }
+        }
+
+        Journal journal = Persistence.journal();
+        if (journal != null) {
+            quantiles(out, "blackjack_journal_append_seconds", journal.appendLatency());
+            quantiles(out, "blackjack_journal_sync_seconds", journal.syncLatency());
+            // A position in the journal rather than a count of events
+            gauge(out, "blackjack_journal_committed_sequence", journal.committedSequence());
+        }
+        return out.toString();
+    }
+
+    /**
+     * @return one line for the server console
+     */
+    static String summary() {
+        long requests = 0;
+        LatencyHistogram all = new LatencyHistogram();
+        for (Command command : COMMANDS) {
+            requests += latency(command).count();
+            all.add(latency(command));
+        }
+        return String.format(Locale.ROOT,
+                "Sessions %d | %.1f accepts/s | %d requests, p99 %.0f us | %.1f MB sent | DIR cache %.0f%% hits | FILE cache %.0f%% hits, %.1f MB",
+                SessionGauges.activeSessions(), SessionGauges.acceptRate(), requests,
+                all.percentile(99) / 1e3, bytesSent.sum() / 1e6, directoryHitRate() * 100,
+                fileHitRate() * 100, FileCache.residentBytes() / 1e6);
+    }
+
+    private static double directoryHitRate() {
+        long hits = DirectoryCache.hitCount();
+        long total = hits + DirectoryCache.missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static double fileHitRate() {
+        long hits = FileCache.hitCount();
+        long total = hits + FileCache.missCount();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private static void gauge(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, double value) {
+        out.append("# TYPE ").append(name).append(" gauge\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void quantiles(StringBuilder out, String name, LatencyHistogram histogram) {
+        out.append("# TYPE ").append(name).append(" summary\n");
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                    .append(histogram.percentile(PERCENTILES[i]) / 1e9).append('\n');
+        }
+        out.append(name).append("_count ").append(histogram.count()).append('\n');
+    }
+
+    private static void counter(StringBuilder out, String name, long value) {
+        out.append("# TYPE ").append(name).append(" counter\n")
+                .append(name).append(' ').append(value).append('\n');
+    }
+
+    // ServerMetricsMBean, read by JMX clients
+
+    @Override
+    public int getActiveSessions() {
+        return SessionGauges.activeSessions();
+    }
+
+    @Override
+    public long getAcceptedTotal() {
+        return SessionGauges.acceptedTotal();
+    }
+
+    @Override
+    public double getAcceptRate() {
+        return SessionGauges.acceptRate();
+    }
+
+    @Override
+    public long getRejectedConnections() {
+        return ConnectionLimits.rejectedCount();
+    }
+
+    @Override
+    public long getReapedSessions() {
+        return IdleReaper.reapedCount();
+    }
+
+    @Override
+    public int getParkedSessions() {
+        return Resumption.parkedCount();
+    }
+
+    @Override
+    public long getResumedSessions() {
+        return Resumption.resumedCount();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getDirectoryCacheHits() {
+        return DirectoryCache.hitCount();
+    }
+
+    @Override
+    public long getDirectoryCacheMisses() {
+        return DirectoryCache.missCount();
+    }
+
+    @Override
+    public double getDirectoryCacheHitRate() {
+        return directoryHitRate();
+    }
+
+    @Override
+    public double getFileCacheHitRate() {
+        return fileHitRate();
+    }
+
+    @Override
+    public long getFileCacheResidentBytes() {
+        return FileCache.residentBytes();
+    }
+
+    @Override
+    public long getLogEntriesDropped() {
+        return ServerLog.droppedCount();
+    }
+
+    @Override
+    public long getOutboxDroppedClients() {
+        return Outbox.droppedClientCount();
+    }
+
+    @Override
+    public long requestCount(String command) {
+        return latency(toCommand(command)).count();
+    }
+
+    @Override
+    public double latencyMicros(String command, double percentile) {
+        return latency(toCommand(command)).percentile(percentile) / 1e3;
+    }
+
+    @Override
+    public String scrape() {
+        return scrapeText();
+    }
+
+    private static Command toCommand(String name) {
+        try {
+            return Command.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException ex) {
+            return Command.UNKNOWN;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package server;
+
+/**
+ * Management interface of ServerMetrics, registered with the platform MBean
+ * server as "server:type=ServerMetrics".
+ */
+public interface ServerMetricsMBean {
+
+    int getActiveSessions();
+
+    long getAcceptedTotal();
+
+    double getAcceptRate();
+
+    long getRejectedConnections();
+
+    long getReapedSessions();
+
+    int getParkedSessions();
+
+    long getResumedSessions();
+
+    long getBytesSent();
+
+    long getDirectoryCacheHits();
+
+    long getDirectoryCacheMisses();
+
+    double getDirectoryCacheHitRate();
+
+    double getFileCacheHitRate();
+
+    long getFileCacheResidentBytes();
+
+    long getLogEntriesDropped();
+
+    long getOutboxDroppedClients();
+
+    /**
+     * @return number of requests handled for a command, for example "DIR"
+     */
+    long requestCount(String command);
+
+    /**
+     * @return latency of a command at a percentile, in microseconds
+     */
+    double latencyMicros(String command, double percentile);
+
+    /**
+     * @return every metric in the plain text format of the scrape endpoint
+     */
+    String scrape();
+}
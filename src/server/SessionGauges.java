@@ -0,0 +1,96 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection gauges shared by every ClientConnection. Tracks how many sessions
+ * are currently open and how quickly new connections are being accepted.
+ */
+public class SessionGauges {
+
+    private static final LongAdder accepted = new LongAdder();
+    private static final AtomicInteger active = new AtomicInteger();
+
+    // Previous sample used to turn the accept counter into a rate
+    private static long lastAccepted = 0;
+    private static long lastSampleNanos = System.nanoTime();
+
+    // Window behind acceptRate, which any number of readers can share
+    private static long windowAccepted = 0;
+    private static long windowStartNanos = System.nanoTime();
+    private static double windowRate = 0;
+
+    private SessionGauges() {
+    }
+
+    /**
+     * Called by the accept loop for every accepted client.
+     */
+    static void connectionAccepted() {
+        accepted.increment();
+    }
+
+    /**
+     * Called when a ClientConnection starts serving its client.
+     */
+    static void sessionOpened() {
+        active.incrementAndGet();
+    }
+
+    /**
+     * Called when a ClientConnection has closed its client.
+     */
+    static void sessionClosed() {
+        active.decrementAndGet();
+    }
+
+    /**
+     * @return number of sessions currently being served
+     */
+    public static int activeSessions() {
+        return active.get();
+    }
+
+    /**
+     * @return total connections accepted since the server started
+     */
+    public static long acceptedTotal() {
+        return accepted.sum();
+    }
+
+    /**
+     * Accepts per second since the previous call to this method.
+     *
+     * @return accept rate over the last sampling interval
+     */
+    public static synchronized double sampleAcceptRate() {
+        long now = System.nanoTime();
+        long total = accepted.sum();
+        double seconds = (now - lastSampleNanos) / 1e9;
+        double rate = seconds > 0 ? (total - lastAccepted) / seconds : 0;
+
+        lastAccepted = total;
+        lastSampleNanos = now;
+        return rate;
+    }
+
+    /**
+     * Accepts per second over the most recent window of at least a second.
+     * Unlike sampleAcceptRate this does not depend on who else is reading it,
+     * so metrics scrapes and the console can poll it independently.
+     *
+     * @return recent accept rate
+     */
+    public static synchronized double acceptRate() {
+        long now = System.nanoTime();
+        long elapsed = now - windowStartNanos;
+        if (elapsed >= 1_000_000_000L) {
+            long total = accepted.sum();
+            windowRate = (total - windowAccepted) / (elapsed / 1e9);
+            windowAccepted = total;
+            windowStartNanos = now;
+        }
+        return windowRate;
+    }
+}
@@ -0,0 +1,57 @@
+package server;
+
+import java.util.SplittableRandom;
+
+/**
+ * A shoe of one or more decks held as card codes in a byte[]. Cards are
+ * shuffled as they are dealt, each deal swapping a random undealt card to
+ * the front, so putting every card back into the shoe only resets the deal
+ * position and costs the same for one deck as for eight.
+ */
+class Shoe {
+
+    private final byte[] cards;
+    private final SplittableRandom random;
+    private final int cutCard;
+    private int next = 0;
+
+    /**
+     * @param decks       number of 52 card decks in the shoe
+     * @param penetration fraction of the shoe dealt before reshuffling
+     * @param random      source of randomness for shuffles
+     */
+    Shoe(int decks, double penetration, SplittableRandom random) {
+        cards = new byte[decks * Card.CODES];
+        for (int i = 0; i < cards.length; i++) {
+            cards[i] = (byte) (i % Card.CODES);
+        }
+        this.random = random;
+        this.cutCard = (int) (cards.length * penetration);
+    }
+
+    /**
+     * Shuffle every card back into the shoe.
+     */
+    void shuffle() {
+        next = 0;
+    }
+
+    /**
+     * @return true once the cut card has been reached, checked between rounds
+     */
+    boolean needsShuffle() {
+        return next >= cutCard;
+    }
+
+    byte deal() {
+        if (next == cards.length) {
+            shuffle();
+        }
+        // One step of a Fisher-Yates shuffle over the undealt cards
+        int pick = next + random.nextInt(cards.length - next);
+        byte card = cards[pick];
+        cards[pick] = cards[next];
+        cards[next++] = card;
+        return card;
+    }
+}
@@ -0,0 +1,343 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Headless Monte Carlo simulator. Plays basic strategy under a set of table
+ * rules for as many rounds as asked and reports the house edge, so rules and
+ * payouts can be checked before a table deals them.
+ *
+ * Rounds are split into batches on a ForkJoinPool. Every batch has its own
+ * shoe, SplittableRandom and counters, and results are only combined once a
+ * batch is done, so threads share nothing while they play.
+ *
+ * Usage: java server.Simulator [--hands=N] [--decks=N] [--h17] [--no-das]
+ * [--surrender] [--penetration=F] [--threads=N] [--scale] [--seed=N]
+ */
+public class Simulator {
+
+    // Rounds one batch plays on its own before it is split no further
+    private static final long BATCH = 1 << 20;
+    // Most hands a player can end up with after splitting
+    private static final int MAX_HANDS = 4;
+
+    /**
+     * Counters for a number of rounds. Money is counted in half bets so a
+     * blackjack's 3 to 2 payout stays an integer.
+     */
+    static class Result {
+        long rounds;
+        long net;        // Player's winnings in half bets
+        long netSquares; // Sum of each round's net squared, for the error
+        long wins;
+        long pushes;
+        long losses;
+        long blackjacks;
+        long doubles;
+        long splits;
+        long surrenders;
+
+        void add(Result other) {
+            rounds += other.rounds;
+            net += other.net;
+            netSquares += other.netSquares;
+            wins += other.wins;
+            pushes += other.pushes;
+            losses += other.losses;
+            blackjacks += other.blackjacks;
+            doubles += other.doubles;
+            splits += other.splits;
+            surrenders += other.surrenders;
+        }
+
+        /**
+         * @return house edge as a fraction of the initial bet
+         */
+        double houseEdge() {
+            return -net / 2.0 / rounds;
+        }
+
+        /**
+         * @return standard error of houseEdge()
+         */
+        double standardError() {
+            double mean = net / 2.0 / rounds;
+            double variance = netSquares / 4.0 / rounds - mean * mean;
+            return Math.sqrt(variance / rounds);
+        }
+    }
+
+    /**
+     * Play a number of rounds.
+     *
+     * @param rules   rules to play under
+     * @param rounds  rounds to play
+     * @param threads parallelism of the pool the rounds run on
+     * @param random  seeds every batch, the result only depends on this
+     *                and not on the number of threads
+     * @return the combined counters
+     */
+    static Result run(Rules rules, long rounds, int threads, SplittableRandom random) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new Batch(rules, rounds, random));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    public static void main(String[] args) {
+        long rounds = 100_000_000L;
+        int decks = Rules.STANDARD.decks;
+        boolean hitSoft17 = Rules.STANDARD.hitSoft17;
+        boolean doubleAfterSplit = Rules.STANDARD.doubleAfterSplit;
+        boolean surrender = Rules.STANDARD.surrender;
+        double penetration = Rules.STANDARD.penetration;
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean scale = false;
+        SplittableRandom random = new SplittableRandom();
+
+        for (String arg : args) {
+            try {
+                if (arg.startsWith("--hands=")) {
+                    rounds = Long.parseLong(arg.substring("--hands=".length()));
+                } else if (arg.startsWith("--decks=")) {
+                    decks = Integer.parseInt(arg.substring("--decks=".length()));
+                } else if (arg.equals("--h17")) {
+                    hitSoft17 = true;
+                } else if (arg.equals("--s17")) {
+                    hitSoft17 = false;
+                } else if (arg.equals("--das")) {
+                    doubleAfterSplit = true;
+                } else if (arg.equals("--no-das")) {
+                    doubleAfterSplit = false;
+                } else if (arg.equals("--surrender")) {
+                    surrender = true;
+                } else if (arg.startsWith("--penetration=")) {
+                    penetration = Double.parseDouble(arg.substring("--penetration=".length()));
+                } else if (arg.startsWith("--threads=")) {
+                    threads = Integer.parseInt(arg.substring("--threads=".length()));
+                } else if (arg.equals("--scale")) {
+                    // Repeat the run from one thread up to --threads
+                    scale = true;
+                } else if (arg.startsWith("--seed=")) {
+                    random = new SplittableRandom(Long.parseLong(arg.substring("--seed=".length())));
+                } else {
+                    System.err.println("Unknown option " + arg);
+                    System.exit(1);
+                }
+            } catch (NumberFormatException ex) {
+                System.err.println("Invalid input " + arg);
+                System.exit(1);
+            }
+        }
+        if (rounds <= 0 || decks <= 0 || threads <= 0 || penetration <= 0 || penetration > 1) {
+            System.err.println("Invalid input");
+            System.exit(1);
+        }
+
+        Rules rules = new Rules(decks, hitSoft17, doubleAfterSplit, surrender, penetration);
+        System.out.println("Rules: " + rules + ", " + rounds + " rounds");
+
+        List<Integer> steps = new ArrayList<>();
+        if (scale) {
+            for (int step = 1; step < threads; step *= 2) {
+                steps.add(step);
+            }
+        }
+        steps.add(threads);
+
+        double single = 0;
+        for (int step : steps) {
+            long start = System.nanoTime();
+            Result result = run(rules, rounds, step, random.split());
+            double seconds = (System.nanoTime() - start) / 1e9;
+            double rate = result.rounds / seconds;
+            if (single == 0) {
+                single = rate;
+            }
+            System.out.printf("%3d threads %14.0f hands/s  speedup %5.2f  house edge %.3f%% +/- %.3f%%%n",
+                    step, rate, rate / single, result.houseEdge() * 100, result.standardError() * 100);
+            if (step == threads) {
+                report(result);
+            }
+        }
+    }
+
+    private static void report(Result result) {
+        double hands = result.wins + result.pushes + result.losses;
+        System.out.printf("wins %.2f%%  pushes %.2f%%  losses %.2f%%  (per hand, %d hands)%n",
+                result.wins * 100 / hands, result.pushes * 100 / hands, result.losses * 100 / hands,
+                (long) hands);
+        System.out.printf("blackjacks %.3f%%  doubles %.3f%%  splits %.3f%%  surrenders %.3f%%  (per round)%n",
+                result.blackjacks * 100.0 / result.rounds, result.doubles * 100.0 / result.rounds,
+                result.splits * 100.0 / result.rounds, result.surrenders * 100.0 / result.rounds);
+    }
+
+    /**
+     * A number of rounds, split in half until each part is one BATCH.
+     */
+    private static class Batch extends RecursiveTask<Result> {
+        private static final long serialVersionUID = 1L; // Never serialized
+        private final transient Rules rules;
+        private final long rounds;
+        private final transient SplittableRandom random;
+
+        Batch(Rules rules, long rounds, SplittableRandom random) {
+            this.rules = rules;
+            this.rounds = rounds;
+            this.random = random;
+        }
+
+        @Override
+        protected Result compute() {
+            if (rounds <= BATCH) {
+                return new Player(rules, random).play(rounds);
+            }
+            Batch first = new Batch(rules, rounds / 2, random.split());
+            Batch second = new Batch(rules, rounds - rounds / 2, random.split());
+            first.fork();
+            Result result = second.compute();
+            result.add(first.join());
+            return result;
+        }
+    }
+
+    /**
+     * One simulated player and the shoe they play from. Used by a single
+     * thread, all hand state lives in reused arrays.
+     */
+    private static class Player {
+        private final Rules rules;
+        private final Strategy strategy;
+        private final Shoe shoe;
+        private final Result result = new Result();
+
+        private final int[] hands = new int[MAX_HANDS];
+        private final byte[] firstCards = new byte[MAX_HANDS];
+        private final byte[] secondCards = new byte[MAX_HANDS];
+        private final int[] bets = new int[MAX_HANDS]; // In half bets
+
+        Player(Rules rules, SplittableRandom random) {
+            this.rules = rules;
+            this.strategy = Strategy.forRules(rules);
+            this.shoe = new Shoe(rules.decks, rules.penetration, random);
+        }
+
+        Result play(long rounds) {
+            for (long i = 0; i < rounds; i++) {
+                if (shoe.needsShuffle()) {
+                    shoe.shuffle();
+                }
+                long net = round();
+                result.net += net;
+                result.netSquares += net * net;
+            }
+            result.rounds += rounds;
+            return result;
+        }
+
+        /**
+         * @return the player's winnings for the round in half bets
+         */
+        private long round() {
+            byte first = shoe.deal();
+            byte upcard = shoe.deal();
+            byte second = shoe.deal();
+            int dealer = Hand.add(Hand.add(Hand.EMPTY, upcard), shoe.deal());
+            int player = Hand.add(Hand.add(Hand.EMPTY, first), second);
+
+            // The dealer checks for blackjack before anyone acts
+            if (Hand.isBlackjack(dealer)) {
+                if (Hand.isBlackjack(player)) {
+                    result.pushes++;
+                    return 0;
+                }
+                result.losses++;
+                return -2;
+            }
+            if (Hand.isBlackjack(player)) {
+                result.blackjacks++;
+                result.wins++;
+                return 3;
+            }
+
+            int up = Card.value(upcard);
+            int count = 1;
+            hands[0] = player;
+            firstCards[0] = first;
+            secondCards[0] = second;
+            bets[0] = 2;
+            boolean splitAces = false;
+
+            for (int i = 0; i < count; i++) {
+                // Split aces get one card each and nothing more
+                while (!splitAces && Hand.total(hands[i]) < 21) {
+                    boolean twoCards = Hand.size(hands[i]) == 2;
+                    int pair = twoCards && Card.value(firstCards[i]) == Card.value(secondCards[i])
+                            ? Card.value(firstCards[i]) : 0;
+                    Strategy.Action action = strategy.decide(hands[i], pair, up,
+                            twoCards && (count == 1 || rules.doubleAfterSplit),
+                            count < MAX_HANDS,
+                            twoCards && count == 1 && rules.surrender);
+
+                    if (action == Strategy.Action.STAND) {
+                        break;
+                    } else if (action == Strategy.Action.HIT) {
+                        hands[i] = Hand.add(hands[i], shoe.deal());
+                    } else if (action == Strategy.Action.DOUBLE) {
+                        result.doubles++;
+                        bets[i] *= 2;
+                        hands[i] = Hand.add(hands[i], shoe.deal());
+                        break;
+                    } else if (action == Strategy.Action.SURRENDER) {
+                        result.surrenders++;
+                        result.losses++;
+                        return -1;
+                    } else {
+                        result.splits++;
+                        splitAces = pair == 1;
+                        byte moved = secondCards[i];
+                        secondCards[i] = shoe.deal();
+                        hands[i] = Hand.add(Hand.add(Hand.EMPTY, firstCards[i]), secondCards[i]);
+                        firstCards[count] = moved;
+                        secondCards[count] = shoe.deal();
+                        hands[count] = Hand.add(Hand.add(Hand.EMPTY, moved), secondCards[count]);
+                        bets[count] = 2;
+                        count++;
+                    }
+                }
+            }
+
+            // The dealer only draws if some player hand is still in play
+            boolean anyLive = false;
+            for (int i = 0; i < count; i++) {
+                anyLive |= !Hand.isBust(hands[i]);
+            }
+            while (anyLive && rules.dealerDraws(dealer)) {
+                dealer = Hand.add(dealer, shoe.deal());
+            }
+
+            // Hands made after a split are never blackjacks, only totals count
+            int dealerTotal = Hand.total(dealer);
+            long net = 0;
+            for (int i = 0; i < count; i++) {
+                int total = Hand.total(hands[i]);
+                if (Hand.isBust(hands[i]) || (dealerTotal <= 21 && total < dealerTotal)) {
+                    result.losses++;
+                    net -= bets[i];
+                } else if (dealerTotal > 21 || total > dealerTotal) {
+                    result.wins++;
+                    net += bets[i];
+                } else {
+                    result.pushes++;
+                }
+            }
+            return net;
+        }
+    }
+}
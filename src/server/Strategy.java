@@ -0,0 +1,191 @@
+package server;
+
+/**
+ * Multi-deck basic strategy: the play with the best expected return for a
+ * player hand against the dealer's upcard, ignoring which cards have already
+ * been dealt.
+ *
+ * The chart is evaluated once per rule set into lookup tables, a short per
+ * hand key and upcard holding the action for each combination of double and
+ * surrender being allowed, and a bit per pair and upcard for splits. About
+ * 2.5 KB in all, a decision is then two array reads.
+ */
+final class Strategy {
+
+    enum Action {
+        HIT, STAND, DOUBLE, SPLIT, SURRENDER
+    }
+
+    // Strategy for the rules the server's tables deal
+    static final Strategy STANDARD = new Strategy(Rules.STANDARD);
+
+    private static final Action[] ACTIONS = Action.values();
+    private static final int VARIANT_BITS = 3;   // Bits per action in a hands entry
+    private static final int CAN_DOUBLE = 1;     // Variant bit, doubling allowed
+    private static final int CAN_SURRENDER = 2;  // Variant bit, surrender allowed
+
+    final Rules rules;
+    // Action by hand key and upcard, 4 variants of VARIANT_BITS bits each
+    private final short[] hands = new short[Hand.KEYS * 10];
+    // Bit (upcard - 1) set if the pair of that value splits, indexed by pair value
+    private final short[] splits = new short[11];
+
+    /**
+     * Evaluate the strategy chart for a rule set.
+     */
+    Strategy(Rules rules) {
+        this.rules = rules;
+        for (int key = 0; key < Hand.KEYS; key++) {
+            for (int upcard = 1; upcard <= 10; upcard++) {
+                int entry = 0;
+                for (int variant = 0; variant < 4; variant++) {
+                    Action action = compute(rules, key, upcard,
+                            (variant & CAN_DOUBLE) != 0, (variant & CAN_SURRENDER) != 0);
+                    entry |= action.ordinal() << (variant * VARIANT_BITS);
+                }
+                hands[key * 10 + upcard - 1] = (short) entry;
+            }
+        }
+        for (int pair = 1; pair <= 10; pair++) {
+            for (int upcard = 1; upcard <= 10; upcard++) {
+                if (splits(rules, pair, upcard == 1 ? 11 : upcard)) {
+                    splits[pair] = (short) (splits[pair] | 1 << (upcard - 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * @param rules rules of the table
+     * @return the shared strategy for the standard rules, a new one otherwise
+     */
+    static Strategy forRules(Rules rules) {
+        return rules == Rules.STANDARD ? STANDARD : new Strategy(rules);
+    }
+
+    /**
+     * Look up the action for a hand. Allocation free.
+     *
+     * @param hand         packed player hand, see Hand
+     * @param pair         value of the paired cards (1 for aces), 0 if not a pair
+     * @param upcard       value of the dealer's upcard, 1 for an ace
+     * @param canDouble    doubling is allowed on this hand
+     * @param canSplit     splitting is allowed on this hand
+     * @param canSurrender surrender is allowed on this hand
+     * @return the action to take
+     */
+    Action decide(int hand, int pair, int upcard,
+                  boolean canDouble, boolean canSplit, boolean canSurrender) {
+        if (canSplit && (splits[pair] >> (upcard - 1) & 1) != 0) {
+            return Action.SPLIT;
+        }
+        int variant = (canDouble ? CAN_DOUBLE : 0) | (canSurrender ? CAN_SURRENDER : 0);
+        int entry = hands[Hand.key(hand) * 10 + upcard - 1];
+        return ACTIONS[entry >> (variant * VARIANT_BITS) & ((1 << VARIANT_BITS) - 1)];
+    }
+
+    /**
+     * Work the action for a hand that is not split out from the chart itself.
+     *
+     * @param rules        rules of the table
+     * @param hand         packed player hand, see Hand
+     * @param upcard       value of the dealer's upcard, 1 for an ace
+     * @param canDouble    doubling is allowed on this hand
+     * @param canSurrender surrender is allowed on this hand
+     * @return the action to take
+     */
+    private static Action compute(Rules rules, int hand, int upcard, boolean canDouble, boolean canSurrender) {
+        int up = upcard == 1 ? 11 : upcard;
+        if (Hand.isSoft(hand)) {
+            return soft(rules, Hand.total(hand), up, canDouble);
+        }
+        int total = Hand.total(hand);
+        if (canSurrender && surrenders(rules, total, up)) {
+            return Action.SURRENDER;
+        }
+        return hard(rules, total, up, canDouble);
+    }
+
+    private static boolean splits(Rules rules, int pair, int up) {
+        boolean das = rules.doubleAfterSplit;
+        switch (pair) {
+            case 1:
+            case 8:
+                return true;
+            case 9:
+                return up <= 9 && up != 7;
+            case 7:
+                return up <= 7;
+            case 6:
+                return up <= 6 && (das || up >= 3);
+            case 4:
+                return das && (up == 5 || up == 6);
+            case 2:
+            case 3:
+                return up <= 7 && (das || up >= 4);
+            default:
+                return false; // Fives play as hard 10, tens stand
+        }
+    }
+
+    private static boolean surrenders(Rules rules, int total, int up) {
+        if (!rules.surrender) {
+            return false;
+        }
+        if (total == 16) {
+            return up >= 9;
+        }
+        if (total == 15) {
+            return up == 10 || (up == 11 && rules.hitSoft17);
+        }
+        return total == 17 && up == 11 && rules.hitSoft17;
+    }
+
+    private static Action hard(Rules rules, int total, int up, boolean canDouble) {
+        if (total >= 17) {
+            return Action.STAND;
+        }
+        if (total >= 13) {
+            return up <= 6 ? Action.STAND : Action.HIT;
+        }
+        if (total == 12) {
+            return up >= 4 && up <= 6 ? Action.STAND : Action.HIT;
+        }
+        boolean doubles;
+        if (total == 11) {
+            doubles = up <= 10 || rules.hitSoft17;
+        } else if (total == 10) {
+            doubles = up <= 9;
+        } else if (total == 9) {
+            doubles = up >= 3 && up <= 6;
+        } else {
+            doubles = false;
+        }
+        return doubles && canDouble ? Action.DOUBLE : Action.HIT;
+    }
+
+    private static Action soft(Rules rules, int total, int up, boolean canDouble) {
+        if (total >= 20) {
+            return Action.STAND;
+        }
+        if (total == 19) {
+            return rules.hitSoft17 && up == 6 && canDouble ? Action.DOUBLE : Action.STAND;
+        }
+        if (total == 18) {
+            if (up <= 6) {
+                boolean doubles = up >= 3 || rules.hitSoft17;
+                return doubles && canDouble ? Action.DOUBLE : Action.STAND;
+            }
+            return up <= 8 ? Action.STAND : Action.HIT;
+        }
+        boolean doubles;
+        if (total == 17) {
+            doubles = up >= 3 && up <= 6;
+        } else if (total >= 15) {
+            doubles = up >= 4 && up <= 6;
+        } else {
+            doubles = total >= 13 && (up == 5 || up == 6);
+        }
+        return doubles && canDouble ? Action.DOUBLE : Action.HIT;
+    }
+}
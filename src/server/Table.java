@@ -0,0 +1,747 @@
+package server;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+
+/**
+ * State of one blackjack table. Not thread safe on purpose: every table is
+ * owned by exactly one TableScheduler shard and only ever touched from that
+ * shard's thread, so the game logic needs no locking.
+ *
+ * A round starts once every seated player has bet. Players then act in seat
+ * order with HIT, STAND or DOUBLE, the dealer draws to 17 (standing or
+ * hitting on soft 17 as the Rules say) and bets are settled: blackjack pays
+ * 3 to 2, a win 1 to 1.
+ */
+class Table {
+
+    static final int SEATS = 7;
+    static final int STARTING_CHIPS = 1000;
+    private static final String NEWLINE = System.lineSeparator();
+
+    enum Phase {
+        BETTING, PLAYING
+    }
+
+    /**
+     * How a player's last round ended. The ordinal is the binary protocol code.
+     */
+    enum Outcome {
+        NONE("-"), WIN("WIN"), LOSE("LOSE"), PUSH("PUSH"), BLACKJACK("BLACKJACK");
+
+        final String text;
+
+        Outcome(String text) {
+            this.text = text;
+        }
+    }
+
+    /**
+     * A player sitting at the table.
+     */
+    private static class Seat {
+        final long session;
+        Outbox outbox; // Receives the other players' moves, may be null
+        int chips = STARTING_CHIPS;
+        int bet = 0;
+        final byte[] cards = new byte[Hand.MAX_CARDS];
+        int hand = Hand.EMPTY; // Packed, see Hand
+        boolean finished; // Stood, busted, doubled or has blackjack
+        Outcome result = Outcome.NONE;
+        boolean absent; // Lost its connection or restored after a restart
+
+        Seat(long session, Outbox outbox) {
+            this.session = session;
+            this.outbox = outbox;
+        }
+    }
+
+    final int id;
+    private final Rules rules;
+    private final Strategy strategy;
+    private final Shoe shoe;
+    private final Seat[] seats = new Seat[SEATS];
+    private int seated = 0;
+    private final byte[] dealerCards = new byte[Hand.MAX_CARDS];
+    private int dealer = Hand.EMPTY;
+    private Phase phase = Phase.BETTING;
+    private int turn = -1;
+    private FrameEncoder events; // Encodes binary events, created on first use
+    private boolean draining = false; // Server is shutting down, no new bets
+    private int changes = 0; // Counts changes to the table, see changeCount()
+    // Tell copies of the table in a cluster apart, see Cluster: the origin is
+    // drawn when the table is first opened, the generation counts handovers
+    private long origin;
+    private int generation = 0;
+
+    Table(int id, Rules rules, SplittableRandom random) {
+        this.id = id;
+        this.rules = rules;
+        this.strategy = Strategy.forRules(rules);
+        this.shoe = new Shoe(rules.decks, rules.penetration, random);
+        this.origin = random.nextLong();
+    }
+
+    /**
+     * @return true if nobody is sitting at the table
+     */
+    boolean isEmpty() {
+        return seated == 0;
+    }
+
+    /**
+     * @return true while bets are on the table, placed or being played out
+     */
+    boolean handInPlay() {
+        return anyBets();
+    }
+
+    /**
+     * Stop taking bets because the server is shutting down. Bets already
+     * placed are dealt straight away without waiting on the players who have
+     * not bet, so every hand on the table can be played out.
+     */
+    void drain() {
+        if (draining) {
+            return;
+        }
+        draining = true;
+        if (phase == Phase.BETTING && anyBets()) {
+            startRoundIfReady();
+            broadcast(-1);
+        }
+    }
+
+    /**
+     * @return a number that changes whenever a player or the game changes
+     * the table, used to tell when it needs saving
+     */
+    int changeCount() {
+        return changes;
+    }
+
+    /**
+     * Count a handover to another node, before the table is sent there.
+     */
+    void nextGeneration() {
+        generation++;
+    }
+
+    /**
+     * @return identifies the table across handovers, see nextGeneration()
+     */
+    long origin() {
+        return origin;
+    }
+
+    /**
+     * @return number of times the table has been handed to another node
+     */
+    int generation() {
+        return generation;
+    }
+
+    /**
+     * @return ids of the sessions seated at the table
+     */
+    long[] seatedSessions() {
+        long[] sessions = new long[seated];
+        int count = 0;
+        for (Seat seat : seats) {
+            if (seat != null) {
+                sessions[count++] = seat.session;
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * Write the seated players and their chips: int id, long origin, int
+     * generation, byte seated, then per seat byte seat number, long session
+     * and int chips. Bets and cards are not recorded, a bet is counted back
+     * into the player's chips, so a hand in play when the table is restored
+     * is void.
+     *
+     * @param out where the table is written
+     * @throws IOException if the write fails
+     */
+    void writeSnapshot(DataOutput out) throws IOException {
+        out.writeInt(id);
+        out.writeLong(origin);
+        out.writeInt(generation);
+        out.writeByte(seated);
+        for (int i = 0; i < SEATS; i++) {
+            if (seats[i] != null) {
+                out.writeByte(i);
+                out.writeLong(seats[i].session);
+                out.writeInt(seats[i].chips + seats[i].bet);
+            }
+        }
+    }
+
+    /**
+     * Restore a table written by writeSnapshot(). The players are seated as
+     * absent, without an outbox, until their sessions are resumed.
+     *
+     * @param in         where the table is read from
+     * @param rules      rules of the restored table
+     * @param random     source for the restored table's shoe
+     * @return the table, or null at the -1 that ends a list of tables
+     * @throws IOException if the read fails or the table is damaged
+     */
+    static Table readSnapshot(DataInput in, Rules rules, SplittableRandom random) throws IOException {
+        int id = in.readInt();
+        if (id == -1) {
+            return null;
+        }
+        Table table = new Table(id, rules, random);
+        table.origin = in.readLong();
+        table.generation = in.readInt();
+        int count = in.readUnsignedByte();
+        for (int i = 0; i < count; i++) {
+            int index = in.readUnsignedByte();
+            if (index >= SEATS || table.seats[index] != null) {
+                throw new IOException("Damaged snapshot of table " + id);
+            }
+            Seat seat = new Seat(in.readLong(), null);
+            seat.chips = in.readInt();
+            seat.absent = true;
+            table.seats[index] = seat;
+            table.seated++;
+        }
+        return table;
+    }
+
+    /**
+     * Seat the players of another copy of this table, handed over by a node
+     * of the cluster while this one was already open, see Cluster. They sit
+     * absent in free seats, keeping their chips; players already seated here
+     * or who find no free seat are left out.
+     *
+     * @param other the handed over table, with this table's id
+     * @return number of players seated
+     */
+    int adoptSeats(Table other) {
+        int adopted = 0;
+        for (Seat seat : other.seats) {
+            if (seat == null || seatOf(seat.session) >= 0) {
+                continue;
+            }
+            for (int i = 0; i < SEATS; i++) {
+                if (seats[i] == null) {
+                    Seat player = new Seat(seat.session, null);
+                    player.chips = seat.chips + seat.bet;
+                    player.absent = true;
+                    seats[i] = player;
+                    seated++;
+                    adopted++;
+                    break;
+                }
+            }
+        }
+        if (adopted > 0) {
+            changes++;
+        }
+        return adopted;
+    }
+
+    /**
+     * Seat a session at the first free seat.
+     *
+     * @param session id of the joining session
+     * @return seat number, or -1 if the table is full
+     */
+    int join(long session) {
+        return join(session, null);
+    }
+
+    /**
+     * Seat a session at the first free seat. From then on every change made
+     * by another player is pushed to the session's outbox.
+     *
+     * @param session id of the joining session
+     * @param outbox  receives table events, null for none
+     * @return seat number, or -1 if the table is full
+     */
+    int join(long session, Outbox outbox) {
+        for (int i = 0; i < SEATS; i++) {
+            if (seats[i] == null) {
+                seats[i] = new Seat(session, outbox);
+                seated++;
+                broadcast(session);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Keep a session's seat while it waits to be resumed, see Resumption.
+     * The player is absent: no events are pushed to it and the next round
+     * is dealt without waiting for its bet. Once it is its turn in a hand the
+     * table waits for it to come back or give up the seat.
+     *
+     * @param session id of the disconnected session
+     */
+    void detach(long session) {
+        int seat = seatOf(session);
+        if (seat < 0) {
+            return;
+        }
+        seats[seat].outbox = null;
+        seats[seat].absent = true;
+        if (phase == Phase.BETTING && anyBets()) {
+            // The others may have been waiting on this player's bet
+            startRoundIfReady();
+            broadcast(session);
+        }
+    }
+
+    /**
+     * Give a resumed session its seat back. The current state is pushed to
+     * its outbox in place of the events it missed.
+     *
+     * @param session id of the resumed session
+     * @param outbox  receives table events from now on, null for none
+     * @return true if the session still had a seat
+     */
+    boolean reattach(long session, Outbox outbox) {
+        int seat = seatOf(session);
+        if (seat < 0) {
+            return false;
+        }
+        Seat player = seats[seat];
+        player.outbox = outbox;
+        player.absent = false;
+        if (outbox != null) {
+            push(player);
+        }
+        return true;
+    }
+
+    /**
+     * Remove a session from the table. A bet in play is forfeited.
+     *
+     * @param session id of the leaving session
+     */
+    void leave(long session) {
+        int seat = seatOf(session);
+        if (seat < 0) {
+            return;
+        }
+        seats[seat] = null;
+        seated--;
+
+        if (phase == Phase.PLAYING) {
+            if (seat == turn) {
+                advance();
+            } else if (!anyBets()) {
+                phase = Phase.BETTING;
+                turn = -1;
+            }
+        } else {
+            // The player everyone was waiting on may have left
+            startRoundIfReady();
+        }
+        broadcast(session);
+    }
+
+    /**
+     * Place a bet. The round is dealt once every seated player has bet.
+     *
+     * @param session id of the betting session
+     * @param amount  chips to bet
+     * @return null if the bet was placed, otherwise an error reply
+     */
+    String bet(long session, int amount) {
+        int seat = seatOf(session);
+        if (seat < 0) {
+            return "NOT SEATED";
+        }
+        Seat player = seats[seat];
+        if (draining) {
+            return "SERVER CLOSING";
+        }
+        if (phase != Phase.BETTING || player.bet > 0) {
+            return "NOT BETTING";
+        }
+        if (amount <= 0 || amount > player.chips) {
+            return "INVALID BET";
+        }
+        player.chips -= amount;
+        player.bet = amount;
+        startRoundIfReady();
+        broadcast(session);
+        return null;
+    }
+
+    /**
+     * Check that it is the session's turn to act.
+     *
+     * @param session id of the session acting
+     * @return null if it is, otherwise an error reply
+     */
+    String turnError(long session) {
+        int seat = seatOf(session);
+        if (seat < 0) {
+            return "NOT SEATED";
+        }
+        if (seat != turn) {
+            return "NOT YOUR TURN";
+        }
+        return null;
+    }
+
+    /**
+     * Take another card.
+     *
+     * @return null on success, otherwise an error reply
+     */
+    String hit(long session) {
+        String error = turnError(session);
+        if (error != null) {
+            return error;
+        }
+        Seat player = seats[turn];
+        player.hand = draw(player.cards, player.hand);
+        if (Hand.total(player.hand) >= 21) {
+            player.finished = true;
+            advance();
+        }
+        broadcast(session);
+        return null;
+    }
+
+    /**
+     * Keep the current hand.
+     *
+     * @return null on success, otherwise an error reply
+     */
+    String stand(long session) {
+        String error = turnError(session);
+        if (error != null) {
+            return error;
+        }
+        seats[turn].finished = true;
+        advance();
+        broadcast(session);
+        return null;
+    }
+
+    /**
+     * Double the bet on the first two cards and take exactly one more card.
+     *
+     * @return null on success, otherwise an error reply
+     */
+    String doubleDown(long session) {
+        String error = turnError(session);
+        if (error != null) {
+            return error;
+        }
+        Seat player = seats[turn];
+        if (Hand.size(player.hand) != 2 || player.chips < player.bet) {
+            return "CANNOT DOUBLE";
+        }
+        player.chips -= player.bet;
+        player.bet *= 2;
+        player.hand = draw(player.cards, player.hand);
+        player.finished = true;
+        advance();
+        broadcast(session);
+        return null;
+    }
+
+    /**
+     * Suggest the basic strategy play for the session's hand against the
+     * dealer's upcard. Only actions the table offers are suggested, so pairs
+     * are played as totals and surrender is never advised.
+     *
+     * @param session id of the session asking
+     * @return "HINT#" followed by HIT, STAND or DOUBLE, or an error reply
+     */
+    String hint(long session) {
+        String error = turnError(session);
+        return error != null ? error : "HINT#" + suggestion();
+    }
+
+    /**
+     * @return the basic strategy play for the player whose turn it is, only
+     * valid when turnError() has found no error
+     */
+    Strategy.Action suggestion() {
+        Seat player = seats[turn];
+        boolean canDouble = Hand.size(player.hand) == 2 && player.chips >= player.bet;
+        return strategy.decide(player.hand, 0, Card.value(dealerCards[0]), canDouble, false, false);
+    }
+
+    /**
+     * Describe the table as seen by one session. Fields are separated by '#'
+     * like DIR listings:
+     * STATE#phase#yourSeat#turn#dealerCards#dealerTotal#seat,chips,bet,cards,total,result#...
+     * The dealer's hole card is shown as "??" while players are still acting.
+     *
+     * @param session id of the session asking
+     * @return the encoded table state
+     */
+    String state(long session) {
+        StringBuilder out = new StringBuilder(160);
+        out.append("STATE#").append(phase).append('#')
+                .append(seatOf(session)).append('#')
+                .append(turn).append('#');
+
+        if (Hand.size(dealer) == 0) {
+            out.append("-#-#");
+        } else if (phase == Phase.PLAYING) {
+            Card.append(out, dealerCards[0]).append(".??#?#");
+        } else {
+            Hand.append(out, dealerCards, dealer).append('#').append(Hand.total(dealer)).append('#');
+        }
+
+        for (int i = 0; i < SEATS; i++) {
+            Seat seat = seats[i];
+            if (seat == null) {
+                continue;
+            }
+            out.append(i).append(',')
+                    .append(seat.chips).append(',')
+                    .append(seat.bet).append(',');
+            if (Hand.size(seat.hand) == 0) {
+                out.append("-,-,");
+            } else {
+                Hand.append(out, seat.cards, seat.hand).append(',').append(Hand.total(seat.hand)).append(',');
+            }
+            out.append(seat.result.text).append('#');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Binary protocol counterpart of state(), written as a Frame.TABLE frame:
+     * byte phase, signed yourSeat, signed turn, dealer cards, varint dealer
+     * total, varint seat count, then per seat: varint seat, chips and bet,
+     * its cards, varint total and byte Outcome. Cards are a varint count and
+     * one byte per card code (see Card), the hidden hole card is code 52 and
+     * the dealer total 0 while players are still acting.
+     *
+     * @param session id of the session asking
+     * @param out     encoder the frame is added to
+     */
+    void writeState(long session, FrameEncoder out) {
+        writeState(session, Frame.TABLE, out);
+    }
+
+    private void writeState(long session, int opcode, FrameEncoder out) {
+        out.begin(opcode)
+                .writeByte(phase.ordinal())
+                .writeSignedVarint(seatOf(session))
+                .writeSignedVarint(turn);
+
+        int dealerSize = Hand.size(dealer);
+        if (phase == Phase.PLAYING && dealerSize > 0) {
+            out.writeVarint(2).writeByte(dealerCards[0]).writeByte(Card.CODES).writeVarint(0);
+        } else {
+            writeCards(out, dealerCards, dealer).writeVarint(dealerSize == 0 ? 0 : Hand.total(dealer));
+        }
+
+        out.writeVarint(seated);
+        for (int i = 0; i < SEATS; i++) {
+            Seat seat = seats[i];
+            if (seat == null) {
+                continue;
+            }
+            out.writeVarint(i).writeVarint(seat.chips).writeVarint(seat.bet);
+            writeCards(out, seat.cards, seat.hand)
+                    .writeVarint(Hand.size(seat.hand) == 0 ? 0 : Hand.total(seat.hand))
+                    .writeByte(seat.result.ordinal());
+        }
+        out.end();
+    }
+
+    private static FrameEncoder writeCards(FrameEncoder out, byte[] cards, int hand) {
+        int size = Math.min(Hand.size(hand), cards.length);
+        out.writeVarint(size);
+        return out.writeBytes(cards, 0, size);
+    }
+
+    /**
+     * Push the table state to every seated player except the one whose
+     * action changed it, who gets the state in reply. Text sessions receive
+     * the STATE line prefixed with "EVENT#", binary sessions a Frame.EVENT
+     * frame. Each player's pending event for this table is replaced by the
+     * newer one if it has not been sent yet. Every change to the table ends
+     * here, so this is also where changes are counted.
+     *
+     * @param actor session that made the change
+     */
+    private void broadcast(long actor) {
+        changes++;
+        for (Seat seat : seats) {
+            if (seat != null && seat.outbox != null && seat.session != actor) {
+                push(seat);
+            }
+        }
+    }
+
+    /**
+     * Push the table state to one player's outbox as an event.
+     */
+    private void push(Seat seat) {
+        byte[] event;
+        boolean binary = seat.outbox.isBinary();
+        if (binary) {
+            if (events == null) {
+                events = new FrameEncoder();
+            }
+            writeState(seat.session, Frame.EVENT, events);
+            event = events.toByteArray();
+            events.clear();
+        } else {
+            event = ("EVENT#" + state(seat.session) + NEWLINE).getBytes(StandardCharsets.UTF_8);
+        }
+        seat.outbox.offer(id, event, binary);
+    }
+
+    private int seatOf(long session) {
+        for (int i = 0; i < SEATS; i++) {
+            if (seats[i] != null && seats[i].session == session) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean anyBets() {
+        for (Seat seat : seats) {
+            if (seat != null && seat.bet > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void startRoundIfReady() {
+        if (phase != Phase.BETTING || !anyBets()) {
+            return;
+        }
+        for (Seat seat : seats) {
+            if (seat != null && seat.bet == 0 && seat.chips > 0 && !seat.absent && !draining) {
+                return; // Still waiting on someone
+            }
+        }
+
+        if (shoe.needsShuffle()) {
+            shoe.shuffle();
+        }
+
+        dealer = Hand.EMPTY;
+        for (Seat seat : seats) {
+            if (seat != null) {
+                // Players without chips sit the round out
+                seat.hand = Hand.EMPTY;
+                seat.finished = false;
+                seat.result = Outcome.NONE;
+            }
+        }
+        // Two rounds of cards, players first and the dealer last
+        for (int round = 0; round < 2; round++) {
+            for (Seat seat : seats) {
+                if (seat != null && seat.bet > 0) {
+                    seat.hand = draw(seat.cards, seat.hand);
+                }
+            }
+            dealer = draw(dealerCards, dealer);
+        }
+        for (Seat seat : seats) {
+            if (seat != null && seat.bet > 0 && Hand.isBlackjack(seat.hand)) {
+                seat.finished = true;
+            }
+        }
+
+        phase = Phase.PLAYING;
+        turn = -1;
+        if (Hand.isBlackjack(dealer)) {
+            settle(); // Nobody gets to act against a dealer blackjack
+        } else {
+            advance();
+        }
+    }
+
+    /**
+     * Pass the turn to the next player who still has to act, or play the
+     * dealer's hand once nobody does.
+     */
+    private void advance() {
+        for (int i = turn + 1; i < SEATS; i++) {
+            Seat seat = seats[i];
+            if (seat != null && seat.bet > 0 && !seat.finished) {
+                turn = i;
+                return;
+            }
+        }
+        settle();
+    }
+
+    /**
+     * Play out the dealer's hand and pay every bet.
+     */
+    private void settle() {
+        boolean anyLive = false;
+        for (Seat seat : seats) {
+            if (seat != null && seat.bet > 0 && !Hand.isBust(seat.hand) && !Hand.isBlackjack(seat.hand)) {
+                anyLive = true;
+            }
+        }
+        // The dealer only draws if some player hand is still in play
+        while (anyLive && rules.dealerDraws(dealer)) {
+            dealer = draw(dealerCards, dealer);
+        }
+
+        int dealerTotal = Hand.total(dealer);
+        boolean dealerBlackjack = Hand.isBlackjack(dealer);
+        for (Seat seat : seats) {
+            if (seat == null || seat.bet == 0) {
+                continue;
+            }
+            int hand = seat.hand;
+            if (Hand.isBlackjack(hand) && !dealerBlackjack) {
+                seat.chips += seat.bet + seat.bet * 3 / 2;
+                seat.result = Outcome.BLACKJACK;
+            } else if (Hand.isBust(hand)) {
+                seat.result = Outcome.LOSE;
+            } else if (dealerBlackjack && !Hand.isBlackjack(hand)) {
+                seat.result = Outcome.LOSE;
+            } else if (dealerTotal > 21 || Hand.total(hand) > dealerTotal) {
+                seat.chips += seat.bet * 2;
+                seat.result = Outcome.WIN;
+            } else if (Hand.total(hand) == dealerTotal) {
+                seat.chips += seat.bet;
+                seat.result = Outcome.PUSH;
+            } else {
+                seat.result = Outcome.LOSE;
+            }
+            seat.bet = 0;
+        }
+
+        phase = Phase.BETTING;
+        turn = -1;
+    }
+
+    /**
+     * Deal the next card from the shoe into a hand.
+     *
+     * @param cards where the hand's cards are recorded
+     * @param hand  packed hand
+     * @return the hand with the card added
+     */
+    private int draw(byte[] cards, int hand) {
+        byte card = shoe.deal();
+        int size = Hand.size(hand);
+        if (size < cards.length) {
+            cards[size] = card;
+        }
+        return Hand.add(hand, card);
+    }
+}
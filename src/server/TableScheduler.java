@@ -0,0 +1,285 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+
+/**
+ * Hosts every blackjack table in the process. Tables are spread over a fixed
+ * number of shards, each a single thread that owns its tables outright. All
+ * work on a table is submitted to its shard, so table state is only ever
+ * touched by one thread and needs no locks, and independent tables run in
+ * parallel on as many cores as there are shards.
+ */
+public class TableScheduler {
+
+    private static final TableScheduler shared =
+            new TableScheduler(Runtime.getRuntime().availableProcessors());
+
+    private final Shard[] shards;
+    private volatile boolean draining = false;
+
+    /**
+     * @param shardCount number of shard threads, normally one per core
+     */
+    TableScheduler(int shardCount) {
+        shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    /**
+     * @return the scheduler used by client sessions
+     */
+    static TableScheduler shared() {
+        return shared;
+    }
+
+    /**
+     * Run an action on a table from the table's shard thread, creating the
+     * table if it does not exist yet. A table the action changed is handed to
+     * Persistence before the next action runs.
+     *
+     * @param tableId table to act on
+     * @param action  work to run against the table
+     * @return completes with the action's result on the shard thread
+     */
+    <T> CompletableFuture<T> submit(int tableId, Function<Table, T> action) {
+        Shard shard = shardFor(tableId);
+        return CompletableFuture.supplyAsync(() -> {
+            Table table = shard.tables.get(tableId);
+            if (table == null) {
+                table = new Table(tableId, Rules.STANDARD, new SplittableRandom());
+                if (draining) {
+                    table.drain();
+                }
+                shard.tables.put(tableId, table);
+            }
+            int changes = table.changeCount();
+            T result = action.apply(table);
+            if (table.changeCount() != changes) {
+                Persistence.tableChanged(table);
+            }
+            // Drop tables once everyone has left so idle tables cost nothing
+            if (table.isEmpty()) {
+                shard.tables.remove(tableId);
+            }
+            return result;
+        }, shard.executor);
+    }
+
+    /**
+     * Run an action on a table and wait for its result. Used by the blocking
+     * ClientConnection, which has a thread of its own to wait on.
+     */
+    <T> T call(int tableId, Function<Table, T> action) {
+        return submit(tableId, action).join();
+    }
+
+    /**
+     * @return number of tables currently hosted, counted on each shard
+     */
+    int tableCount() {
+        int total = 0;
+        for (Shard shard : shards) {
+            total += CompletableFuture.supplyAsync(shard.tables::size, shard.executor).join();
+        }
+        return total;
+    }
+
+    /**
+     * Stop taking bets on every table, for shutdown. Bets already placed are
+     * dealt so the hands can be finished, see Table.drain().
+     */
+    void drain() {
+        draining = true;
+        CompletableFuture<?>[] drained = new CompletableFuture<?>[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[i];
+            drained[i] = CompletableFuture.runAsync(() -> {
+                for (Table table : shard.tables.values()) {
+                    table.drain();
+                }
+            }, shard.executor);
+        }
+        CompletableFuture.allOf(drained).join();
+    }
+
+    /**
+     * Take bets again after drain(), for a server started again in the same
+     * process. Tables drained earlier have all closed with their sessions.
+     */
+    void reopen() {
+        draining = false;
+    }
+
+    /**
+     * @return number of tables with bets still in play
+     */
+    int handsInPlay() {
+        int total = 0;
+        for (Shard shard : shards) {
+            total += CompletableFuture.supplyAsync(() -> {
+                int inPlay = 0;
+                for (Table table : shard.tables.values()) {
+                    if (table.handInPlay()) {
+                        inPlay++;
+                    }
+                }
+                return inPlay;
+            }, shard.executor).join();
+        }
+        return total;
+    }
+
+    /**
+     * Write every table as Table.writeSnapshot() does. Each shard writes its
+     * own tables on its own thread, one shard at a time.
+     *
+     * @param out where the tables are written
+     * @return number of tables written
+     * @throws IOException if a write fails
+     */
+    int writeTables(DataOutputStream out) throws IOException {
+        int count = 0;
+        try {
+            for (Shard shard : shards) {
+                count += CompletableFuture.supplyAsync(() -> {
+                    try {
+                        for (Table table : shard.tables.values()) {
+                            table.writeSnapshot(out);
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return shard.tables.size();
+                }, shard.executor).join();
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+        return count;
+    }
+
+    /**
+     * Host a table recovered by Persistence, replacing any with its id.
+     *
+     * @param table the recovered table
+     */
+    void restore(Table table) {
+        Shard shard = shardFor(table.id);
+        CompletableFuture.runAsync(() -> shard.tables.put(table.id, table), shard.executor).join();
+    }
+
+    /**
+     * Host a table handed over by another node of the cluster, see Cluster.
+     * If a table with its id was opened here meanwhile, the handed over
+     * players are seated at that one instead. Either way the table is
+     * journaled. Nothing changes if a copy of the table with the same
+     * origin is hosted already: only one node holds a table at a time, so
+     * that is a handover sent twice or resent after the sender restarted.
+     *
+     * @param table the table, its players absent
+     * @return false if a copy of the table was already hosted
+     */
+    boolean adopt(Table table) {
+        Shard shard = shardFor(table.id);
+        return CompletableFuture.supplyAsync(() -> {
+            Table hosted = shard.tables.get(table.id);
+            if (hosted != null && hosted.origin() == table.origin()) {
+                return false;
+            }
+            if (hosted == null) {
+                hosted = table;
+                if (draining) {
+                    hosted.drain();
+                }
+                shard.tables.put(table.id, hosted);
+            } else {
+                hosted.adoptSeats(table);
+            }
+            Persistence.tableChanged(hosted);
+            return true;
+        }, shard.executor).join();
+    }
+
+    /**
+     * @param tableId id of a table handed to this node
+     * @param origin  the handed over table's origin
+     * @return true if a copy of the table with that origin is hosted here
+     */
+    boolean hosts(int tableId, long origin) {
+        Shard shard = shardFor(tableId);
+        return CompletableFuture.supplyAsync(() -> {
+            Table hosted = shard.tables.get(tableId);
+            return hosted != null && hosted.origin() == origin;
+        }, shard.executor).join();
+    }
+
+    /**
+     * Stop hosting a table so it can be handed to another node. A table with
+     * a hand in play is kept until the hand is over.
+     *
+     * @param tableId table to remove
+     * @return the removed table, null if there is none or a hand is in play
+     */
+    Table remove(int tableId) {
+        Shard shard = shardFor(tableId);
+        return CompletableFuture.supplyAsync(() -> {
+            Table table = shard.tables.get(tableId);
+            if (table == null || table.handInPlay()) {
+                return null;
+            }
+            return shard.tables.remove(tableId);
+        }, shard.executor).join();
+    }
+
+    /**
+     * @return ids of the tables currently hosted, collected on each shard
+     */
+    List<Integer> tableIds() {
+        List<Integer> ids = new ArrayList<>();
+        for (Shard shard : shards) {
+            ids.addAll(CompletableFuture.supplyAsync(() -> new ArrayList<>(shard.tables.keySet()),
+                    shard.executor).join());
+        }
+        return ids;
+    }
+
+    private Shard shardFor(int tableId) {
+        // Spread consecutive table ids evenly over the shards
+        int mixed = tableId * 0x9E3779B9;
+        return shards[Math.floorMod(mixed ^ (mixed >>> 16), shards.length)];
+    }
+
+    /**
+     * A single thread and the tables it owns. The map is only read or written
+     * from that thread.
+     */
+    private static class Shard {
+        final ExecutorService executor;
+        final Map<Integer, Table> tables = new HashMap<>();
+
+        Shard(int index) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Table-Shard-" + index);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}